@@ -0,0 +1,32 @@
+package com.cs.sbm.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count, with the GC profiler to report the allocation rate.
+ *
+ * The thread counts are given by the <code>threads</code> system property (default 1,4). Any other JMH option is passed through, ie:
+ * <pre>
+ *   java -Dthreads=1,2,4,8 -jar target/benchmarks.jar OrderBoardBenchmark.registerAndCancel -p bookDepth=1000
+ * </pre>
+ * @author Nat
+ *
+ */
+public final class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		for(String threads : System.getProperty("threads", "1,4").split(",")){
+			new Runner(new OptionsBuilder()
+					.parent(options)
+					.threads(Integer.parseInt(threads.trim()))
+					.addProfiler(GCProfiler.class)
+					.build()).run();
+		}
+	}
+}
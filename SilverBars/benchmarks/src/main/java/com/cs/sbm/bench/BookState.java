@@ -0,0 +1,103 @@
+package com.cs.sbm.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.impl.CoalescingUpdateNotifier;
+import com.cs.sbm.impl.FixedPointQuantity;
+import com.cs.sbm.impl.HeapOrderStore;
+import com.cs.sbm.impl.OffHeapOrderStore;
+import com.cs.sbm.impl.OrderBoardImpl;
+import com.cs.sbm.impl.OrderStore;
+import com.cs.sbm.impl.SynchronousUpdateNotifier;
+import com.cs.sbm.impl.UpdateNotifier;
+
+/**
+ * An orderboard, shared by all benchmark threads, prefilled with <code>bookDepth</code> levels of <code>ordersPerLevel</code> orders on either side.
+ * BUY levels are below {@link #MID_PRICE}, SELL levels above it, so the book does not cross.
+ * @author Nat
+ *
+ */
+@State(Scope.Benchmark)
+public class BookState {
+
+	/** The price between the best BUY and the best SELL level. */
+	static final int MID_PRICE = 30_000;
+	/** Quantity of every order, in fixed point units. */
+	static final long QUANTITY = 1_000L;
+
+	/** Number of price levels on either side. */
+	@Param({"10", "1000"})
+	public int bookDepth;
+	/** Number of orders at every level. */
+	@Param({"1", "100"})
+	public int ordersPerLevel;
+	/** Number of {@link com.cs.sbm.api.OrderUpdateListener}s. */
+	@Param({"0", "8"})
+	public int listenerCount;
+	/** The {@link OrderStore}: heap, off-heap or memory-mapped. */
+	@Param({"heap", "off-heap", "memory-mapped"})
+	public String store;
+	/** The {@link UpdateNotifier}: synchronous or coalescing. */
+	@Param({"synchronous", "coalescing"})
+	public String notifier;
+
+	OrderBoardImpl board;
+	private UpdateNotifier updateNotifier;
+
+	@Setup
+	public void setup(Blackhole blackhole){
+		//INFO logging of every order would dominate the measurement.
+		Logger.getLogger("com.cs.sbm").setLevel(Level.WARNING);
+		int orders = 2 * bookDepth * ordersPerLevel;
+		OrderStore orderStore;
+		switch(store){
+		case "heap":
+			orderStore = new HeapOrderStore(orders);
+			break;
+		case "off-heap":
+			orderStore = new OffHeapOrderStore(orders);
+			break;
+		case "memory-mapped":
+			orderStore = new OffHeapOrderStore(orders, new File(System.getProperty("java.io.tmpdir")));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown store "+store);
+		}
+		updateNotifier = "coalescing".equals(notifier) ? new CoalescingUpdateNotifier(1, TimeUnit.MILLISECONDS, 0) : new SynchronousUpdateNotifier();
+		board = new OrderBoardImpl(orderStore, FixedPointQuantity.DEFAULT_SCALE, updateNotifier, matching());
+		for(int i=0; i<listenerCount; i++){
+			board.addUpdateListener(blackhole::consume);
+		}
+		for(int level=0; level<bookDepth; level++){
+			for(int i=0; i<ordersPerLevel; i++){
+				board.registerOrder("bench", OrderType.BUY, MID_PRICE - 1 - level, QUANTITY);
+				board.registerOrder("bench", OrderType.SELL, MID_PRICE + 1 + level, QUANTITY);
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the orderboard matches the incoming orders, see {@link MatchingBookState}.
+	 */
+	boolean matching(){
+		return false;
+	}
+
+	@TearDown
+	public void tearDown(){
+		if(updateNotifier instanceof CoalescingUpdateNotifier){
+			((CoalescingUpdateNotifier) updateNotifier).close();
+		}
+	}
+}
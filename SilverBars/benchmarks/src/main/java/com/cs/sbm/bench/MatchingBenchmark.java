@@ -0,0 +1,38 @@
+package com.cs.sbm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * Benchmarks of the orderboard in matching mode. See {@link MatchingBookState} for the parameters of the book, and {@link BenchmarkRunner} for the thread counts.
+ *
+ * Every operation rests <code>ordersFilled</code> orders at the best SELL level, then crosses it with a BUY order which fills as many orders from the head of the level,
+ * so the book keeps the same depth throughout the run. The matches per second are the operations per second times <code>ordersFilled</code>.
+ * @author Nat
+ *
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingBenchmark {
+
+	@Benchmark
+	public long registerAndMatch(MatchingBookState book){
+		int bestSell = BookState.MID_PRICE + 1;
+		for(int i=0; i<book.ordersFilled; i++){
+			book.board.registerOrder("bench", OrderType.SELL, bestSell, BookState.QUANTITY);
+		}
+		return book.board.registerOrder("bench", OrderType.BUY, bestSell, book.ordersFilled * BookState.QUANTITY);
+	}
+}
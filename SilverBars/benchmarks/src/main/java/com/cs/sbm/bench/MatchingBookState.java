@@ -0,0 +1,23 @@
+package com.cs.sbm.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A {@link BookState} whose orderboard matches the incoming orders. The book is prefilled the same way, it does not cross.
+ * @author Nat
+ *
+ */
+@State(Scope.Benchmark)
+public class MatchingBookState extends BookState {
+
+	/** Number of resting orders an incoming order fills, ie: matches per operation. */
+	@Param({"1", "10"})
+	public int ordersFilled;
+
+	@Override
+	boolean matching(){
+		return true;
+	}
+}
@@ -0,0 +1,60 @@
+package com.cs.sbm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cs.sbm.api.OrderBookSummary;
+
+/**
+ * Benchmarks of the orderboard operations. See {@link BookState} for the parameters of the book, and {@link BenchmarkRunner} for the thread counts.
+ *
+ * Register and cancel are measured together, so the book keeps the same depth throughout the run.
+ * With listeners and a synchronous notifier, this is the end to end cost of an order, including the snapshot and the fan out to every listener.
+ * @author Nat
+ *
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderBoardBenchmark {
+
+	@Benchmark
+	public boolean registerAndCancel(BookState book, ThreadState thread){
+		thread.next(book);
+		long orderId = book.board.registerOrder("bench", thread.side, thread.price, BookState.QUANTITY);
+		return book.board.cancelOrder(orderId);
+	}
+
+	@Benchmark
+	public OrderBookSummary getSummary(BookState book){
+		return book.board.getSummary();
+	}
+
+	@Benchmark
+	public OrderBookSummary getSummaryTop10(BookState book){
+		return book.board.getSummary(10);
+	}
+
+	@Benchmark
+	public OrderBookSummary getSummaryBands(BookState book){
+		return book.board.getSummary(10, 5);
+	}
+
+	/**
+	 * A summary taken after every change, ie: the cache of the snapshot never helps.
+	 */
+	@Benchmark
+	public OrderBookSummary registerCancelAndGetSummary(BookState book, ThreadState thread){
+		registerAndCancel(book, thread);
+		return book.board.getSummary();
+	}
+}
@@ -0,0 +1,203 @@
+package com.cs.sbm.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.api.ResultCode;
+import com.cs.sbm.gateway.GatewayProtocol;
+import com.cs.sbm.gateway.SessionServer;
+import com.cs.sbm.impl.FixedPointQuantity;
+import com.cs.sbm.impl.HeapOrderStore;
+import com.cs.sbm.impl.LatencyHistogram;
+import com.cs.sbm.impl.LatencySnapshot;
+import com.cs.sbm.impl.OrderBoardImpl;
+
+/**
+ * Load driver of the {@link SessionServer}: reports the throughput and the round trip latencies for every number of connections.
+ *
+ * For every connection count, that many clients connect and log in, then each of them registers an order and cancels it, over and over,
+ * waiting for every response before sending the next request (closed loop). The latencies are recorded after a warmup, from the request being written
+ * to its response being read, so they include the loopback TCP round trip and the wait for a permit of the server.
+ *
+ * The server runs in process, in front of a new orderboard, unless the <code>address</code> system property (host:port) points to a running one.
+ * The other system properties are <code>connections</code> (default 1,10,100,1000,2000), <code>seconds</code> measured per connection count (default 10)
+ * and <code>warmup</code> seconds (default 2), ie:
+ * <pre>
+ *   java -Dconnections=100,1000 -Dseconds=5 -cp target/benchmarks.jar com.cs.sbm.bench.SessionLoadDriver
+ * </pre>
+ * The client threads are platform threads with a small stack, so the driver runs on any JVM; a few thousand connections are within reach.
+ * @author Nat
+ *
+ */
+public final class SessionLoadDriver {
+
+	/** Stack size of the client threads. */
+	private static final long STACK_SIZE = 256 * 1024;
+	/** Quantity of every order, in fixed point units. */
+	private static final long QUANTITY = 1_000L;
+
+	private final InetSocketAddress address;
+	private final LatencyHistogram registerLatency = new LatencyHistogram();
+	private final LatencyHistogram cancelLatency = new LatencyHistogram();
+	private volatile boolean running;
+	private volatile boolean measuring;
+
+	private SessionLoadDriver(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	public static void main(String[] args) throws Exception {
+		//INFO logging of every session would dominate the measurement.
+		Logger.getLogger("com.cs.sbm").setLevel(Level.WARNING);
+		String target = System.getProperty("address");
+		long seconds = Long.getLong("seconds", 10);
+		long warmup = Long.getLong("warmup", 2);
+		SessionServer server = null;
+		InetSocketAddress address;
+		if(target == null){
+			server = new SessionServer(new OrderBoardImpl(new HeapOrderStore(1 << 16), FixedPointQuantity.DEFAULT_SCALE), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			address = server.getLocalAddress();
+			System.out.println("Session server on "+address+(server.isVirtual() ? ", with virtual threads" : ", with platform threads")+", "+server.getMaxConcurrentCalls()+" concurrent calls");
+		}else{
+			int colon = target.lastIndexOf(':');
+			address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+		}
+		try{
+			for(String connections : System.getProperty("connections", "1,10,100,1000,2000").split(",")){
+				long throttled = server == null ? 0 : server.getThrottledCount();
+				new SessionLoadDriver(address).run(Integer.parseInt(connections.trim()), warmup, seconds);
+				if(server != null){
+					System.out.println("  throttled sessions: "+(server.getThrottledCount() - throttled));
+				}
+			}
+		}finally{
+			if(server != null){
+				server.close();
+			}
+		}
+	}
+
+	/**
+	 * Drives the given number of connections, and prints their throughput and latencies.
+	 */
+	private void run(int connections, long warmupSeconds, long seconds) throws Exception {
+		List<SocketChannel> clients = new ArrayList<>(connections);
+		List<Thread> threads = new ArrayList<>(connections);
+		List<Throwable> failures = new ArrayList<>();
+		running = true;
+		try{
+			for(int i=0; i<connections; i++){
+				SocketChannel client = SocketChannel.open(address);
+				clients.add(client);
+				int index = i;
+				Thread thread = new Thread(null, () -> {
+					try{
+						drive(client, index);
+					}catch(IOException | RuntimeException ex){
+						if(running){
+							synchronized(failures){
+								failures.add(ex);
+							}
+						}
+					}
+				}, "load-"+i, STACK_SIZE);
+				thread.setDaemon(true);
+				threads.add(thread);
+			}
+			threads.forEach(Thread::start);
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+			measuring = true;
+			long start = System.nanoTime();
+			Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+			measuring = false;
+			long elapsed = System.nanoTime() - start;
+			report(connections, elapsed);
+		}finally{
+			running = false;
+			for(Thread thread : threads){
+				thread.join(TimeUnit.SECONDS.toMillis(10));
+			}
+			for(SocketChannel client : clients){
+				client.close();
+			}
+		}
+		if(!failures.isEmpty()){
+			throw new IllegalStateException(failures.size()+" connections failed", failures.get(0));
+		}
+	}
+
+	/**
+	 * The loop of a client: logs in, then registers and cancels an order until the run is over.
+	 */
+	private void drive(SocketChannel client, int index) throws IOException {
+		ByteBuffer request = ByteBuffer.allocate(GatewayProtocol.REQUEST_LENGTH);
+		ByteBuffer response = ByteBuffer.allocate(GatewayProtocol.RESPONSE_LENGTH);
+		int requestId = 0;
+		GatewayProtocol.login(request, ++requestId, "load"+index);
+		call(client, request, response, requestId);
+		//either side, at levels which do not cross.
+		OrderType side = index % 2 == 0 ? OrderType.BUY : OrderType.SELL;
+		int price = index % 2 == 0 ? 300 + index % 10 : 320 + index % 10;
+		while(running){
+			long start = System.nanoTime();
+			GatewayProtocol.register(request, ++requestId, side, price, QUANTITY);
+			long orderId = call(client, request, response, requestId);
+			if(measuring){
+				registerLatency.recordSince(start);
+			}
+			start = System.nanoTime();
+			GatewayProtocol.cancel(request, ++requestId, orderId);
+			call(client, request, response, requestId);
+			if(measuring){
+				cancelLatency.recordSince(start);
+			}
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 * @return The value of the response.
+	 */
+	private static long call(SocketChannel client, ByteBuffer request, ByteBuffer response, int requestId) throws IOException {
+		request.flip();
+		while(request.hasRemaining()){
+			client.write(request);
+		}
+		request.clear();
+		response.clear();
+		while(response.hasRemaining()){
+			if(client.read(response) < 0){
+				throw new EOFException("Connection closed by the server");
+			}
+		}
+		ResultCode code = GatewayProtocol.resultCode(response.get(1));
+		if(ResultCode.OK != code || response.getInt(GatewayProtocol.REQUEST_ID_OFFSET) != requestId){
+			throw new IllegalStateException("Request "+requestId+" failed: "+code);
+		}
+		return response.getLong(GatewayProtocol.VALUE_OFFSET);
+	}
+
+	private void report(int connections, long elapsedNanos){
+		LatencySnapshot register = registerLatency.snapshot();
+		LatencySnapshot cancel = cancelLatency.snapshot();
+		long requests = register.getCount() + cancel.getCount();
+		System.out.println(connections+" connections: "+requests * 1000000000L / elapsedNanos+" requests/s");
+		report("REGISTER", register);
+		report("CANCEL", cancel);
+	}
+
+	private static void report(String request, LatencySnapshot latency){
+		System.out.println("  "+request+": "+latency.getCount()+", latency (us) p50="+latency.getP50() / 1000
+			+" p99="+latency.getP99() / 1000+" p99.9="+latency.getP999() / 1000+" max="+latency.getMax() / 1000);
+	}
+}
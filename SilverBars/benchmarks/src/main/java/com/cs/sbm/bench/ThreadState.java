@@ -0,0 +1,36 @@
+package com.cs.sbm.bench;
+
+import java.util.SplittableRandom;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * State of a benchmark thread: picks the side and the price of the next order, within the depth of the book.
+ * @author Nat
+ *
+ */
+@State(Scope.Thread)
+public class ThreadState {
+
+	private final SplittableRandom random = new SplittableRandom(42);
+
+	OrderType side;
+	int price;
+
+	/**
+	 * Picks the side and the price of the next order, at an existing level of the book.
+	 */
+	void next(BookState book){
+		int level = random.nextInt(book.bookDepth);
+		if(random.nextBoolean()){
+			side = OrderType.BUY;
+			price = BookState.MID_PRICE - 1 - level;
+		}else{
+			side = OrderType.SELL;
+			price = BookState.MID_PRICE + 1 + level;
+		}
+	}
+}
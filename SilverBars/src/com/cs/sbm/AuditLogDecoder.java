@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package com.cs.sbm;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.cs.sbm.impl.AuditLog;
+import com.cs.sbm.impl.FixedPointQuantity;
+
+/**
+ * A console tool to decode the binary audit files written by {@link AuditLog}, one line per record.
+ *
+ * Usage: AuditLogDecoder &lt;file or directory&gt;...
+ * The files of a directory are decoded in the order of their index.
+ * @author Nat
+ *
+ */
+public class AuditLogDecoder {
+
+	/**
+	 * Main method to start this program.
+	 * @param args The audit files, or the directories holding them.
+	 */
+	public static void main(String[] args) {
+		if(args.length == 0){
+			System.out.println("Usage: AuditLogDecoder <file or directory>...");
+			return;
+		}
+		for(String arg : args){
+			for(File file : files(new File(arg))){
+				decode(file, System.out);
+			}
+		}
+	}
+
+	/**
+	 * Decodes an audit file.
+	 * @param file The file.
+	 * @param out Where to print the records.
+	 * @return Number of records decoded.
+	 */
+	public static int decode(File file, PrintStream out){
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		return AuditLog.read(file, (timeMillis, event, orderId, side, price, quantity, rested, quantityScale) ->
+			out.println(format.format(new Date(timeMillis))+" "+event+" "+side+" order "+orderId+" for "+FixedPointQuantity.toBigDecimal(quantity, quantityScale)+" @ \u00a3"+price
+				//partially filled on arrival.
+				+(AuditLog.Event.REGISTERED == event && rested != quantity ? ", "+FixedPointQuantity.toBigDecimal(rested, quantityScale)+" rested" : "")));
+	}
+
+	/**
+	 * Utility method to list the audit files of a directory, in the order of their index.
+	 */
+	private static List<File> files(File file){
+		if(!file.isDirectory()){
+			return Arrays.asList(file);
+		}
+		File[] files = file.listFiles((dir, name) -> name.endsWith(AuditLog.EXTENSION));
+		List<File> sorted = new ArrayList<>(Arrays.asList(files == null ? new File[0] : files));
+		sorted.sort((a, b) -> {
+			int byName = prefix(a).compareTo(prefix(b));
+			return byName != 0 ? byName : Integer.compare(index(a), index(b));
+		});
+		return sorted;
+	}
+
+	private static String prefix(File file){
+		String name = file.getName();
+		return name.substring(0, name.lastIndexOf('-'));
+	}
+
+	private static int index(File file){
+		String name = file.getName();
+		return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.length() - AuditLog.EXTENSION.length()));
+	}
+}
@@ -3,6 +3,7 @@
  */
 package com.cs.sbm;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.util.LinkedHashSet;
 import java.util.Scanner;
@@ -16,6 +17,9 @@ import com.cs.sbm.impl.OrderBoardImpl;
 /**
  * A simple console based user interface for OrderBoard
  * Note that this provided just to interact with the main {@link OrderBoardImpl} class as such complicated usecase scenarios have not been considered.
+ *
+ * Usage: OrderBoardUI [command file]
+ * Given a file, the commands of the file are replayed at full speed rather than read from the console, see {@link OrderReplay}.
  * @author Nat
  *
  */
@@ -39,9 +43,13 @@ public class OrderBoardUI {
 	}
 	/**
 	 * Main method to start this program.
-	 * @param args
+	 * @param args Optionally, a file of commands to replay.
 	 */
 	public static void main(String[] args) {
+		if(args.length > 0){
+			replay(new File(args[0]));
+			return;
+		}
 		//initialise the orderboard.
 		OrderBoard orderboard = new OrderBoardImpl();
 		printUsage();
@@ -71,7 +79,7 @@ public class OrderBoardUI {
 					continue;
 				}
 				try{
-					int orderId = Integer.parseInt(parts[1]);
+					long orderId = Long.parseLong(parts[1]);
 					boolean success = orderboard.cancelOrder(orderId);
 					if(success){
 						System.out.println("Order "+orderId+" cancelled successfully.");
@@ -96,7 +104,7 @@ public class OrderBoardUI {
 				OrderType type = OrderType.valueOf(parts[2].toUpperCase());
 				int price = Integer.parseInt(parts[3]);
 				BigDecimal qty = new BigDecimal(parts[4]);
-				int orderId = orderboard.registerOrder(username, type, price, qty);
+				long orderId = orderboard.registerOrder(username, type, price, qty);
 				System.out.println("Order registered successfully with order id "+orderId);
 				printSummary(orderboard.getSummary());
 			}
@@ -107,6 +115,17 @@ public class OrderBoardUI {
 	}
 	
 	
+	/**
+	 * Replays a file of commands against a new orderboard, then prints the throughput, the latencies and the final orderbook summary.
+	 */
+	private static void replay(File file){
+		OrderBoard orderboard = new OrderBoardImpl();
+		OrderReplay replay = new OrderReplay(orderboard);
+		replay.replay(file);
+		replay.report(System.out);
+		printSummary(orderboard.getSummary());
+	}
+	
 	private static void printUsage(){
 		StringBuilder sb = new StringBuilder();
 		sb.append("Enter a supported command. Supported commands are "+COMMANDS).append("\n");
@@ -0,0 +1,519 @@
+package com.cs.sbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.gateway.GatewayProtocol;
+import com.cs.sbm.gateway.OrderGateway;
+import com.cs.sbm.impl.LatencyHistogram;
+import com.cs.sbm.impl.LatencySnapshot;
+import com.cs.sbm.impl.UserRegistry;
+
+/**
+ * Replays a file of commands against an {@link OrderBoard}, as fast as the orderboard takes them, eg: for capacity testing, or to reproduce an incident from a captured order flow.
+ * The time taken by every command is recorded, and {@link #report(PrintStream)} prints the throughput and the latency percentiles of the replay.
+ *
+ * The file is memory mapped, and parsed in place, byte by byte: no line, token or number is decoded into an object. A user name is only decoded the first time it is seen,
+ * its ID is cached for the next commands. The file is read in one of two forms:
+ * <ul>
+ * <li>Text: one command per line, in the syntax of {@link OrderBoardUI}, ie: <code>REGISTER &lt;USERNAME&gt; &lt;BUY|SELL&gt; &lt;PRICE&gt; &lt;QUANTITY&gt;</code>,
+ * <code>CANCEL &lt;ORDERID&gt;</code>, <code>SUMMARY</code> and <code>EXIT</code>, which ends the replay. Commands are case insensitive, blank lines and lines starting with # are skipped.</li>
+ * <li>Binary: the request frames of {@link GatewayProtocol}, back to back, as sent to an {@link OrderGateway}. A LOGIN sets the user of the REGISTERs after it.</li>
+ * </ul>
+ * A file whose first byte is a control character (as every request type of {@link GatewayProtocol} is, and no text command is) is read as binary.
+ *
+ * CANCEL takes the orderId as is. Replayed on a new orderboard, a captured order flow gets the orderIds it got when it was captured, as orderboards hand them out deterministically.
+ * A command which cannot be parsed is counted as invalid and skipped. Not thread safe.
+ * @author Nat
+ *
+ */
+public final class OrderReplay {
+
+	/** Size of a mapping of the file. A text line must fit in it. */
+	private static final int MAP_SIZE = 1 << 30;
+	private static final byte[] REGISTER = bytes(OrderBoardUI.REGISTER);
+	private static final byte[] CANCEL = bytes(OrderBoardUI.CANCEL);
+	private static final byte[] SUMMARY = bytes(OrderBoardUI.SUMMARY);
+	private static final byte[] EXIT = bytes(OrderBoardUI.EXIT);
+	private static final byte[] BUY = bytes(OrderType.BUY.name());
+	private static final byte[] SELL = bytes(OrderType.SELL.name());
+	private static final OrderType[] ORDER_TYPES = OrderType.values();
+	/** Returned by {@link #number(int)} for a token which is not a number. */
+	private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+	/** The orderboard. */
+	private final OrderBoard board;
+	/** Scale of the quantities of the orderboard. */
+	private final int scale;
+	private final LatencyHistogram registerLatency = new LatencyHistogram();
+	private final LatencyHistogram cancelLatency = new LatencyHistogram();
+	private final LatencyHistogram summaryLatency = new LatencyHistogram();
+	private final UserCache users = new UserCache();
+
+	private long registerFailures;
+	private long cancelFailures;
+	private long invalid;
+	/** Line (or frame, for a binary file) of the first invalid command, from 1. */
+	private long firstInvalid;
+	/** Lines (or frames) read so far. */
+	private long records;
+	private long elapsedNanos;
+	/** Whether an EXIT has been read. */
+	private boolean stopped;
+
+	/*
+	 * State of the text parser: the mapping being parsed, the end of the current line and the current token.
+	 */
+	private ByteBuffer buffer;
+	private int lineEnd;
+	private int tokenStart;
+	private int tokenEnd;
+
+	/**
+	 *
+	 * @param board The orderboard to replay to.
+	 */
+	public OrderReplay(OrderBoard board) {
+		this.board = board;
+		this.scale = board.getQuantityScale();
+	}
+
+	/**
+	 * Replays a file. May be called for several files, in which case the statistics add up.
+	 * @param file The file, in text or binary form.
+	 * @throws UncheckedIOException if the file cannot be read.
+	 */
+	public void replay(File file){
+		long start = System.nanoTime();
+		stopped = false;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			long size = channel.size();
+			long position = 0;
+			boolean binary = false;
+			while(position < size && !stopped){
+				long length = Math.min(size - position, MAP_SIZE);
+				ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				if(position == 0){
+					int first = mapping.get(0) & 0xff;
+					binary = first < ' ' && first != '\t' && first != '\r' && first != '\n';
+				}
+				boolean last = position + length == size;
+				int consumed = binary ? binary(mapping, last) : text(mapping, last);
+				if(consumed == 0){
+					throw new IllegalArgumentException("Line "+(records + 1)+" of "+file+" is longer than "+MAP_SIZE+" bytes");
+				}
+				position += consumed;
+			}
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to replay "+file, ex);
+		}finally{
+			buffer = null;
+			elapsedNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Replays the complete lines of a mapping, and the last line of the file even if it does not end with a new line.
+	 * @return Number of bytes replayed.
+	 */
+	private int text(ByteBuffer mapping, boolean last){
+		buffer = mapping;
+		int limit = mapping.limit();
+		int start = 0;
+		while(start < limit && !stopped){
+			int end = start;
+			while(end < limit && mapping.get(end) != '\n'){
+				end++;
+			}
+			if(end == limit && !last){
+				break;
+			}
+			lineEnd = end > start && mapping.get(end - 1) == '\r' ? end - 1 : end;
+			records++;
+			line(start);
+			start = Math.min(end + 1, limit);
+		}
+		return start;
+	}
+
+	/**
+	 * Parses and executes the line starting at the given position.
+	 */
+	private void line(int start){
+		tokenEnd = start;
+		if(!next() || buffer.get(tokenStart) == '#'){
+			return;
+		}
+		if(is(REGISTER)){
+			boolean named = next();
+			int nameStart = tokenStart;
+			int nameLength = tokenEnd - tokenStart;
+			OrderType orderType = next() ? is(BUY) ? OrderType.BUY : is(SELL) ? OrderType.SELL : null : null;
+			long price = next() ? number(0) : NOT_A_NUMBER;
+			long quantity = next() ? number(scale) : NOT_A_NUMBER;
+			if(!named || orderType == null || price < Integer.MIN_VALUE || price > Integer.MAX_VALUE || quantity == NOT_A_NUMBER || next()){
+				invalid();
+				return;
+			}
+			register(users.find(buffer, nameStart, nameLength, StandardCharsets.UTF_8), orderType, (int) price, quantity);
+		}else if(is(CANCEL)){
+			long orderId = next() ? number(0) : NOT_A_NUMBER;
+			if(orderId == NOT_A_NUMBER || next()){
+				invalid();
+				return;
+			}
+			cancel(orderId);
+		}else if(is(SUMMARY)){
+			if(next()){
+				invalid();
+				return;
+			}
+			long startNanos = System.nanoTime();
+			board.getSummary();
+			summaryLatency.recordSince(startNanos);
+		}else if(is(EXIT)){
+			if(next()){
+				invalid();
+				return;
+			}
+			stopped = true;
+		}else{
+			invalid();
+		}
+	}
+
+	/**
+	 * Moves to the next token of the line.
+	 * @return Whether there is one.
+	 */
+	private boolean next(){
+		int position = tokenEnd;
+		while(position < lineEnd && isSpace(buffer.get(position))){
+			position++;
+		}
+		tokenStart = position;
+		while(position < lineEnd && !isSpace(buffer.get(position))){
+			position++;
+		}
+		tokenEnd = position;
+		return tokenStart < tokenEnd;
+	}
+
+	/**
+	 * Checks whether the current token is the given (upper case) keyword, ignoring case.
+	 */
+	private boolean is(byte[] keyword){
+		if(tokenEnd - tokenStart != keyword.length){
+			return false;
+		}
+		for(int i=0; i<keyword.length; i++){
+			byte b = buffer.get(tokenStart + i);
+			if(b != keyword[i] && b != keyword[i] + ('a' - 'A')){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the current token as a decimal number, with up to <code>decimals</code> decimal places.
+	 * @return The number, in units of 10^-decimals, or {@link #NOT_A_NUMBER}.
+	 */
+	private long number(int decimals){
+		int position = tokenStart;
+		boolean negative = buffer.get(position) == '-';
+		if(negative){
+			position++;
+		}
+		long value = 0;
+		int digits = 0;
+		int fraction = -1;
+		for(; position < tokenEnd; position++){
+			byte b = buffer.get(position);
+			if(b == '.' && fraction < 0 && decimals > 0){
+				fraction = 0;
+				continue;
+			}
+			if(b < '0' || b > '9' || fraction == decimals || value > (Long.MAX_VALUE - 9) / 10){
+				return NOT_A_NUMBER;
+			}
+			value = value * 10 + (b - '0');
+			digits++;
+			if(fraction >= 0){
+				fraction++;
+			}
+		}
+		if(digits == 0){
+			return NOT_A_NUMBER;
+		}
+		for(int i=Math.max(fraction, 0); i<decimals; i++){
+			if(value > Long.MAX_VALUE / 10){
+				return NOT_A_NUMBER;
+			}
+			value *= 10;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Replays the complete frames of a mapping. An incomplete frame at the end of the file is invalid.
+	 * @return Number of bytes replayed.
+	 */
+	private int binary(ByteBuffer mapping, boolean last){
+		int limit = mapping.limit();
+		int position = 0;
+		for(; limit - position >= GatewayProtocol.REQUEST_LENGTH; position += GatewayProtocol.REQUEST_LENGTH){
+			records++;
+			frame(mapping, position);
+		}
+		if(last && position < limit){
+			records++;
+			invalid();
+			return limit;
+		}
+		return position;
+	}
+
+	/**
+	 * Executes the frame at the given position.
+	 */
+	private void frame(ByteBuffer mapping, int position){
+		int payload = position + GatewayProtocol.PAYLOAD_OFFSET;
+		switch(mapping.get(position + GatewayProtocol.TYPE_OFFSET)){
+		case GatewayProtocol.REGISTER:{
+			int side = mapping.get(position + GatewayProtocol.SIDE_OFFSET);
+			if(side < 0 || side >= ORDER_TYPES.length){
+				invalid();
+				return;
+			}
+			register(users.current, ORDER_TYPES[side], mapping.getInt(payload), mapping.getLong(position + GatewayProtocol.QUANTITY_OFFSET));
+			return;
+		}
+		case GatewayProtocol.CANCEL:
+			cancel(mapping.getLong(payload));
+			return;
+		case GatewayProtocol.SUMMARY:{
+			long start = System.nanoTime();
+			try{
+				board.getSummary(Math.min(mapping.getInt(payload), GatewayProtocol.MAX_DEPTH), mapping.getInt(payload + Integer.BYTES));
+			}catch(IllegalArgumentException ex){
+				invalid();
+				return;
+			}
+			summaryLatency.recordSince(start);
+			return;
+		}
+		case GatewayProtocol.LOGIN:{
+			int length = mapping.getShort(position + GatewayProtocol.NAME_LENGTH_OFFSET);
+			if(length <= 0 || length > GatewayProtocol.MAX_NAME_LENGTH){
+				invalid();
+				return;
+			}
+			users.current = users.find(mapping, payload, length, StandardCharsets.ISO_8859_1);
+			return;
+		}
+		default:
+			invalid();
+		}
+	}
+
+	private void register(int userId, OrderType orderType, int price, long quantity){
+		long start = System.nanoTime();
+		try{
+			board.registerOrder(userId, orderType, price, quantity);
+		}catch(RuntimeException ex){
+			//ie: invalid quantity, or the orderboard is full.
+			registerFailures++;
+		}
+		registerLatency.recordSince(start);
+	}
+
+	private void cancel(long orderId){
+		long start = System.nanoTime();
+		if(!board.cancelOrder(orderId)){
+			cancelFailures++;
+		}
+		cancelLatency.recordSince(start);
+	}
+
+	private void invalid(){
+		if(invalid++ == 0){
+			firstInvalid = records;
+		}
+	}
+
+	/**
+	 * Prints the throughput and the latencies of the replay.
+	 */
+	public void report(PrintStream out){
+		long commands = getCommands();
+		long millis = elapsedNanos / 1000000;
+		out.println("Replayed "+commands+" commands in "+millis+" ms, ie: "+(elapsedNanos == 0 ? 0 : commands * 1000000000L / elapsedNanos)+" commands/s");
+		report(out, OrderBoardUI.REGISTER, registerLatency.snapshot(), registerFailures+" failed");
+		report(out, OrderBoardUI.CANCEL, cancelLatency.snapshot(), cancelFailures+" unknown");
+		report(out, OrderBoardUI.SUMMARY, summaryLatency.snapshot(), null);
+		if(invalid > 0){
+			out.println(invalid+" invalid commands, the first at record "+firstInvalid);
+		}
+	}
+
+	private static void report(PrintStream out, String command, LatencySnapshot latency, String failures){
+		out.println(command+": "+latency.getCount()+(failures == null ? "" : " ("+failures+")")+", latency (ns) p50="+latency.getP50()+" p99="+latency.getP99()
+			+" p99.9="+latency.getP999()+" max="+latency.getMax());
+	}
+
+	/**
+	 *
+	 * @return Number of commands executed, ie: registers, cancels and summaries, including the registers and cancels which failed.
+	 */
+	public long getCommands(){
+		return registerLatency.getCount() + cancelLatency.getCount() + summaryLatency.getCount();
+	}
+
+	/**
+	 *
+	 * @return Number of registers which failed.
+	 */
+	public long getRegisterFailures(){
+		return registerFailures;
+	}
+
+	/**
+	 *
+	 * @return Number of cancels of an order which was not live.
+	 */
+	public long getCancelFailures(){
+		return cancelFailures;
+	}
+
+	/**
+	 *
+	 * @return Number of commands which could not be parsed.
+	 */
+	public long getInvalidCommands(){
+		return invalid;
+	}
+
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	public LatencySnapshot getRegisterLatency(){
+		return registerLatency.snapshot();
+	}
+
+	public LatencySnapshot getCancelLatency(){
+		return cancelLatency.snapshot();
+	}
+
+	public LatencySnapshot getSummaryLatency(){
+		return summaryLatency.snapshot();
+	}
+
+	private static boolean isSpace(byte b){
+		return b == ' ' || b == '\t';
+	}
+
+	private static byte[] bytes(String keyword){
+		return keyword.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * The IDs of the user names seen so far, keyed by the bytes of the name, so a name is only decoded (and registered) once.
+	 * An open addressing hash table, which does not allocate on a hit.
+	 */
+	private final class UserCache {
+		private byte[][] names = new byte[64][];
+		private int[] ids = new int[64];
+		private int size;
+		/** The user of the last LOGIN, for a binary file. */
+		int current = UserRegistry.NO_USER;
+
+		/**
+		 * Looks up the ID of the user name in the given bytes, registering the user on first sight.
+		 */
+		int find(ByteBuffer bytes, int offset, int length, Charset charset){
+			int mask = names.length - 1;
+			for(int slot = hash(bytes, offset, length) & mask; ; slot = (slot + 1) & mask){
+				byte[] name = names[slot];
+				if(name == null){
+					return add(slot, bytes, offset, length, charset);
+				}
+				if(equals(name, bytes, offset, length)){
+					return ids[slot];
+				}
+			}
+		}
+
+		private int add(int slot, ByteBuffer bytes, int offset, int length, Charset charset){
+			byte[] name = new byte[length];
+			bytes.get(offset, name);
+			int id = board.registerUser(new String(name, charset));
+			names[slot] = name;
+			ids[slot] = id;
+			if(++size > names.length >>> 1){
+				grow();
+			}
+			return id;
+		}
+
+		private void grow(){
+			byte[][] oldNames = names;
+			int[] oldIds = ids;
+			names = new byte[oldNames.length * 2][];
+			ids = new int[oldIds.length * 2];
+			int mask = names.length - 1;
+			for(int i=0; i<oldNames.length; i++){
+				byte[] name = oldNames[i];
+				if(name != null){
+					int slot = spread(Arrays.hashCode(name)) & mask;
+					while(names[slot] != null){
+						slot = (slot + 1) & mask;
+					}
+					names[slot] = name;
+					ids[slot] = oldIds[i];
+				}
+			}
+		}
+
+		/**
+		 * Same as {@link Arrays#hashCode(byte[])}, over the given bytes.
+		 */
+		private int hash(ByteBuffer bytes, int offset, int length){
+			int hash = 1;
+			for(int i=0; i<length; i++){
+				hash = 31 * hash + bytes.get(offset + i);
+			}
+			return spread(hash);
+		}
+
+		private boolean equals(byte[] name, ByteBuffer bytes, int offset, int length){
+			if(name.length != length){
+				return false;
+			}
+			for(int i=0; i<length; i++){
+				if(name[i] != bytes.get(offset + i)){
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Spreads the high bits of a hash code to its low bits, which select the slot.
+	 */
+	private static int spread(int hash){
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,73 @@
+package com.cs.sbm.api;
+
+import java.util.Arrays;
+
+/**
+ * The outcome of a batch of register/cancel, item by item, in the order of the batch.
+ * See {@link OrderBoard#registerOrders(java.util.List)} and {@link OrderBoard#cancelOrders(long[])}.
+ * @author Nat
+ *
+ */
+public final class BatchResult {
+	/**
+	 * The orderIds of the items. For a registered order, the orderId it has been given, otherwise -1.
+	 */
+	private final long[] orderIds;
+	/**
+	 * The outcome of the items.
+	 */
+	private final ResultCode[] codes;
+
+	/**
+	 * Constructor to create the result. The arrays are owned by the result from then on.
+	 * @param orderIds The orderIds of the items.
+	 * @param codes The outcome of the items.
+	 */
+	public BatchResult(long[] orderIds, ResultCode[] codes) {
+		if(orderIds.length != codes.length){
+			throw new IllegalArgumentException("Got "+orderIds.length+" orderIds for "+codes.length+" items");
+		}
+		this.orderIds = orderIds;
+		this.codes = codes;
+	}
+
+	/**
+	 *
+	 * @return Number of items of the batch.
+	 */
+	public int size() {
+		return codes.length;
+	}
+
+	/**
+	 *
+	 * @param index The index of the item in the batch.
+	 * @return The orderId of the item, or -1 if the order has not been registered.
+	 */
+	public long getOrderId(int index) {
+		return orderIds[index];
+	}
+
+	/**
+	 *
+	 * @param index The index of the item in the batch.
+	 * @return The outcome of the item.
+	 */
+	public ResultCode getCode(int index) {
+		return codes[index];
+	}
+
+	/**
+	 *
+	 * @param index The index of the item in the batch.
+	 * @return true if the item has been processed successfully.
+	 */
+	public boolean isSuccess(int index) {
+		return ResultCode.OK == codes[index];
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult [orderIds=" + Arrays.toString(orderIds) + ", codes=" + Arrays.toString(codes) + "]";
+	}
+}
@@ -4,6 +4,7 @@
 package com.cs.sbm.api;
 
 import java.math.BigDecimal;
+import java.util.List;
 
 /**
  * Interface for OrderBoard. 
@@ -18,20 +19,95 @@ public interface OrderBoard {
 	 * @param orderType The type of the order. Either by or sell.
 	 * @param orderPrice The order price, in GBP.
 	 * @param quantity Order quantity.
+	 * @return The order ID, see {@link #registerOrder(int, OrderType, int, long)} for an order filled on arrival.
+	 */
+	public long registerOrder(String userName, OrderType orderType, int orderPrice, BigDecimal quantity);
+	/**
+	 * Registers an order, with the quantity given in fixed point units.
+	 * This avoids creating a BigDecimal for every order.
+	 * @param userName Name of the user placing this order.
+	 * @param orderType The type of the order. Either by or sell.
+	 * @param orderPrice The order price, in GBP.
+	 * @param quantity Order quantity, in units of 10^-{@link #getQuantityScale()} kg.
+	 * @return The order ID, see {@link #registerOrder(int, OrderType, int, long)} for an order filled on arrival.
+	 */
+	public long registerOrder(String userName, OrderType orderType, int orderPrice, long quantity);
+	/**
+	 * Registers a user, typically once when its session starts, so its orders can be registered by user ID rather than by name.
+	 * A user registered twice keeps the same ID.
+	 * @param userName Name of the user.
+	 * @return The ID of the user.
+	 */
+	public int registerUser(String userName);
+	/**
+	 * Registers an order for a user registered with {@link #registerUser(String)}, with the quantity given in fixed point units.
+	 * When the orderboard matches orders, an order completely filled on arrival never rests on the orderbook: its ID is returned, but is already stale,
+	 * ie: cancelling it returns false.
+	 * @param userId The ID of the user.
+	 * @param orderType The type of the order. Either by or sell.
+	 * @param orderPrice The order price, in GBP.
+	 * @param quantity Order quantity, in units of 10^-{@link #getQuantityScale()} kg. Must be positive.
 	 * @return The order ID.
+	 * @throws IllegalArgumentException if the user is not registered, there is no order type or the quantity is not positive.
+	 */
+	public long registerOrder(int userId, OrderType orderType, int orderPrice, long quantity);
+	/**
+	 * Registers a batch of orders, with the quantities given in fixed point units.
+	 * Listeners are notified once for the whole batch. The orders are registered in the order of the batch, hence at the same price, in time priority.
+	 * @param requests The orders.
+	 * @return The orderId and outcome of every order, in the order of the batch. A request which can not be registered does not fail the others.
+	 * The orderId of an order filled on arrival is already stale, see {@link #registerOrder(int, OrderType, int, long)}.
+	 */
+	public BatchResult registerOrders(List<OrderRequest> requests);
+	/**
+	 * The number of decimal places of the fixed point quantities used by this orderboard.
+	 * @return The quantity scale. For example 3, if quantities are held in thousandths of a kg.
 	 */
-	public int registerOrder(String userName, OrderType orderType, int orderPrice, BigDecimal quantity);
+	public int getQuantityScale();
 	/**
 	 * Cancels an order identified by the orderId
 	 * @param orderId The ID of the order to be cancelled.
 	 * @return true if the order cancelled successfully, otherwise false.
 	 */
-	public boolean cancelOrder( int orderId);
+	public boolean cancelOrder(long orderId);
+	/**
+	 * Cancels a batch of orders. Listeners are notified once for the whole batch.
+	 * @param orderIds The IDs of the orders to be cancelled.
+	 * @return The outcome of every cancellation, in the order of the batch. An order which was already cancelled is reported as {@link ResultCode#OK}.
+	 */
+	public BatchResult cancelOrders(long[] orderIds);
+	/**
+	 * Gets the live orders of a user.
+	 * @param userName Name of the user.
+	 * @return The IDs of the live orders of the user, in the order they have been registered. Empty if the user has no live orders.
+	 */
+	public long[] getOrdersForUser(String userName);
+	/**
+	 * Cancels all the live orders of a user, for example when the user disconnects.
+	 * The orders are cancelled as a batch, so every price level is updated once and listeners are notified once.
+	 * @param userName Name of the user.
+	 * @return The outcome of every cancellation, see {@link #cancelOrders(long[])}.
+	 */
+	public BatchResult cancelAllForUser(String userName);
 	/**
 	 * Gets the summary of the orders.
 	 * @return The summary of the orders.
 	 */
 	public OrderBookSummary getSummary();
+	/**
+	 * Gets the summary of the best price levels of either side.
+	 * @param depth Maximum number of price levels per side.
+	 * @return The summary of the best price levels.
+	 */
+	public OrderBookSummary getSummary(int depth);
+	/**
+	 * Gets the summary of the best price bands of either side, price levels being aggregated into bands of <code>bucketSize</code>.
+	 * For example, a bucket size of 5 aggregates the levels into &pound;5 bands.
+	 * @param depth Maximum number of price bands per side.
+	 * @param bucketSize The width of a price band, in GBP.
+	 * @return The summary of the best price bands.
+	 */
+	public OrderBookSummary getSummary(int depth, int bucketSize);
 	/**
 	 * Register a listener for orderbook update events.
 	 * @param listener The listener.
@@ -42,4 +118,24 @@ public interface OrderBoard {
 	 * @param listener The listener.
 	 */
 	public void removeUpdateListener(OrderUpdateListener listener);
+	/**
+	 * Register a listener for the changes of the price levels.
+	 * @param listener The listener.
+	 */
+	public void addDeltaListener(OrderBookDeltaListener listener);
+	/**
+	 * Unregisters a listener from receiving the changes of the price levels.
+	 * @param listener The listener.
+	 */
+	public void removeDeltaListener(OrderBookDeltaListener listener);
+	/**
+	 * Register a listener for the trades, when matching is enabled.
+	 * @param listener The listener.
+	 */
+	public void addTradeListener(TradeListener listener);
+	/**
+	 * Unregisters a listener from receiving the trades.
+	 * @param listener The listener.
+	 */
+	public void removeTradeListener(TradeListener listener);
 }
@@ -0,0 +1,45 @@
+package com.cs.sbm.api;
+
+/**
+ * Interface that should be implemented by consumers which maintain their own copy of the orderbook, to receive the changes of the price levels.
+ *
+ * Unlike {@link OrderUpdateListener}, which receives the whole orderbook on every update, a delta listener receives one event per price level changed,
+ * so the cost of an update does not grow with the depth of the orderbook.
+ *
+ * Every event carries a sequence number, which increases by one from an event to the next. A consumer which misses events (ie: a gap in the sequence),
+ * or joins late, requests a full snapshot through {@link OrderBoard#getSummary()} and resumes with the events after {@link OrderBookSummary#getSequence()}.
+ * Events carry the state of the price level after the change rather than a difference, so replaying an event already reflected by the snapshot is harmless.
+ *
+ * Events are delivered in sequence order, on a thread which changed the orderbook, once its register/cancel is done (and committed, when journaling).
+ * A level changed several times in the meantime gets a single event. Hence, implementations should not block, as a blocked listener holds up
+ * the threads publishing their changes. (A listener blocking on a virtual thread does not pin its carrier though, the events are delivered under a j.u.c lock.)
+ * @author Nat
+ *
+ */
+public interface OrderBookDeltaListener {
+	/**
+	 * A price level has been added to the orderbook.
+	 * @param sequence The sequence number of this event.
+	 * @param side The side of the price level.
+	 * @param price The price of the level.
+	 * @param numberOfOrders Number of orders at the level.
+	 * @param quantity Cumulative quantity of the orders at the level, in fixed point units. See {@link OrderBoard#getQuantityScale()}
+	 */
+	public void onLevelAdded(long sequence, OrderType side, int price, int numberOfOrders, long quantity);
+	/**
+	 * An order has been added to, or removed from, an existing price level.
+	 * @param sequence The sequence number of this event.
+	 * @param side The side of the price level.
+	 * @param price The price of the level.
+	 * @param numberOfOrders Number of orders at the level, after the change.
+	 * @param quantity Cumulative quantity of the orders at the level after the change, in fixed point units. See {@link OrderBoard#getQuantityScale()}
+	 */
+	public void onLevelChanged(long sequence, OrderType side, int price, int numberOfOrders, long quantity);
+	/**
+	 * The last order of a price level has been removed.
+	 * @param sequence The sequence number of this event.
+	 * @param side The side of the price level.
+	 * @param price The price of the level.
+	 */
+	public void onLevelRemoved(long sequence, OrderType side, int price);
+}
@@ -18,6 +18,10 @@ public class OrderBookSummary {
 	 * List of SELL price levels.
 	 */
 	private final List<PriceLevelSummary> sells;
+	/**
+	 * Sequence of the last {@link OrderBookDeltaListener} event reflected by this snapshot.
+	 */
+	private final long sequence;
 	
 	/**
 	 * Constructor to create the snapshot.
@@ -25,9 +29,19 @@ public class OrderBookSummary {
 	 * @param sells List of sell price levels.
 	 */
 	public OrderBookSummary(List<PriceLevelSummary> buys, List<PriceLevelSummary> sells) {
+		this(buys, sells, 0L);
+	}
+	/**
+	 * Constructor to create the snapshot, as of a sequence of the delta events.
+	 * @param buys List of buy price levels.
+	 * @param sells List of sell price levels.
+	 * @param sequence Sequence of the last delta event reflected by this snapshot.
+	 */
+	public OrderBookSummary(List<PriceLevelSummary> buys, List<PriceLevelSummary> sells, long sequence) {
 		super();
 		this.buys = buys;
 		this.sells = sells;
+		this.sequence = sequence;
 	}
 	/**
 	 * 
@@ -43,6 +57,14 @@ public class OrderBookSummary {
 	public List<PriceLevelSummary> getSells() {
 		return sells;
 	}
+	/**
+	 * Delta events with a higher sequence are yet to be applied on top of this snapshot.
+	 * The sequence is not part of the equality, two snapshots with the same levels are equal.
+	 * @return Sequence of the last {@link OrderBookDeltaListener} event reflected by this snapshot.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,64 @@
+package com.cs.sbm.api;
+
+/**
+ * A request to register an order, as part of a batch. See {@link OrderBoard#registerOrders(java.util.List)}.
+ * @author Nat
+ *
+ */
+public final class OrderRequest {
+	/**
+	 * Name of the user placing the order.
+	 */
+	private final String userName;
+	/**
+	 * The type of the order.
+	 */
+	private final OrderType orderType;
+	/**
+	 * The order price, in GBP.
+	 */
+	private final int orderPrice;
+	/**
+	 * Order quantity, in fixed point units.
+	 */
+	private final long quantity;
+
+	/**
+	 * Constructor to create the request.
+	 * @param userName Name of the user placing the order.
+	 * @param orderType The type of the order.
+	 * @param orderPrice The order price, in GBP.
+	 * @param quantity Order quantity, in units of 10^-{@link OrderBoard#getQuantityScale()} kg.
+	 */
+	public OrderRequest(String userName, OrderType orderType, int orderPrice, long quantity) {
+		this.userName = userName;
+		this.orderType = orderType;
+		this.orderPrice = orderPrice;
+		this.quantity = quantity;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public OrderType getOrderType() {
+		return orderType;
+	}
+
+	public int getOrderPrice() {
+		return orderPrice;
+	}
+
+	/**
+	 *
+	 * @return Order quantity, in fixed point units.
+	 */
+	public long getQuantity() {
+		return quantity;
+	}
+
+	@Override
+	public String toString() {
+		return "OrderRequest [userName=" + userName + ", orderType=" + orderType + ", orderPrice=" + orderPrice + ", quantity=" + quantity + "]";
+	}
+}
@@ -0,0 +1,21 @@
+package com.cs.sbm.api;
+
+/**
+ * The outcome of an item of a batch. See {@link BatchResult}.
+ * @author Nat
+ *
+ */
+public enum ResultCode {
+	/** The order has been registered, or cancelled. */
+	OK,
+	/** The request is invalid, ie: no order type or a quantity which is not positive. */
+	INVALID_REQUEST,
+	/** The orderboard already holds as many live orders as it can. */
+	CAPACITY_EXCEEDED,
+	/** There is no such order, or the orderId is stale. */
+	UNKNOWN_ORDER,
+	/** The order has already been filled, it cannot be cancelled. */
+	ALREADY_FILLED,
+	/** The orderboard failed to process the item, ie: the journal could not be written. */
+	FAILED;
+}
@@ -0,0 +1,22 @@
+package com.cs.sbm.api;
+
+/**
+ * Interface that should be implemented by consumers to receive the trades of the orderboard, when matching is enabled.
+ *
+ * A trade is reported as primitives, so that matching does not allocate. Trades are reported on the thread which registered the incoming order,
+ * in the order they happen and under the lock of the price level, hence implementations must not block nor call back into the orderboard.
+ * @author Nat
+ *
+ */
+public interface TradeListener {
+	/**
+	 * An incoming order has been matched against a resting order.
+	 * @param incomingOrderId The ID of the incoming (aggressing) order.
+	 * @param restingOrderId The ID of the resting order.
+	 * @param incomingSide The side of the incoming order.
+	 * @param price The price of the trade, ie: the price of the resting order.
+	 * @param quantity The quantity traded, in fixed point units. See {@link OrderBoard#getQuantityScale()}
+	 * @param restingFilled true if the resting order has been completely filled.
+	 */
+	public void onTrade(long incomingOrderId, long restingOrderId, OrderType incomingSide, int price, long quantity, boolean restingFilled);
+}
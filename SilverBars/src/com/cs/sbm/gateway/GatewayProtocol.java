@@ -0,0 +1,137 @@
+package com.cs.sbm.gateway;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.api.ResultCode;
+
+/**
+ * The binary protocol of the {@link OrderGateway}. All the values are big endian (network byte order).
+ *
+ * Requests are fixed length frames of {@link #REQUEST_LENGTH} bytes, laid out as
+ * <pre>
+ *   byte type | byte side | short nameLength | int requestId | payload (24 bytes, zero padded)
+ *     LOGIN:    byte * nameLength, the user name in ISO-8859-1
+ *     REGISTER: int price | int 0 | long quantity (in fixed point units, see {@link com.cs.sbm.api.OrderBoard#getQuantityScale()})
+ *     CANCEL:   long orderId
+ *     SUMMARY:  int depth | int bucketSize
+ * </pre>
+ * Every request gets a response carrying its requestId, in the order of the requests of the connection, so a client may pipeline its requests.
+ * The responses to LOGIN, REGISTER and CANCEL are fixed length frames of {@link #RESPONSE_LENGTH} bytes,
+ * <pre>
+ *   byte type | byte code (ordinal of {@link ResultCode}) | short 0 | int requestId | long value (userId, orderId, or 0)
+ * </pre>
+ * The response to SUMMARY is a header of {@link #SUMMARY_HEADER_LENGTH} bytes followed by the BUY levels, then the SELL levels, from the best price,
+ * <pre>
+ *   byte type | byte code | short 0 | int requestId | long sequence | int buyLevels | int sellLevels
+ *   per level: int price | int numberOfOrders | long quantity
+ * </pre>
+ * The orders of a connection are placed for the user of its last LOGIN, or without user if the connection has not logged in.
+ * @author Nat
+ *
+ */
+public final class GatewayProtocol {
+
+	/** Length of a request frame. */
+	public static final int REQUEST_LENGTH = 32;
+	/** Length of a LOGIN, REGISTER or CANCEL response. */
+	public static final int RESPONSE_LENGTH = 16;
+	/** Length of the header of a SUMMARY response. */
+	public static final int SUMMARY_HEADER_LENGTH = 24;
+	/** Length of a level of a SUMMARY response. */
+	public static final int LEVEL_LENGTH = 16;
+	/** Maximum length of a user name, in bytes. */
+	public static final int MAX_NAME_LENGTH = REQUEST_LENGTH - 8;
+	/** Maximum depth of a summary. A deeper summary is cut to this depth. */
+	public static final int MAX_DEPTH = 1024;
+	/** Maximum length of a response. */
+	public static final int MAX_RESPONSE_LENGTH = SUMMARY_HEADER_LENGTH + 2 * MAX_DEPTH * LEVEL_LENGTH;
+
+	/** Request types. */
+	public static final byte LOGIN = 1;
+	public static final byte REGISTER = 2;
+	public static final byte CANCEL = 3;
+	public static final byte SUMMARY = 4;
+
+	/*
+	 * Offsets of the fields of a request, for the decoders.
+	 */
+	public static final int TYPE_OFFSET = 0;
+	public static final int SIDE_OFFSET = 1;
+	public static final int NAME_LENGTH_OFFSET = 2;
+	public static final int REQUEST_ID_OFFSET = 4;
+	public static final int PAYLOAD_OFFSET = 8;
+	public static final int QUANTITY_OFFSET = 16;
+	/** Offset of the value of a LOGIN, REGISTER or CANCEL response. */
+	public static final int VALUE_OFFSET = 8;
+
+	private static final ResultCode[] CODES = ResultCode.values();
+
+	private GatewayProtocol() {
+	}
+
+	/**
+	 * Writes a LOGIN request.
+	 * @throws IllegalArgumentException if the user name is longer than {@link #MAX_NAME_LENGTH} bytes.
+	 */
+	public static void login(ByteBuffer buffer, int requestId, String userName){
+		byte[] name = userName.getBytes(StandardCharsets.ISO_8859_1);
+		if(name.length > MAX_NAME_LENGTH){
+			throw new IllegalArgumentException("User name "+userName+" is longer than "+MAX_NAME_LENGTH+" bytes");
+		}
+		int start = header(buffer, LOGIN, 0, name.length, requestId);
+		buffer.put(start + PAYLOAD_OFFSET, name);
+	}
+
+	/**
+	 * Writes a REGISTER request.
+	 */
+	public static void register(ByteBuffer buffer, int requestId, OrderType orderType, int orderPrice, long quantity){
+		int start = header(buffer, REGISTER, orderType.ordinal(), 0, requestId);
+		buffer.putInt(start + PAYLOAD_OFFSET, orderPrice);
+		buffer.putLong(start + QUANTITY_OFFSET, quantity);
+	}
+
+	/**
+	 * Writes a CANCEL request.
+	 */
+	public static void cancel(ByteBuffer buffer, int requestId, long orderId){
+		int start = header(buffer, CANCEL, 0, 0, requestId);
+		buffer.putLong(start + PAYLOAD_OFFSET, orderId);
+	}
+
+	/**
+	 * Writes a SUMMARY request.
+	 */
+	public static void summary(ByteBuffer buffer, int requestId, int depth, int bucketSize){
+		int start = header(buffer, SUMMARY, 0, 0, requestId);
+		buffer.putInt(start + PAYLOAD_OFFSET, depth);
+		buffer.putInt(start + PAYLOAD_OFFSET + Integer.BYTES, bucketSize);
+	}
+
+	/**
+	 * Decodes the result code of a response.
+	 * @param code The code byte of the response.
+	 */
+	public static ResultCode resultCode(byte code){
+		return code >= 0 && code < CODES.length ? CODES[code] : ResultCode.FAILED;
+	}
+
+	/**
+	 * Utility method to write the header of a request, zero its payload and move the position of the buffer past the request.
+	 * @return The position of the request.
+	 */
+	private static int header(ByteBuffer buffer, byte type, int side, int nameLength, int requestId){
+		int start = buffer.position();
+		for(int i=0; i<REQUEST_LENGTH; i+=Long.BYTES){
+			buffer.putLong(start + i, 0L);
+		}
+		buffer.put(start + TYPE_OFFSET, type);
+		buffer.put(start + SIDE_OFFSET, (byte) side);
+		buffer.putShort(start + NAME_LENGTH_OFFSET, (short) nameLength);
+		buffer.putInt(start + REQUEST_ID_OFFSET, requestId);
+		buffer.position(start + REQUEST_LENGTH);
+		return start;
+	}
+}
@@ -0,0 +1,192 @@
+package com.cs.sbm.gateway;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.api.ResultCode;
+import com.cs.sbm.impl.PriceLevelSummary;
+import com.cs.sbm.impl.UserRegistry;
+
+/**
+ * The state of a client session of the {@link GatewayProtocol}: its request and response buffers, and the user it has logged in as.
+ * Decodes the requests read into the request buffer, executes them against the orderboard and encodes their responses into the response buffer.
+ * The transport (ie: reading the requests and writing the responses out) is left to the caller, see {@link OrderGateway} and {@link SessionServer}.
+ *
+ * Requests are decoded in place, with absolute reads from the buffer, so decoding does not allocate.
+ * Not thread safe, a session is served by one thread at a time.
+ * @author Nat
+ *
+ */
+final class GatewaySession {
+
+	private static final Logger logger = Logger.getLogger(GatewaySession.class.getName());
+	private static final OrderType[] ORDER_TYPES = OrderType.values();
+
+	/** The orderboard. */
+	private final OrderBoard board;
+	/** Requests read, not executed yet. In write mode. */
+	final ByteBuffer requests;
+	/** Responses, not written yet. In write mode. Grown when a response does not fit in it, even empty. */
+	ByteBuffer responses;
+	/** The user of the orders of this session. */
+	private int userId = UserRegistry.NO_USER;
+
+	/**
+	 *
+	 * @param board The orderboard.
+	 * @param requestBufferSize The size of the request buffer, a multiple of {@link GatewayProtocol#REQUEST_LENGTH}.
+	 * @param responseBufferSize The initial size of the response buffer.
+	 */
+	GatewaySession(OrderBoard board, int requestBufferSize, int responseBufferSize) {
+		this.board = board;
+		this.requests = ByteBuffer.allocateDirect(requestBufferSize);
+		this.responses = ByteBuffer.allocateDirect(responseBufferSize);
+	}
+
+	/**
+	 *
+	 * @return Whether a complete request is waiting in the request buffer, ie: it was held back as its response did not fit in the response buffer.
+	 */
+	boolean hasRequest(){
+		return requests.position() >= GatewayProtocol.REQUEST_LENGTH;
+	}
+
+	/**
+	 * Executes the complete requests, as long as their responses fit in the response buffer.
+	 */
+	void execute(){
+		requests.flip();
+		int position = requests.position();
+		while(requests.limit() - position >= GatewayProtocol.REQUEST_LENGTH){
+			int length = responseLength(position);
+			if(responses.remaining() < length){
+				if(responses.position() > 0){
+					//let the caller write out the responses first.
+					break;
+				}
+				responses = ByteBuffer.allocateDirect(length);
+			}
+			execute(position);
+			position += GatewayProtocol.REQUEST_LENGTH;
+		}
+		requests.position(position);
+		requests.compact();
+	}
+
+	/**
+	 *
+	 * @return The maximum length of the response to the request at the given position.
+	 */
+	private int responseLength(int position){
+		if(requests.get(position + GatewayProtocol.TYPE_OFFSET) != GatewayProtocol.SUMMARY){
+			return GatewayProtocol.RESPONSE_LENGTH;
+		}
+		int depth = Math.max(0, Math.min(requests.getInt(position + GatewayProtocol.PAYLOAD_OFFSET), GatewayProtocol.MAX_DEPTH));
+		return GatewayProtocol.SUMMARY_HEADER_LENGTH + 2 * depth * GatewayProtocol.LEVEL_LENGTH;
+	}
+
+	/**
+	 * Decodes and executes the request at the given position.
+	 */
+	private void execute(int position){
+		byte type = requests.get(position + GatewayProtocol.TYPE_OFFSET);
+		int requestId = requests.getInt(position + GatewayProtocol.REQUEST_ID_OFFSET);
+		int payload = position + GatewayProtocol.PAYLOAD_OFFSET;
+		switch(type){
+		case GatewayProtocol.REGISTER:{
+			int side = requests.get(position + GatewayProtocol.SIDE_OFFSET);
+			long quantity = requests.getLong(position + GatewayProtocol.QUANTITY_OFFSET);
+			if(side < 0 || side >= ORDER_TYPES.length || quantity <= 0){
+				respond(type, ResultCode.INVALID_REQUEST, requestId, -1);
+				return;
+			}
+			try{
+				respond(type, ResultCode.OK, requestId, board.registerOrder(userId, ORDER_TYPES[side], requests.getInt(payload), quantity));
+			}catch(RuntimeException ex){
+				logger.log(Level.FINE, "Failed to register order", ex);
+				respond(type, ResultCode.FAILED, requestId, -1);
+			}
+			return;
+		}
+		case GatewayProtocol.CANCEL:{
+			long orderId = requests.getLong(payload);
+			boolean cancelled;
+			try{
+				cancelled = board.cancelOrder(orderId);
+			}catch(RuntimeException ex){
+				logger.log(Level.FINE, "Failed to cancel order "+orderId, ex);
+				respond(type, ResultCode.FAILED, requestId, orderId);
+				return;
+			}
+			respond(type, cancelled ? ResultCode.OK : ResultCode.UNKNOWN_ORDER, requestId, orderId);
+			return;
+		}
+		case GatewayProtocol.SUMMARY:
+			summary(requestId, requests.getInt(payload), requests.getInt(payload + Integer.BYTES));
+			return;
+		case GatewayProtocol.LOGIN:{
+			int length = requests.getShort(position + GatewayProtocol.NAME_LENGTH_OFFSET);
+			if(length <= 0 || length > GatewayProtocol.MAX_NAME_LENGTH){
+				respond(type, ResultCode.INVALID_REQUEST, requestId, -1);
+				return;
+			}
+			//once per session, the name is the only thing decoded into an object.
+			byte[] name = new byte[length];
+			requests.get(payload, name);
+			userId = board.registerUser(new String(name, StandardCharsets.ISO_8859_1));
+			respond(type, ResultCode.OK, requestId, userId);
+			return;
+		}
+		default:
+			respond(type, ResultCode.INVALID_REQUEST, requestId, -1);
+		}
+	}
+
+	private void respond(byte type, ResultCode code, int requestId, long value){
+		responses.put(type);
+		responses.put((byte) code.ordinal());
+		responses.putShort((short) 0);
+		responses.putInt(requestId);
+		responses.putLong(value);
+	}
+
+	private void summary(int requestId, int depth, int bucketSize){
+		OrderBookSummary summary;
+		try{
+			summary = board.getSummary(Math.min(depth, GatewayProtocol.MAX_DEPTH), bucketSize);
+		}catch(RuntimeException ex){
+			//ie: invalid depth or bucket size.
+			responses.put(GatewayProtocol.SUMMARY);
+			responses.put((byte) ResultCode.INVALID_REQUEST.ordinal());
+			responses.putShort((short) 0);
+			responses.putInt(requestId);
+			responses.putLong(0L);
+			responses.putLong(0L);
+			return;
+		}
+		responses.put(GatewayProtocol.SUMMARY);
+		responses.put((byte) ResultCode.OK.ordinal());
+		responses.putShort((short) 0);
+		responses.putInt(requestId);
+		responses.putLong(summary.getSequence());
+		responses.putInt(summary.getBuys().size());
+		responses.putInt(summary.getSells().size());
+		for(PriceLevelSummary level : summary.getBuys()){
+			level(level);
+		}
+		for(PriceLevelSummary level : summary.getSells()){
+			level(level);
+		}
+	}
+
+	private void level(PriceLevelSummary level){
+		responses.putInt(level.getPrice());
+		responses.putInt(level.getNumberOfOrders());
+		responses.putLong(level.getCumulativeQuantityUnits());
+	}
+}
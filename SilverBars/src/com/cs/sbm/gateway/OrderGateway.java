@@ -0,0 +1,245 @@
+package com.cs.sbm.gateway;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.impl.OrderBoardImpl;
+
+/**
+ * A non blocking TCP gateway in front of an {@link OrderBoard}, speaking the fixed length binary protocol of {@link GatewayProtocol}.
+ *
+ * A single thread runs a {@link Selector} over all the connections, and executes the requests against the orderboard itself.
+ * Every connection has a direct buffer for its requests and one for its responses, allocated when it is accepted (see {@link GatewaySession}):
+ * <ul>
+ * <li>Requests are decoded in place, with absolute reads from the buffer, so decoding does not allocate. Every complete request read is executed,
+ * hence a client may pipeline as many requests as it likes.</li>
+ * <li>Responses are appended to the buffer of the connection, and written out once all the connections ready in a round of the selector have been served,
+ * so a burst of requests is answered with a few large writes rather than a write per request.</li>
+ * <li>A connection whose client does not read its responses stops being read once its response buffer is full, until the responses have been written out.</li>
+ * </ul>
+ * The orderboard is called from the gateway thread only, it is expected to be an {@link OrderBoardImpl} (or another non blocking orderboard).
+ * @author Nat
+ *
+ */
+public final class OrderGateway implements AutoCloseable {
+
+	private static final Logger logger = Logger.getLogger(OrderGateway.class.getName());
+
+	/** Size of the request buffer of a connection. */
+	private static final int REQUEST_BUFFER_SIZE = 1 << 16;
+	/** Size of the response buffer of a connection. */
+	private static final int RESPONSE_BUFFER_SIZE = 1 << 18;
+
+	/** The orderboard. */
+	private final OrderBoard board;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	/** The connections which have responses to write, at the end of the current round. Only accessed by the gateway thread. */
+	private final List<Connection> pending = new ArrayList<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts a gateway.
+	 * @param board The orderboard.
+	 * @param address The address to listen on. Port 0 picks a free port, see {@link #getLocalAddress()}.
+	 */
+	public OrderGateway(OrderBoard board, InetSocketAddress address) {
+		this.board = board;
+		try{
+			this.selector = Selector.open();
+			this.server = ServerSocketChannel.open();
+			this.server.bind(address);
+			this.server.configureBlocking(false);
+			this.server.register(selector, SelectionKey.OP_ACCEPT);
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to listen on "+address, ex);
+		}
+		this.thread = new Thread(this::run, "order-gateway");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 *
+	 * @return The address this gateway listens on.
+	 */
+	public InetSocketAddress getLocalAddress(){
+		try{
+			return (InetSocketAddress) server.getLocalAddress();
+		}catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Stops accepting connections, closes the connections and stops the gateway thread. Responses not written yet are dropped.
+	 */
+	@Override
+	public void close(){
+		running = false;
+		selector.wakeup();
+		try{
+			thread.join();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run(){
+		try{
+			while(running){
+				selector.select();
+				for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ){
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()){
+						continue;
+					}
+					try{
+						if(key.isAcceptable()){
+							accept();
+						}else{
+							Connection connection = (Connection) key.attachment();
+							if(key.isWritable()){
+								connection.flush();
+							}
+							if(key.isValid() && key.isReadable()){
+								connection.read();
+							}
+						}
+					}catch(IOException ex){
+						logger.log(Level.FINE, "Connection closed", ex);
+						close(key);
+					}
+				}
+				//write the responses of the round.
+				for(int i=0; i<pending.size(); i++){
+					Connection connection = pending.get(i);
+					if(!connection.key.isValid()){
+						continue;
+					}
+					try{
+						connection.flush();
+					}catch(IOException ex){
+						logger.log(Level.FINE, "Connection closed", ex);
+						close(connection.key);
+					}
+				}
+				pending.clear();
+			}
+		}catch(IOException | RuntimeException ex){
+			logger.log(Level.SEVERE, "Order gateway stopped", ex);
+		}finally{
+			for(SelectionKey key : selector.keys()){
+				close(key);
+			}
+			try{
+				selector.close();
+			}catch(IOException ex){
+				logger.log(Level.FINE, "Failed to close the selector", ex);
+			}
+		}
+	}
+
+	private void accept() throws IOException{
+		SocketChannel channel;
+		while((channel = server.accept()) != null){
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+		}
+	}
+
+	private static void close(SelectionKey key){
+		key.cancel();
+		try{
+			key.channel().close();
+		}catch(IOException ex){
+			logger.log(Level.FINE, "Failed to close "+key.channel(), ex);
+		}
+	}
+
+	/**
+	 * A client connection. Only accessed by the gateway thread.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		/** The buffers and the user of this connection. */
+		private final GatewaySession session = new GatewaySession(board, REQUEST_BUFFER_SIZE, RESPONSE_BUFFER_SIZE);
+		/** Whether this connection is in the list of connections to flush. */
+		private boolean flushing;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		/**
+		 * Reads the requests available, and executes them.
+		 */
+		void read() throws IOException{
+			if(channel.read(session.requests) < 0){
+				throw new IOException("End of stream");
+			}
+			session.execute();
+			if(session.responses.position() > 0 && !flushing){
+				flushing = true;
+				pending.add(this);
+			}
+		}
+
+		/**
+		 * Writes out the responses, and executes the requests held back while the response buffer was full.
+		 * The connection is only read again once all its responses have been written.
+		 */
+		void flush() throws IOException{
+			flushing = false;
+			while(true){
+				ByteBuffer responses = session.responses;
+				responses.flip();
+				channel.write(responses);
+				responses.compact();
+				if(responses.position() > 0){
+					//the client is not keeping up, wait until it reads.
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+				if(!session.hasRequest()){
+					return;
+				}
+				session.execute();
+			}
+		}
+	}
+
+	/**
+	 * Main method to start a gateway in front of a new orderboard.
+	 * Usage: OrderGateway [port]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
+		try(OrderGateway gateway = new OrderGateway(new OrderBoardImpl(), new InetSocketAddress(port))){
+			SocketAddress address = gateway.getLocalAddress();
+			System.out.println("Order gateway listening on "+address);
+			gateway.thread.join();
+		}
+	}
+}
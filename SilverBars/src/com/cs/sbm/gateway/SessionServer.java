@@ -0,0 +1,277 @@
+package com.cs.sbm.gateway;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.impl.OrderBoardImpl;
+
+/**
+ * A blocking TCP server in front of an {@link OrderBoard}, speaking the protocol of {@link GatewayProtocol}, with a thread per client session.
+ *
+ * Unlike the {@link OrderGateway}, every session is served by its own thread, which reads its requests, calls the orderboard directly and writes the responses out,
+ * with plain blocking I/O. The session threads are virtual threads when the JVM supports them (Java 21+), so thousands of mostly idle sessions cost
+ * a few KB of heap each rather than a platform thread each. On an older JVM, they are daemon platform threads with a small stack, which holds a few thousand sessions.
+ * Blocking in the orderboard is safe on a virtual thread: the locks it may wait on (the StampedLocks of the price levels and ladders, the match and journal locks,
+ * the lock of the delta listeners, under which the listeners are called) are j.u.c locks, which unmount a waiting virtual thread rather than pinning its carrier.
+ * The monitors left on the order entry path (the order store and the user index) only guard a few field updates, and never block inside.
+ *
+ * Backpressure: at most {@link #getMaxConcurrentCalls()} sessions call the orderboard at any time. Once they are all taken, the other sessions wait for a permit
+ * before executing the requests they have read, hence stop reading their socket, and their clients are eventually held by TCP flow control,
+ * rather than the orderboard being swamped by more threads than it has cores.
+ * @author Nat
+ *
+ */
+public final class SessionServer implements AutoCloseable {
+
+	private static final Logger logger = Logger.getLogger(SessionServer.class.getName());
+
+	/** Size of the request buffer of a session. */
+	private static final int REQUEST_BUFFER_SIZE = GatewayProtocol.REQUEST_LENGTH * 128;
+	/** Initial size of the response buffer of a session, grown on the first summary which does not fit. */
+	private static final int RESPONSE_BUFFER_SIZE = GatewayProtocol.RESPONSE_LENGTH * 128;
+	/** Stack size of the session threads, when they are platform threads. */
+	private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+	/** The orderboard. */
+	private final OrderBoard board;
+	private final ServerSocketChannel server;
+	/** Permits to call the orderboard. */
+	private final Semaphore calls;
+	private final int maxConcurrentCalls;
+	/** Creates the session threads. */
+	private final ThreadFactory sessionThreads;
+	private final boolean virtual;
+	/** The open sessions. */
+	private final Set<SocketChannel> sessions = ConcurrentHashMap.newKeySet();
+	/** Number of times a session had to wait for a permit. */
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong sessionCount = new AtomicLong();
+	private final Thread acceptor;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts a server, allowing as many concurrent calls to the orderboard as there are available processors.
+	 * @param board The orderboard.
+	 * @param address The address to listen on. Port 0 picks a free port, see {@link #getLocalAddress()}.
+	 */
+	public SessionServer(OrderBoard board, InetSocketAddress address) {
+		this(board, address, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Starts a server.
+	 * @param board The orderboard.
+	 * @param address The address to listen on. Port 0 picks a free port, see {@link #getLocalAddress()}.
+	 * @param maxConcurrentCalls The maximum number of sessions calling the orderboard at the same time.
+	 */
+	public SessionServer(OrderBoard board, InetSocketAddress address, int maxConcurrentCalls) {
+		if(maxConcurrentCalls <= 0){
+			throw new IllegalArgumentException("Max concurrent calls "+maxConcurrentCalls+" is not positive");
+		}
+		this.board = board;
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.calls = new Semaphore(maxConcurrentCalls);
+		ThreadFactory factory = virtualThreads();
+		this.virtual = factory != null;
+		this.sessionThreads = virtual ? factory : this::platformThread;
+		try{
+			this.server = ServerSocketChannel.open();
+			this.server.bind(address, 1024);
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to listen on "+address, ex);
+		}
+		this.acceptor = new Thread(this::accept, "session-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	/**
+	 *
+	 * @return The address this server listens on.
+	 */
+	public InetSocketAddress getLocalAddress(){
+		try{
+			return (InetSocketAddress) server.getLocalAddress();
+		}catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 *
+	 * @return Whether the sessions are served by virtual threads.
+	 */
+	public boolean isVirtual(){
+		return virtual;
+	}
+
+	/**
+	 *
+	 * @return The number of open sessions.
+	 */
+	public int getOpenSessions(){
+		return sessions.size();
+	}
+
+	/**
+	 *
+	 * @return The maximum number of sessions calling the orderboard at the same time.
+	 */
+	public int getMaxConcurrentCalls(){
+		return maxConcurrentCalls;
+	}
+
+	/**
+	 *
+	 * @return The number of times a session had to wait for the orderboard, as the maximum number of concurrent calls was reached.
+	 */
+	public long getThrottledCount(){
+		return throttled.get();
+	}
+
+	/**
+	 * Stops accepting connections and closes the sessions. Responses not written yet are dropped.
+	 */
+	@Override
+	public void close(){
+		running = false;
+		try{
+			server.close();
+		}catch(IOException ex){
+			logger.log(Level.FINE, "Failed to close the server", ex);
+		}
+		for(SocketChannel channel : sessions){
+			close(channel);
+		}
+		try{
+			acceptor.join();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void accept(){
+		try{
+			while(running){
+				SocketChannel channel = server.accept();
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				sessions.add(channel);
+				if(!running){
+					//close() may have missed it.
+					close(channel);
+					return;
+				}
+				sessionThreads.newThread(() -> serve(channel)).start();
+			}
+		}catch(ClosedChannelException ex){
+			//closed.
+		}catch(IOException | RuntimeException ex){
+			logger.log(Level.SEVERE, "Session server stopped", ex);
+		}
+	}
+
+	/**
+	 * Serves a session until its client disconnects: reads the requests, executes them and writes the responses out.
+	 */
+	private void serve(SocketChannel channel){
+		GatewaySession session = new GatewaySession(board, REQUEST_BUFFER_SIZE, RESPONSE_BUFFER_SIZE);
+		try{
+			while(channel.read(session.requests) >= 0){
+				do{
+					execute(session);
+					write(channel, session.responses);
+				}while(session.hasRequest());
+			}
+		}catch(IOException ex){
+			logger.log(Level.FINE, "Session closed", ex);
+		}catch(InterruptedException ex){
+			logger.log(Level.FINE, "Session interrupted", ex);
+		}finally{
+			close(channel);
+		}
+	}
+
+	/**
+	 * Executes the requests read, once a permit to call the orderboard has been acquired.
+	 */
+	private void execute(GatewaySession session) throws InterruptedException{
+		if(!calls.tryAcquire()){
+			throttled.incrementAndGet();
+			calls.acquire();
+		}
+		try{
+			session.execute();
+		}finally{
+			calls.release();
+		}
+	}
+
+	private static void write(SocketChannel channel, ByteBuffer responses) throws IOException{
+		responses.flip();
+		while(responses.hasRemaining()){
+			channel.write(responses);
+		}
+		responses.clear();
+	}
+
+	private void close(SocketChannel channel){
+		sessions.remove(channel);
+		try{
+			channel.close();
+		}catch(IOException ex){
+			logger.log(Level.FINE, "Failed to close "+channel, ex);
+		}
+	}
+
+	private Thread platformThread(Runnable session){
+		Thread thread = new Thread(null, session, "session-"+sessionCount.incrementAndGet(), PLATFORM_STACK_SIZE);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Looks up the virtual thread factory of the JVM, ie: Thread.ofVirtual().name("session-", 1).factory(), by reflection as this code is compiled for Java 17.
+	 * @return The factory, or null if the JVM does not support virtual threads.
+	 */
+	private static ThreadFactory virtualThreads(){
+		try{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, "session-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}catch(ReflectiveOperationException | RuntimeException ex){
+			logger.log(Level.FINE, "Virtual threads are not available, sessions run on platform threads", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Main method to start a session server in front of a new orderboard.
+	 * Usage: SessionServer [port]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 9091;
+		try(SessionServer server = new SessionServer(new OrderBoardImpl(), new InetSocketAddress(port))){
+			SocketAddress address = server.getLocalAddress();
+			System.out.println("Session server listening on "+address+(server.isVirtual() ? ", with virtual threads" : ", with platform threads"));
+			server.acceptor.join();
+		}
+	}
+}
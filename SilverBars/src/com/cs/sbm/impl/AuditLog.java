@@ -0,0 +1,420 @@
+package com.cs.sbm.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * A binary audit log of the orders registered and cancelled on an orderboard.
+ *
+ * Building a log message (and going through the synchronized handlers of java.util.logging) on every register/cancel costs more than the register/cancel itself.
+ * Here, the caller only copies a few primitives in a preallocated ring of records, nothing is formatted and nothing is allocated.
+ * A background thread drains the ring to a file, through a direct buffer, and rolls over to a new file once the file limit is reached.
+ * The files are decoded with {@link #read(File, Visitor)}, see com.cs.sbm.AuditLogDecoder.
+ *
+ * The ring is a bounded, multi producer single consumer queue, as in {@link OrderBoardSequencer}: a producer claims the next position with a CAS,
+ * fills the record and publishes it by advancing the sequence of the record. If the ring is full, producers wait for the drainer to catch up
+ * (records are never dropped), the number of such stalls is available through {@link #getStalls()}.
+ * Once the log is closed, or its drainer has failed, records are dropped rather than refused, as the order they audit has already been applied:
+ * the number of such records is available through {@link #getDropped()}.
+ *
+ * Every file starts with a header, followed by fixed size records, laid out (little endian) as
+ * <pre>
+ *   long timeMillis | long orderId | long quantity | long rested | int price | byte event | byte side | byte quantityScale | 1 byte padding
+ * </pre>
+ * A register records the quantity requested along with the quantity which rested on the orderbook, so the order can be rebuilt even if it matched on arrival.
+ * @author Nat
+ *
+ */
+public final class AuditLog implements AutoCloseable {
+
+	/**
+	 * What happened to an order.
+	 */
+	public enum Event {
+		/** Registered, and rested on the orderbook, possibly partially filled on arrival. */
+		REGISTERED,
+		CANCELLED,
+		/** Registered, and completely filled on arrival. It never rested on the orderbook. */
+		FILLED;
+	}
+
+	/**
+	 * Callback to read the records of an audit file.
+	 */
+	public interface Visitor {
+		/**
+		 * @param timeMillis Time of the event, in milliseconds since the epoch.
+		 * @param event The event.
+		 * @param orderId The orderId.
+		 * @param side The side of the order.
+		 * @param price The price of the order.
+		 * @param quantity The quantity of the order, in fixed point units: requested when registered/filled, taken off the orderbook when cancelled.
+		 * @param rested The quantity left on the orderbook after the event, in fixed point units. Less than the quantity requested if the order matched on arrival.
+		 * @param quantityScale The scale of the quantity, see {@link FixedPointQuantity}.
+		 */
+		public void onRecord(long timeMillis, Event event, long orderId, OrderType side, int price, long quantity, long rested, int quantityScale);
+	}
+
+	/** Default number of records in the ring. */
+	public static final int DEFAULT_RING_SIZE = 1 << 16;
+	/** Default size of a file, before rolling over to the next one. */
+	public static final long DEFAULT_FILE_LIMIT = 64L << 20;
+	/** Extension of the audit files. */
+	public static final String EXTENSION = ".audit";
+
+	/** "SBMA" */
+	private static final int MAGIC = 0x53424d41;
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 2 * Integer.BYTES;
+	private static final int RECORD_SIZE = 40;
+	/** Size of the buffer the records are written through. */
+	private static final int BUFFER_SIZE = RECORD_SIZE * 2048;
+	/** Number of idle iterations the producers spin, before they yield, when the ring is full. */
+	private static final int SPIN_LIMIT = 1000;
+	/** Time the drainer parks for, when idle. */
+	private static final long PARK_NANOS = 100_000;
+	private static final Event[] EVENTS = Event.values();
+	private static final OrderType[] TYPES = OrderType.values();
+
+	//The logger.
+	private static final Logger logger = Logger.getLogger(AuditLog.class.getName());
+
+	/*
+	 * The ring of records, as primitive columns, so that publishing a record does not allocate.
+	 * The sequence of a record is position: free to claim, position + 1: published.
+	 */
+	private final AtomicLongArray sequences;
+	private final long[] times;
+	private final long[] orderIds;
+	private final int[] prices;
+	private final long[] quantities;
+	private final long[] rested;
+	private final byte[] events;
+	private final byte[] sides;
+	private final byte[] scales;
+	/** Mask to map a position to a record of the ring. */
+	private final int mask;
+	/** The next position to be claimed by a producer. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The next position to be drained. Only accessed by the drainer thread. */
+	private long head;
+	/** Number of times a producer found the ring full. */
+	private final AtomicLong stalls = new AtomicLong();
+	/** Number of records dropped, as the log was closed or failed. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final File directory;
+	private final String name;
+	private final long fileLimit;
+	/** The buffer the records are written through. Only accessed by the drainer thread. */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	/** The file being written. Only accessed by the drainer thread. */
+	private FileChannel channel;
+	private int fileIndex;
+	private long fileSize;
+	/** The drainer thread. */
+	private final Thread thread;
+	/** Whether this log accepts records. */
+	private volatile boolean running = true;
+	/** Whether the drainer has failed to write the records, which are then discarded. */
+	private volatile boolean failed;
+
+	/**
+	 * Opens an audit log, with a ring and a file limit of default size.
+	 * @param directory The directory of the audit files.
+	 * @param name The name of the audit files, which are suffixed with their index.
+	 */
+	public AuditLog(File directory, String name) {
+		this(directory, name, DEFAULT_RING_SIZE, DEFAULT_FILE_LIMIT);
+	}
+
+	/**
+	 * Opens an audit log. Existing files are kept, the first file written is the one after the last existing one. The drainer thread is started straight away.
+	 * @param directory The directory of the audit files.
+	 * @param name The name of the audit files, which are suffixed with their index.
+	 * @param ringSize Number of records in the ring, rounded up to a power of 2.
+	 * @param fileLimit Size of a file, before rolling over to the next one.
+	 */
+	public AuditLog(File directory, String name, int ringSize, long fileLimit) {
+		int size = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+		this.sequences = new AtomicLongArray(size);
+		this.times = new long[size];
+		this.orderIds = new long[size];
+		this.prices = new int[size];
+		this.quantities = new long[size];
+		this.rested = new long[size];
+		this.events = new byte[size];
+		this.sides = new byte[size];
+		this.scales = new byte[size];
+		this.mask = size - 1;
+		for(int i=0; i<size; i++){
+			sequences.set(i, i);
+		}
+		this.directory = directory;
+		this.name = name;
+		this.fileLimit = Math.max(fileLimit, HEADER_SIZE + RECORD_SIZE);
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new UncheckedIOException(new IOException("Failed to create audit directory "+directory));
+		}
+		while(file(fileIndex).exists()){
+			fileIndex++;
+		}
+		roll();
+		this.thread = new Thread(this::run, "audit-"+name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Records that an order has been registered, as {@link Event#FILLED} if it was completely filled on arrival. This does not allocate.
+	 * @param orderId The orderId.
+	 * @param side The side of the order.
+	 * @param price The price of the order.
+	 * @param quantity The quantity requested, in fixed point units.
+	 * @param rested The quantity which rested on the orderbook, once matched, in fixed point units.
+	 * @param quantityScale The scale of the quantity.
+	 */
+	public void registered(long orderId, OrderType side, int price, long quantity, long rested, int quantityScale){
+		append(rested == 0 ? Event.FILLED : Event.REGISTERED, orderId, side, price, quantity, rested, quantityScale);
+	}
+
+	/**
+	 * Records that an order has been cancelled. This does not allocate.
+	 * @param orderId The orderId.
+	 * @param side The side of the order.
+	 * @param price The price of the order.
+	 * @param quantity The quantity, in fixed point units.
+	 * @param quantityScale The scale of the quantity.
+	 */
+	public void cancelled(long orderId, OrderType side, int price, long quantity, int quantityScale){
+		append(Event.CANCELLED, orderId, side, price, quantity, 0, quantityScale);
+	}
+
+	/**
+	 *
+	 * @return Number of times a record had to wait for the drainer, as the ring was full.
+	 */
+	public long getStalls(){
+		return stalls.get();
+	}
+
+	/**
+	 *
+	 * @return Number of records dropped, as they were appended once the log was closed, or its drainer had failed.
+	 */
+	public long getDropped(){
+		return dropped.get();
+	}
+
+	/**
+	 * Stops accepting records, drains the records already published to the file and closes it.
+	 */
+	@Override
+	public void close(){
+		if(!running){
+			return;
+		}
+		running = false;
+		LockSupport.unpark(thread);
+		try{
+			thread.join();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the records of an audit file.
+	 * @param file The file.
+	 * @param visitor The visitor.
+	 * @return Number of records read.
+	 */
+	public static int read(File file, Visitor visitor){
+		try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.limit(HEADER_SIZE);
+			while(buffer.hasRemaining() && in.read(buffer) >= 0){
+				//read the whole header.
+			}
+			buffer.flip();
+			if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+				throw new IllegalStateException("Not an audit file "+file);
+			}
+			buffer.clear();
+			int records = 0;
+			boolean eof = false;
+			while(!eof){
+				eof = in.read(buffer) < 0;
+				buffer.flip();
+				//a record torn by a crash is left in the buffer, at the end of the file.
+				while(buffer.remaining() >= RECORD_SIZE){
+					long time = buffer.getLong();
+					long orderId = buffer.getLong();
+					long quantity = buffer.getLong();
+					long rest = buffer.getLong();
+					int price = buffer.getInt();
+					Event event = EVENTS[buffer.get()];
+					OrderType side = TYPES[buffer.get()];
+					int scale = buffer.get();
+					buffer.position(buffer.position() + 1);
+					visitor.onRecord(time, event, orderId, side, price, quantity, rest, scale);
+					records++;
+				}
+				buffer.compact();
+			}
+			return records;
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to read audit file "+file, ex);
+		}
+	}
+
+	private void append(Event event, long orderId, OrderType side, int price, long quantity, long rest, int quantityScale){
+		if(failed){
+			dropped.incrementAndGet();
+			return;
+		}
+		long position = claim();
+		if(position < 0){
+			dropped.incrementAndGet();
+			return;
+		}
+		int index = (int) position & mask;
+		times[index] = System.currentTimeMillis();
+		orderIds[index] = orderId;
+		prices[index] = price;
+		quantities[index] = quantity;
+		rested[index] = rest;
+		events[index] = (byte) event.ordinal();
+		sides[index] = (byte) side.ordinal();
+		scales[index] = (byte) quantityScale;
+		//publish, the record is visible to the drainer once the sequence is.
+		sequences.set(index, position + 1);
+	}
+
+	/**
+	 * Claims the next record of the ring, waits if the ring is full.
+	 * @return The position of the record, or -1 if the log has been closed or the drainer has failed.
+	 */
+	private long claim(){
+		int idle = 0;
+		boolean stalled = false;
+		while(true){
+			if(!running || failed){
+				return -1;
+			}
+			long position = tail.get();
+			long diff = sequences.get((int) position & mask) - position;
+			if(diff == 0){
+				if(tail.compareAndSet(position, position + 1)){
+					return position;
+				}
+			}else if(diff < 0){
+				//the ring is full, wait for the drainer to catch up.
+				if(!stalled){
+					stalled = true;
+					stalls.incrementAndGet();
+					LockSupport.unpark(thread);
+				}
+				if(++idle < SPIN_LIMIT){
+					Thread.onSpinWait();
+				}else{
+					Thread.yield();
+				}
+			}
+			//otherwise, another producer has claimed this position. Try the next one.
+		}
+	}
+
+	/**
+	 * The drainer loop.
+	 */
+	private void run(){
+		try{
+			while(true){
+				int index = (int) head & mask;
+				if(sequences.get(index) == head + 1){
+					if(buffer.remaining() < RECORD_SIZE || fileSize + buffer.position() + RECORD_SIZE > fileLimit){
+						flush();
+					}
+					buffer.putLong(times[index]);
+					buffer.putLong(orderIds[index]);
+					buffer.putLong(quantities[index]);
+					buffer.putLong(rested[index]);
+					buffer.putInt(prices[index]);
+					buffer.put(events[index]);
+					buffer.put(sides[index]);
+					buffer.put(scales[index]);
+					buffer.position(buffer.position() + 1);
+					//hand the record back to the producers, for the next lap of the ring.
+					sequences.set(index, head + sequences.length());
+					head++;
+				}else if(!running && tail.get() == head){
+					flush();
+					channel.force(false);
+					channel.close();
+					return;
+				}else{
+					//idle, write out what has been drained so far.
+					flush();
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+			}
+		}catch(IOException | UncheckedIOException ex){
+			logger.log(Level.SEVERE, "Audit log "+name+" failed, records are no longer written", ex);
+			//let the producers through, rather than blocking the orderboard.
+			failed = true;
+		}
+	}
+
+	/**
+	 * Writes the drained records to the file, and rolls over to the next file if the limit has been reached.
+	 */
+	private void flush() throws IOException{
+		if(buffer.position() > 0){
+			buffer.flip();
+			while(buffer.hasRemaining()){
+				fileSize += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		if(fileSize + RECORD_SIZE > fileLimit){
+			channel.close();
+			fileIndex++;
+			roll();
+		}
+	}
+
+	/**
+	 * Opens the next file, and writes its header.
+	 */
+	private void roll(){
+		File file = file(fileIndex);
+		try{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			while(header.hasRemaining()){
+				channel.write(header);
+			}
+			fileSize = HEADER_SIZE;
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to open audit file "+file, ex);
+		}
+	}
+
+	private File file(int index){
+		return new File(directory, name+"-"+index+EXTENSION);
+	}
+}
@@ -0,0 +1,289 @@
+package com.cs.sbm.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderUpdateListener;
+
+/**
+ * An {@link UpdateNotifier} which coalesces the updates of the orderboard.
+ *
+ * A register/cancel only marks the book as dirty, which is a volatile write. A publisher thread takes at most one snapshot of a dirty book per interval,
+ * or earlier once a batch of register/cancel has accumulated. So, during a burst, the cost of the snapshot is paid once per interval rather than once per order.
+ *
+ * Every listener has its own mailbox, holding the latest snapshot not yet delivered, and is notified on a thread of its own.
+ * A slow listener neither stalls the order entry nor the other listeners, it skips the snapshots superseded while it was busy (conflation).
+ * The lag of every listener can be monitored through {@link #getMetrics(OrderUpdateListener)}.
+ * @author Nat
+ *
+ */
+public final class CoalescingUpdateNotifier implements UpdateNotifier, AutoCloseable {
+
+	//The logger.
+	private static final Logger logger = Logger.getLogger(CoalescingUpdateNotifier.class.getName());
+
+	/**
+	 * A snapshot, as published to the listeners.
+	 */
+	private static final class Snapshot {
+		final OrderBookSummary summary;
+		final long version;
+		final long publishedNanos;
+
+		Snapshot(OrderBookSummary summary, long version, long publishedNanos) {
+			this.summary = summary;
+			this.version = version;
+			this.publishedNanos = publishedNanos;
+		}
+	}
+
+	/**
+	 * Delivery metrics of a listener.
+	 */
+	public static final class ListenerMetrics {
+		private volatile long delivered;
+		private volatile long conflated;
+		private volatile long deliveredVersion;
+		private volatile long lastLatencyNanos;
+		private volatile long maxLatencyNanos;
+		private final CoalescingUpdateNotifier notifier;
+
+		private ListenerMetrics(CoalescingUpdateNotifier notifier) {
+			this.notifier = notifier;
+		}
+
+		/**
+		 *
+		 * @return Number of snapshots delivered to the listener.
+		 */
+		public long getDelivered() {
+			return delivered;
+		}
+
+		/**
+		 *
+		 * @return Number of snapshots skipped, as a newer one was published before the listener was done with the previous one.
+		 */
+		public long getConflated() {
+			return conflated;
+		}
+
+		/**
+		 *
+		 * @return Number of snapshots published since the last one delivered to the listener.
+		 */
+		public long getLag() {
+			return notifier.version - deliveredVersion;
+		}
+
+		/**
+		 *
+		 * @return Time between the publication and the delivery of the last snapshot, in nanoseconds.
+		 */
+		public long getLastLatencyNanos() {
+			return lastLatencyNanos;
+		}
+
+		/**
+		 *
+		 * @return Maximum time between the publication and the delivery of a snapshot, in nanoseconds.
+		 */
+		public long getMaxLatencyNanos() {
+			return maxLatencyNanos;
+		}
+	}
+
+	/**
+	 * The mailbox of a listener.
+	 */
+	private final class Channel implements Runnable {
+		final OrderUpdateListener listener;
+		final ListenerMetrics metrics = new ListenerMetrics(CoalescingUpdateNotifier.this);
+		/** The latest snapshot, not yet delivered. */
+		final AtomicReference<Snapshot> pending = new AtomicReference<>();
+		/** Whether a delivery is scheduled. */
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		volatile boolean removed;
+
+		Channel(OrderUpdateListener listener) {
+			this.listener = listener;
+		}
+
+		void offer(Snapshot snapshot){
+			if(pending.getAndSet(snapshot) != null){
+				metrics.conflated++;
+			}
+			if(scheduled.compareAndSet(false, true)){
+				deliveryExecutor.execute(this);
+			}
+		}
+
+		/**
+		 * Delivers the pending snapshot, on a delivery thread.
+		 */
+		@Override
+		public void run(){
+			do{
+				Snapshot snapshot;
+				while((snapshot = pending.getAndSet(null)) != null){
+					if(removed){
+						return;
+					}
+					long start = System.nanoTime();
+					try{
+						listener.onUpdate(snapshot.summary);
+					}catch(RuntimeException ex){
+						logger.log(Level.WARNING, "Listener failed to process the orderbook update", ex);
+					}
+					boardMetrics.listenerNotified(listener, start);
+					long latency = System.nanoTime() - snapshot.publishedNanos;
+					metrics.lastLatencyNanos = latency;
+					metrics.maxLatencyNanos = Math.max(metrics.maxLatencyNanos, latency);
+					metrics.deliveredVersion = snapshot.version;
+					metrics.delivered++;
+				}
+				scheduled.set(false);
+				//a snapshot may have been offered, after the mailbox was found empty but before the flag was cleared.
+			}while(pending.get() != null && scheduled.compareAndSet(false, true));
+		}
+	}
+
+	/** Mailboxes of the listeners. */
+	private final Map<OrderUpdateListener, Channel> channels = new ConcurrentHashMap<>();
+	/** Takes a snapshot of the orderboard. */
+	private volatile Supplier<OrderBookSummary> snapshot;
+	/** Records the time spent by the listeners, set before the snapshot. */
+	private OrderBoardMetrics boardMetrics;
+	/** Whether the book has changed since the last snapshot. */
+	private volatile boolean dirty;
+	/** Number of register/cancel since the last snapshot. */
+	private final AtomicInteger changes = new AtomicInteger();
+	/** Number of register/cancel which triggers a snapshot before the end of the interval, 0 for none. */
+	private final int batchSize;
+	/** Version of the latest snapshot. */
+	private volatile long version;
+	/** Publishes the snapshots. */
+	private final ScheduledExecutorService publisher;
+	/** Delivers the snapshots to the listeners. */
+	private final ExecutorService deliveryExecutor;
+
+	/**
+	 * Constructs a notifier.
+	 * @param interval Minimum interval between two snapshots, unless a batch has accumulated.
+	 * @param unit The unit of the interval.
+	 * @param batchSize Number of register/cancel which triggers a snapshot before the end of the interval, 0 for none.
+	 */
+	public CoalescingUpdateNotifier(long interval, TimeUnit unit, int batchSize) {
+		if(interval <= 0 || batchSize < 0){
+			throw new IllegalArgumentException("Invalid interval "+interval+" or batch size "+batchSize);
+		}
+		this.batchSize = batchSize;
+		this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "orderboard-publisher"));
+		this.deliveryExecutor = Executors.newCachedThreadPool(runnable -> daemon(runnable, "orderboard-listener"));
+		this.publisher.scheduleAtFixedRate(this::publish, interval, interval, unit);
+	}
+
+	@Override
+	public void bind(Supplier<OrderBookSummary> snapshot, OrderBoardMetrics metrics) {
+		if(this.snapshot != null){
+			throw new IllegalStateException("Notifier is already bound to an orderboard");
+		}
+		this.boardMetrics = metrics;
+		this.snapshot = snapshot;
+	}
+
+	@Override
+	public void bookChanged() {
+		dirty = true;
+		if(batchSize > 0 && changes.incrementAndGet() == batchSize){
+			try{
+				publisher.execute(this::publish);
+			}catch(RejectedExecutionException ex){
+				//closed concurrently, the change is not published. Not checked upfront, the publisher may be shut down right after the check.
+			}
+		}
+	}
+
+	@Override
+	public void addListener(OrderUpdateListener listener) {
+		channels.computeIfAbsent(listener, Channel::new);
+	}
+
+	@Override
+	public void removeListener(OrderUpdateListener listener) {
+		Channel channel = channels.remove(listener);
+		if(channel != null){
+			channel.removed = true;
+		}
+	}
+
+	/**
+	 *
+	 * @param listener The listener.
+	 * @return The delivery metrics of the listener, or null if the listener is not registered.
+	 */
+	public ListenerMetrics getMetrics(OrderUpdateListener listener) {
+		Channel channel = channels.get(listener);
+		return channel == null ? null : channel.metrics;
+	}
+
+	/**
+	 * Publishes the pending changes, if any, and stops the publisher. Snapshots already handed to the listeners are still delivered.
+	 */
+	@Override
+	public void close() {
+		try{
+			publisher.execute(this::publish);
+		}catch(RejectedExecutionException ex){
+			//already closed.
+			return;
+		}
+		publisher.shutdown();
+		try{
+			publisher.awaitTermination(1, TimeUnit.SECONDS);
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+		deliveryExecutor.shutdown();
+	}
+
+	/**
+	 * Takes a snapshot of the book, if it has changed, and offers it to every listener. Always on the publisher thread.
+	 */
+	private void publish(){
+		if(!dirty || snapshot == null){
+			return;
+		}
+		dirty = false;
+		changes.set(0);
+		if(channels.isEmpty()){
+			return;
+		}
+		try{
+			Snapshot published = new Snapshot(snapshot.get(), version + 1, System.nanoTime());
+			version = published.version;
+			channels.values().forEach(channel -> channel.offer(published));
+		}catch(RuntimeException ex){
+			//do not let a failure cancel the periodic task.
+			logger.log(Level.WARNING, "Failed to publish the orderbook update", ex);
+		}
+	}
+
+	private static Thread daemon(Runnable runnable, String name){
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
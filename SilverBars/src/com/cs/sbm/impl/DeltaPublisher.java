@@ -0,0 +1,168 @@
+package com.cs.sbm.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+import com.cs.sbm.api.OrderBookDeltaListener;
+import com.cs.sbm.api.OrderType;
+
+/**
+ * Publishes the changes of the price levels of an orderboard to its {@link OrderBookDeltaListener}s.
+ *
+ * Publishing a change costs O(1), whatever the depth of the orderbook: the state of the changed level is read from its running totals.
+ * A change only queues its level, which is cheap enough to be done under the locks of the order entry (journal, matching).
+ * The queued levels are published by {@link #flush()}, once the command is done and these locks are released, so a slow listener does not hold up the other writers.
+ * Events are numbered and delivered under the lock of this publisher, so every listener sees them in sequence order.
+ * As the state of the level is read under this lock, the last event of a level always carries its latest state, even if the level is changed concurrently.
+ * A level changed several times before it is published gets a single event.
+ *
+ * Nothing is published, and the lock is not taken, while there is no listener.
+ * The lock is a ReentrantLock rather than a monitor, so a listener may block (eg: on I/O) without pinning the carrier of a virtual thread.
+ * @author Nat
+ *
+ */
+final class DeltaPublisher {
+
+	/** The listeners. */
+	private final CopyOnWriteArrayList<OrderBookDeltaListener> listeners = new CopyOnWriteArrayList<>();
+	/** BUY levels. */
+	private final PriceLadder buys;
+	/** SELL levels. */
+	private final PriceLadder sells;
+	/** Sequence of the last event. */
+	private volatile long sequence;
+	/** Lock of the events. */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** BUY levels changed since the last flush. */
+	private final Queue<PriceLevel> changedBuys = new ConcurrentLinkedQueue<>();
+	/** SELL levels changed since the last flush. */
+	private final Queue<PriceLevel> changedSells = new ConcurrentLinkedQueue<>();
+
+	DeltaPublisher(PriceLadder buys, PriceLadder sells) {
+		this.buys = buys;
+		this.sells = sells;
+	}
+
+	/**
+	 * Queues a level, after an order has been added or removed. Its state is published by the next {@link #flush()}.
+	 * @param side The side of the level.
+	 * @param level The level.
+	 */
+	void levelChanged(OrderType side, PriceLevel level){
+		if(listeners.isEmpty()){
+			return;
+		}
+		//queued once until it is published. A level queued twice by a race is published once, see publish.
+		if(!level.changed){
+			level.changed = true;
+			(OrderType.BUY == side ? changedBuys : changedSells).add(level);
+		}
+	}
+
+	/**
+	 * Publishes the levels queued so far. Called once a command is done, outside of the locks of the order entry.
+	 * The levels queued concurrently by other writers are published along, the writer which queued them does not wait for them.
+	 */
+	void flush(){
+		if(changedBuys.isEmpty() && changedSells.isEmpty()){
+			return;
+		}
+		lock.lock();
+		try{
+			PriceLevel level;
+			while((level = changedBuys.poll()) != null){
+				publish(OrderType.BUY, level);
+			}
+			while((level = changedSells.poll()) != null){
+				publish(OrderType.SELL, level);
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Publishes the state of a level. Called under the lock of this publisher.
+	 */
+	private void publish(OrderType side, PriceLevel level){
+		if(!level.changed){
+			//queued twice, published already.
+			return;
+		}
+		//cleared before the state is read, so a change made after this read queues the level again.
+		level.changed = false;
+		int price = level.getPrice();
+		if(level.isRetired()){
+			//evicted since it was queued, and a new level may be at its price, queued after this one.
+			if(level.published){
+				level.published = false;
+				long seq = ++sequence;
+				listeners.forEach(listener -> listener.onLevelRemoved(seq, side, price));
+			}
+			return;
+		}
+		PriceLevelSummary summary = level.getSummary();
+		if(summary.getNumberOfOrders() == 0){
+			//published even if the level is not flagged as such, it may have been changed while the first listener was being added.
+			level.published = false;
+			long seq = ++sequence;
+			listeners.forEach(listener -> listener.onLevelRemoved(seq, side, price));
+		}else{
+			boolean added = !level.published;
+			level.published = true;
+			long seq = ++sequence;
+			int numberOfOrders = summary.getNumberOfOrders();
+			long quantity = summary.getCumulativeQuantityUnits();
+			for(OrderBookDeltaListener listener : listeners){
+				if(added){
+					listener.onLevelAdded(seq, side, price, numberOfOrders, quantity);
+				}else{
+					listener.onLevelChanged(seq, side, price, numberOfOrders, quantity);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot, tagged with the sequence of the last event it reflects.
+	 * @param snapshot Takes the snapshot, given the sequence.
+	 * @return The snapshot.
+	 */
+	<T> T snapshot(LongFunction<T> snapshot){
+		if(listeners.isEmpty()){
+			return snapshot.apply(sequence);
+		}
+		lock.lock();
+		try{
+			return snapshot.apply(sequence);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	void addListener(OrderBookDeltaListener listener){
+		lock.lock();
+		try{
+			if(listeners.isEmpty()){
+				//levels may have changed unpublished while there was no listener. Catch up, the new listener starts from a snapshot anyway.
+				buys.forEach(this::resync);
+				sells.forEach(this::resync);
+			}
+			listeners.addIfAbsent(listener);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	void removeListener(OrderBookDeltaListener listener){
+		listeners.remove(listener);
+	}
+
+	private boolean resync(PriceLevel level){
+		level.published = level.getSummary().getNumberOfOrders() > 0;
+		return true;
+	}
+}
@@ -0,0 +1,63 @@
+package com.cs.sbm.impl;
+
+import java.math.BigDecimal;
+
+/**
+ * Utility to convert order quantities between {@link BigDecimal} and the fixed point <code>long</code> representation used inside the orderboard.
+ *
+ * A quantity is held as a whole number of units, where a unit is 10^-scale of a kg.
+ * For example, with the default scale of 3, 1.5 kg is held as 1500 (ie: thousandths of a kg).
+ *
+ * Working with <code>long</code> avoids allocating immutable BigDecimals and the cost of arbitrary precision arithmetic on every add/cancel.
+ * BigDecimals are only created at the API edge.
+ * @author Nat
+ *
+ */
+public final class FixedPointQuantity {
+
+	/** Default number of decimal places (ie: quantities in thousandths of a kg). */
+	public static final int DEFAULT_SCALE = 3;
+	/** Maximum supported scale. */
+	public static final int MAX_SCALE = 9;
+
+	private FixedPointQuantity(){
+	}
+
+	/**
+	 * Converts a quantity to fixed point units.
+	 * @param quantity The quantity, in kg.
+	 * @param scale The number of decimal places.
+	 * @return The quantity in units of 10^-scale kg.
+	 * @throws IllegalArgumentException if the quantity has more decimal places than the scale, or does not fit into a long.
+	 */
+	public static long toUnits(BigDecimal quantity, int scale){
+		try{
+			return quantity.setScale(scale).unscaledValue().longValueExact();
+		}catch(ArithmeticException ex){
+			throw new IllegalArgumentException("Quantity "+quantity+" cannot be represented with "+scale+" decimal places", ex);
+		}
+	}
+
+	/**
+	 * Converts fixed point units back to a quantity.
+	 * @param units The quantity in units of 10^-scale kg.
+	 * @param scale The number of decimal places.
+	 * @return The quantity, in kg.
+	 */
+	public static BigDecimal toBigDecimal(long units, int scale){
+		return BigDecimal.valueOf(units, scale);
+	}
+
+	/**
+	 * Validates the given scale.
+	 * @param scale The number of decimal places.
+	 * @return The scale.
+	 * @throws IllegalArgumentException if the scale is not supported.
+	 */
+	static int checkScale(int scale){
+		if(scale < 0 || scale > MAX_SCALE){
+			throw new IllegalArgumentException("Quantity scale must be between 0 and "+MAX_SCALE+", but was "+scale);
+		}
+		return scale;
+	}
+}
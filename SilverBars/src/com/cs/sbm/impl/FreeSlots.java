@@ -0,0 +1,81 @@
+package com.cs.sbm.impl;
+
+/**
+ * The released slots of an {@link OrderStore}, handed out again in the order they have been released (FIFO), and only once enough of them have piled up.
+ *
+ * Reusing the slot released last (LIFO) keeps the store compact, but concentrates the reuse on the few slots which are registered and cancelled over and over,
+ * which then run through their generations far ahead of the others. Here a released slot is quarantined: it is only reused once {@link #QUARANTINE} slots
+ * have been released after it, or the store has no fresh slot left, at the cost of holding up to QUARANTINE released slots.
+ * Once the store is full, released slots are reused straight away, and the generation alone keeps the orderIds of released orders apart
+ * (see {@link OrderStore#MAX_GENERATION}).
+ *
+ * A growable ring of slot indices. Not thread safe, guarded by the store.
+ * @author Nat
+ *
+ */
+final class FreeSlots {
+
+	/** Number of slots released after a slot, before the slot is reused. */
+	static final int QUARANTINE = 1 << 18;
+
+	/** The ring of released slots, oldest at head. */
+	private int[] slots;
+	private int head;
+	private int count;
+
+	/**
+	 *
+	 * @param initialCapacity Number of slots the ring holds before it grows.
+	 */
+	FreeSlots(int initialCapacity) {
+		this.slots = new int[Math.max(initialCapacity, 16)];
+	}
+
+	/**
+	 * Queues a released slot.
+	 */
+	void add(int slot){
+		if(count == slots.length){
+			int[] tmp = new int[slots.length * 2];
+			//unwrap the ring, oldest first.
+			int first = Math.min(count, slots.length - head);
+			System.arraycopy(slots, head, tmp, 0, first);
+			System.arraycopy(slots, 0, tmp, first, count - first);
+			slots = tmp;
+			head = 0;
+		}
+		slots[(head + count++) % slots.length] = slot;
+	}
+
+	/**
+	 *
+	 * @param exhausted Whether the store has no fresh slot left.
+	 * @return Whether the oldest released slot is to be reused, rather than a fresh slot handed out.
+	 */
+	boolean isDue(boolean exhausted){
+		return count > QUARANTINE || (exhausted && count > 0);
+	}
+
+	/**
+	 * Takes the oldest released slot. Only called if there is one.
+	 */
+	int poll(){
+		int slot = slots[head];
+		head = (head + 1) % slots.length;
+		count--;
+		return slot;
+	}
+
+	/**
+	 *
+	 * @return Number of released slots.
+	 */
+	int size(){
+		return count;
+	}
+
+	void clear(){
+		head = 0;
+		count = 0;
+	}
+}
@@ -0,0 +1,297 @@
+package com.cs.sbm.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+import com.cs.sbm.api.OrderRequest;
+import com.cs.sbm.api.OrderType;
+
+/**
+ * An {@link OrderStore} which keeps every order as an {@link Order} object on the heap.
+ *
+ * Orders are held in fixed size segments. The directory of segments is allocated once, at construction,
+ * and segments are only created when needed. Hence the store grows without ever copying the orders already stored.
+ *
+ * Allocation and release are synchronized. Look up is not, as the caller can only know an orderId once it has been allocated.
+ * A released order is left in its slot until the slot is reused, so reading a slot which has been released concurrently never fails,
+ * it is up to the caller to check the orderId under the lock of the price level.
+ * @author Nat
+ *
+ */
+public final class HeapOrderStore implements OrderStore {
+
+	/** Number of bits of the slot index used for the position in a segment. */
+	private static final int SEGMENT_BITS = 10;
+	/** Number of orders per segment. */
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	/** Mask to extract the position in a segment from a slot index. */
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	/** The state of an {@link Order}. */
+	private static final VarHandle STATE;
+	static{
+		try{
+			STATE = MethodHandles.lookup().findVarHandle(Order.class, "state", OrderState.class);
+		}catch(ReflectiveOperationException ex){
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	/**
+	 * Orders, in segments. Allocated for the maximum number of slots upfront, which is only few KB of references.
+	 */
+	private final Order[][] segments = new Order[MAX_SLOTS >>> SEGMENT_BITS][];
+	/**
+	 * Current generation of every slot, in segments.
+	 */
+	private final long[][] generations = new long[MAX_SLOTS >>> SEGMENT_BITS][];
+	/**
+	 * Queue of released slots.
+	 */
+	private final FreeSlots freeSlots = new FreeSlots(SEGMENT_SIZE);
+	/**
+	 * Number of slots ever handed out. Slots at and above this mark have never been used.
+	 */
+	private int highWaterMark;
+	/**
+	 * Number of orders currently held.
+	 */
+	private int size;
+
+	/**
+	 * Constructs a store, with segments for <code>initialCapacity</code> orders created upfront.
+	 * @param initialCapacity Number of orders to allocate upfront.
+	 */
+	public HeapOrderStore(int initialCapacity) {
+		int capacity = Math.min(Math.max(initialCapacity, 1), MAX_SLOTS);
+		for(int segment = 0; segment <= (capacity -1) >>> SEGMENT_BITS; segment++){
+			createSegment(segment);
+		}
+	}
+
+	@Override
+	public synchronized long allocate(int userId, OrderType orderType, int orderPrice, long quantity){
+		int slot;
+		if(freeSlots.isDue(highWaterMark == MAX_SLOTS)){
+			slot = freeSlots.poll();
+		}else{
+			if(highWaterMark == MAX_SLOTS){
+				//Cannot add order, as it exceeds the max allowed count.
+				throw new RuntimeException("Attempt to have more than "+MAX_SLOTS+" live orders");
+			}
+			slot = highWaterMark++;
+			if(segments[slot >>> SEGMENT_BITS] == null){
+				createSegment(slot >>> SEGMENT_BITS);
+			}
+		}
+		size++;
+		long generation = generations[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+		long orderId = generation << SLOT_BITS | slot;
+		segments[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] = new Order(orderId, userId, orderType, orderPrice, quantity);
+		return orderId;
+	}
+
+	@Override
+	public synchronized int allocate(List<OrderRequest> requests, int[] userIds, int[] indices, int count, long[] orderIds){
+		for(int i=0; i<count; i++){
+			if(freeSlots.size() == 0 && highWaterMark == MAX_SLOTS){
+				return i;
+			}
+			OrderRequest request = requests.get(indices[i]);
+			orderIds[i] = allocate(userIds[i], request.getOrderType(), request.getOrderPrice(), request.getQuantity());
+		}
+		return count;
+	}
+
+	@Override
+	public int find(long orderId){
+		if(orderId < 0){
+			return NIL;
+		}
+		int slot = OrderStore.slot(orderId);
+		Order[] segment = segments[slot >>> SEGMENT_BITS];
+		if(segment == null){
+			return NIL;
+		}
+		Order order = segment[slot & SEGMENT_MASK];
+		//a released slot has moved on to the next generation, a reused slot holds an order with a different generation.
+		return order != null && order.orderId == orderId && isCurrent(order) ? slot : NIL;
+	}
+
+	@Override
+	public synchronized void release(int slot){
+		Order order = order(slot);
+		if(order == null || !isCurrent(order)){
+			//already released.
+			return;
+		}
+		long[] generation = generations[slot >>> SEGMENT_BITS];
+		generation[slot & SEGMENT_MASK] = (generation[slot & SEGMENT_MASK] + 1) & MAX_GENERATION;
+		freeSlots.add(slot);
+		size--;
+	}
+
+	@Override
+	public synchronized int highWaterMark(){
+		return highWaterMark;
+	}
+
+	@Override
+	public long generation(int slot){
+		long[] generation = generations[slot >>> SEGMENT_BITS];
+		return generation == null ? 0 : generation[slot & SEGMENT_MASK];
+	}
+
+	@Override
+	public synchronized void restoreGeneration(int slot, long generation){
+		raiseHighWaterMark(slot);
+		if(isLive(slot)){
+			return;
+		}
+		//drop the released order, it must not look current under the restored generation.
+		segments[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] = null;
+		generations[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] = generation & MAX_GENERATION;
+	}
+
+	@Override
+	public synchronized boolean restore(long orderId, int userId, OrderType orderType, int orderPrice, long quantity){
+		int slot = OrderStore.slot(orderId);
+		raiseHighWaterMark(slot);
+		if(isLive(slot)){
+			return false;
+		}
+		generations[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] = orderId >>> SLOT_BITS;
+		segments[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] = new Order(orderId, userId, orderType, orderPrice, quantity);
+		size++;
+		return true;
+	}
+
+	@Override
+	public synchronized void rebuildFreeSlots(){
+		freeSlots.clear();
+		for(int slot = 0; slot < highWaterMark; slot++){
+			if(!isLive(slot)){
+				freeSlots.add(slot);
+			}
+		}
+	}
+
+	@Override
+	public long orderId(int slot) {
+		Order order = order(slot);
+		return order == null || !isCurrent(order) ? NIL : order.orderId;
+	}
+
+	@Override
+	public int userId(int slot) {
+		return order(slot).userId;
+	}
+
+	@Override
+	public OrderType orderType(int slot) {
+		return order(slot).orderType;
+	}
+
+	@Override
+	public int orderPrice(int slot) {
+		return order(slot).orderPrice;
+	}
+
+	@Override
+	public long quantity(int slot) {
+		return order(slot).quantity;
+	}
+
+	@Override
+	public void setQuantity(int slot, long quantity) {
+		order(slot).quantity = quantity;
+	}
+
+	@Override
+	public OrderState state(int slot) {
+		return order(slot).state;
+	}
+
+	@Override
+	public void setState(int slot, OrderState state) {
+		order(slot).state = state;
+	}
+
+	@Override
+	public boolean compareAndSetState(int slot, long orderId, OrderState expected, OrderState state) {
+		//a reused slot holds a new Order object, so the old order is the only one which can be changed here.
+		Order order = order(slot);
+		return order != null && order.orderId == orderId && STATE.compareAndSet(order, expected, state);
+	}
+
+	@Override
+	public int previous(int slot) {
+		return order(slot).previous;
+	}
+
+	@Override
+	public void setPrevious(int slot, int previous) {
+		order(slot).previous = previous;
+	}
+
+	@Override
+	public int next(int slot) {
+		return order(slot).next;
+	}
+
+	@Override
+	public void setNext(int slot, int next) {
+		order(slot).next = next;
+	}
+
+	@Override
+	public synchronized int size(){
+		return size;
+	}
+
+	@Override
+	public synchronized int capacity(){
+		int capacity = 0;
+		for(int segment = 0; segment < segments.length && segments[segment] != null; segment++){
+			capacity += SEGMENT_SIZE;
+		}
+		return capacity;
+	}
+
+	private boolean isLive(int slot){
+		Order order = order(slot);
+		return order != null && isCurrent(order);
+	}
+
+	/**
+	 * Makes sure the slot is below the high water mark, and its segment exists.
+	 */
+	private void raiseHighWaterMark(int slot){
+		if(slot < highWaterMark){
+			return;
+		}
+		for(int segment = highWaterMark >>> SEGMENT_BITS; segment <= slot >>> SEGMENT_BITS; segment++){
+			if(segments[segment] == null){
+				createSegment(segment);
+			}
+		}
+		highWaterMark = slot + 1;
+	}
+
+	private Order order(int slot){
+		return segments[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+	}
+
+	/**
+	 * Checks whether the order is of the current generation of its slot, ie: the slot has not been released since.
+	 */
+	private boolean isCurrent(Order order){
+		int slot = OrderStore.slot(order.orderId);
+		return generations[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] == order.orderId >>> SLOT_BITS;
+	}
+
+	private void createSegment(int segment){
+		generations[segment] = new long[SEGMENT_SIZE];
+		segments[segment] = new Order[SEGMENT_SIZE];
+	}
+}
@@ -0,0 +1,151 @@
+package com.cs.sbm.impl;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, in nanoseconds, in the manner of an HdrHistogram.
+ *
+ * Values are counted in buckets of exponentially growing width: every power of 2 is split in {@link #SUB_BUCKETS} buckets of the same width,
+ * so the value reported for a percentile is within about 6% of the recorded value, whatever its magnitude. Values below {@link #SUB_BUCKETS} are counted exactly.
+ *
+ * The buckets are striped counters ({@link LongAdder}), allocated upfront. Recording a value does not allocate, nor lock, and threads recording concurrently
+ * do not contend on a single counter. Reading is not atomic with recording, a snapshot taken while values are recorded may be off by these values.
+ * @author Nat
+ *
+ */
+public final class LatencyHistogram {
+
+	/** Number of bits of a value kept, below its highest bit. */
+	private static final int SUB_BUCKET_BITS = 4;
+	/** Number of buckets per power of 2. */
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Largest value recorded as is, about 18 minutes. Larger values are recorded as this value. */
+	static final long MAX_VALUE = (1L << 40) - 1;
+	/** Number of buckets, up to {@link #MAX_VALUE}. */
+	private static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public LatencyHistogram() {
+		for(int i=0; i<BUCKETS; i++){
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a latency.
+	 * @param nanos The latency, in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long nanos){
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		buckets[bucket(value)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Records the time elapsed since <code>startNanos</code>.
+	 * @param startNanos The start, as given by {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos){
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 *
+	 * @return Number of values recorded.
+	 */
+	public long getCount(){
+		return count.sum();
+	}
+
+	/**
+	 *
+	 * @return Mean of the values recorded, in nanoseconds.
+	 */
+	public double getMean(){
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 *
+	 * @return Largest value recorded, in nanoseconds.
+	 */
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The value at the percentile, ie: the highest value of the bucket holding it, in nanoseconds.
+	 */
+	public long getValueAtPercentile(double percentile){
+		long n = 0;
+		long[] counts = new long[BUCKETS];
+		for(int i=0; i<BUCKETS; i++){
+			counts[i] = buckets[i].sum();
+			n += counts[i];
+		}
+		if(n == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++){
+			seen += counts[i];
+			if(seen >= rank){
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears the values recorded so far.
+	 */
+	public void reset(){
+		for(LongAdder bucket : buckets){
+			bucket.reset();
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	/**
+	 * Takes a snapshot of this histogram.
+	 */
+	public LatencySnapshot snapshot(){
+		return new LatencySnapshot(getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+	}
+
+	/**
+	 * The bucket of a (non negative) value.
+	 */
+	static int bucket(long value){
+		if(value < SUB_BUCKETS){
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * The highest value counted in a bucket.
+	 */
+	static long highestValue(int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,64 @@
+package com.cs.sbm.impl;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of a {@link LatencyHistogram}, as exposed through JMX. All the latencies are in nanoseconds.
+ * @author Nat
+ *
+ */
+public final class LatencySnapshot {
+	private final long count;
+	private final double mean;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	@ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+	public LatencySnapshot(long count, double mean, long p50, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 *
+	 * @return Number of values recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 *
+	 * @return The median.
+	 */
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencySnapshot [count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max + "]";
+	}
+}
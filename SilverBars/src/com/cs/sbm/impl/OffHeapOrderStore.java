@@ -0,0 +1,381 @@
+package com.cs.sbm.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.cs.sbm.api.OrderRequest;
+import com.cs.sbm.api.OrderType;
+
+/**
+ * An {@link OrderStore} which keeps the fields of the orders as primitive columns outside the java heap.
+ *
+ * With tens of millions of resting orders, having an object per order (with references to the previous and next order, a BigDecimal etc.)
+ * makes the GC pauses dominate the latency. Here, orders are held in fixed size segments, every segment is a single direct {@link ByteBuffer}
+ * laid out in columns (quantity, orderId, state, price, user, previous, next, type), so there is nothing for the GC to trace apart from the segments themselves.
+ * The state column also carries the generation of the order, so it is changed with a single compare and set, which a reused slot can not pass.
+ *
+ * Optionally, the segments are memory mapped from files in a given directory (a {@link java.nio.MappedByteBuffer}), which lets the OS page out
+ * orders which are not touched, if the book is bigger than the memory.
+ *
+ * Allocation and release are synchronized. Look up is not, as the caller can only know an orderId once it has been allocated.
+ * @author Nat
+ *
+ */
+public final class OffHeapOrderStore implements OrderStore {
+
+	/** Number of bits of the slot index used for the position in a segment. */
+	private static final int SEGMENT_BITS = 16;
+	/** Number of orders per segment. */
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	/** Mask to extract the position in a segment from a slot index. */
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/*
+	 * Offsets of the columns in a segment. Wider columns first, so every value is aligned.
+	 */
+	private static final int QUANTITY_OFFSET = 0;
+	private static final int ORDER_ID_OFFSET = QUANTITY_OFFSET + Long.BYTES * SEGMENT_SIZE;
+	private static final int STATE_OFFSET = ORDER_ID_OFFSET + Long.BYTES * SEGMENT_SIZE;
+	private static final int PRICE_OFFSET = STATE_OFFSET + Long.BYTES * SEGMENT_SIZE;
+	private static final int USER_OFFSET = PRICE_OFFSET + Integer.BYTES * SEGMENT_SIZE;
+	private static final int PREVIOUS_OFFSET = USER_OFFSET + Integer.BYTES * SEGMENT_SIZE;
+	private static final int NEXT_OFFSET = PREVIOUS_OFFSET + Integer.BYTES * SEGMENT_SIZE;
+	private static final int TYPE_OFFSET = NEXT_OFFSET + Integer.BYTES * SEGMENT_SIZE;
+	/** Size of a segment, in bytes. */
+	private static final int SEGMENT_BYTES = TYPE_OFFSET + SEGMENT_SIZE;
+
+	/** Value of the state column for a slot which does not hold an order. Otherwise the column holds the generation of the order &lt;&lt; 8 | the ordinal of the state + 1. */
+	private static final long FREE = 0L;
+	/** The state column, accessed atomically. */
+	private static final VarHandle STATE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final OrderState[] STATES = OrderState.values();
+	private static final OrderType[] TYPES = OrderType.values();
+
+	/**
+	 * Column segments. Allocated for the maximum number of slots upfront, which is only few KB of references.
+	 */
+	private final ByteBuffer[] segments = new ByteBuffer[MAX_SLOTS >>> SEGMENT_BITS];
+	/**
+	 * Directory of the memory mapped segment files, null if segments are allocated as direct buffers.
+	 */
+	private final File directory;
+	/**
+	 * Queue of released slots.
+	 */
+	private final FreeSlots freeSlots = new FreeSlots(1024);
+	/**
+	 * Number of slots ever handed out. Slots at and above this mark have never been used.
+	 */
+	private int highWaterMark;
+	/**
+	 * Number of orders currently held.
+	 */
+	private int size;
+
+	/**
+	 * Constructs a store with direct buffer segments, for <code>initialCapacity</code> orders created upfront.
+	 * @param initialCapacity Number of orders to allocate upfront.
+	 */
+	public OffHeapOrderStore(int initialCapacity) {
+		this(initialCapacity, null);
+	}
+
+	/**
+	 * Constructs a store with segments memory mapped from files in the given directory, for <code>initialCapacity</code> orders created upfront.
+	 * The files are deleted when the JVM exits.
+	 * @param initialCapacity Number of orders to allocate upfront.
+	 * @param directory The directory of the segment files, or null to use direct buffers.
+	 */
+	public OffHeapOrderStore(int initialCapacity, File directory) {
+		this.directory = directory;
+		int capacity = Math.min(Math.max(initialCapacity, 1), MAX_SLOTS);
+		for(int segment = 0; segment <= (capacity -1) >>> SEGMENT_BITS; segment++){
+			createSegment(segment);
+		}
+	}
+
+	@Override
+	public synchronized long allocate(int userId, OrderType orderType, int orderPrice, long quantity){
+		int slot;
+		long orderId;
+		if(freeSlots.isDue(highWaterMark == MAX_SLOTS)){
+			slot = freeSlots.poll();
+			//the orderId column of a released slot already carries the next generation.
+			orderId = segment(slot).getLong(ORDER_ID_OFFSET + (slot & SEGMENT_MASK) * Long.BYTES);
+		}else{
+			if(highWaterMark == MAX_SLOTS){
+				//Cannot add order, as it exceeds the max allowed count.
+				throw new RuntimeException("Attempt to have more than "+MAX_SLOTS+" live orders");
+			}
+			slot = highWaterMark++;
+			if(segments[slot >>> SEGMENT_BITS] == null){
+				createSegment(slot >>> SEGMENT_BITS);
+			}
+			orderId = slot;
+		}
+		size++;
+		store(slot, orderId, userId, orderType, orderPrice, quantity);
+		return orderId;
+	}
+
+	/**
+	 * Writes a LIVE order in a slot.
+	 */
+	private void store(int slot, long orderId, int userId, OrderType orderType, int orderPrice, long quantity){
+		ByteBuffer segment = segment(slot);
+		int index = slot & SEGMENT_MASK;
+		segment.putLong(QUANTITY_OFFSET + index * Long.BYTES, quantity);
+		segment.putLong(ORDER_ID_OFFSET + index * Long.BYTES, orderId);
+		segment.putInt(PRICE_OFFSET + index * Integer.BYTES, orderPrice);
+		segment.putInt(USER_OFFSET + index * Integer.BYTES, userId);
+		segment.putInt(PREVIOUS_OFFSET + index * Integer.BYTES, NIL);
+		segment.putInt(NEXT_OFFSET + index * Integer.BYTES, NIL);
+		segment.put(TYPE_OFFSET + index, (byte) orderType.ordinal());
+		//last, the order is complete once LIVE.
+		STATE.setVolatile(segment, STATE_OFFSET + index * Long.BYTES, encode(orderId, OrderState.LIVE));
+	}
+
+	@Override
+	public synchronized int allocate(List<OrderRequest> requests, int[] userIds, int[] indices, int count, long[] orderIds){
+		for(int i=0; i<count; i++){
+			if(freeSlots.size() == 0 && highWaterMark == MAX_SLOTS){
+				return i;
+			}
+			OrderRequest request = requests.get(indices[i]);
+			orderIds[i] = allocate(userIds[i], request.getOrderType(), request.getOrderPrice(), request.getQuantity());
+		}
+		return count;
+	}
+
+	@Override
+	public int find(long orderId){
+		if(orderId < 0){
+			return NIL;
+		}
+		int slot = OrderStore.slot(orderId);
+		ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+		if(segment == null){
+			return NIL;
+		}
+		int index = slot & SEGMENT_MASK;
+		//a released slot has moved on to the next generation.
+		if(isFree(segment, index) || segment.getLong(ORDER_ID_OFFSET + index * Long.BYTES) != orderId){
+			return NIL;
+		}
+		return slot;
+	}
+
+	@Override
+	public synchronized void release(int slot){
+		ByteBuffer segment = segment(slot);
+		int index = slot & SEGMENT_MASK;
+		if(isFree(segment, index)){
+			//already released.
+			return;
+		}
+		long orderId = segment.getLong(ORDER_ID_OFFSET + index * Long.BYTES);
+		long generation = ((orderId >>> SLOT_BITS) + 1) & MAX_GENERATION;
+		segment.putLong(ORDER_ID_OFFSET + index * Long.BYTES, generation << SLOT_BITS | slot);
+		STATE.setVolatile(segment, STATE_OFFSET + index * Long.BYTES, FREE);
+		freeSlots.add(slot);
+		size--;
+	}
+
+	@Override
+	public synchronized int highWaterMark(){
+		return highWaterMark;
+	}
+
+	@Override
+	public long generation(int slot){
+		ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+		//the orderId column of a free slot carries the next generation.
+		return segment == null ? 0 : segment.getLong(ORDER_ID_OFFSET + (slot & SEGMENT_MASK) * Long.BYTES) >>> SLOT_BITS;
+	}
+
+	@Override
+	public synchronized void restoreGeneration(int slot, long generation){
+		raiseHighWaterMark(slot);
+		ByteBuffer segment = segment(slot);
+		int index = slot & SEGMENT_MASK;
+		if(!isFree(segment, index)){
+			return;
+		}
+		segment.putLong(ORDER_ID_OFFSET + index * Long.BYTES, (generation & MAX_GENERATION) << SLOT_BITS | slot);
+	}
+
+	@Override
+	public synchronized boolean restore(long orderId, int userId, OrderType orderType, int orderPrice, long quantity){
+		int slot = OrderStore.slot(orderId);
+		raiseHighWaterMark(slot);
+		ByteBuffer segment = segment(slot);
+		int index = slot & SEGMENT_MASK;
+		if(!isFree(segment, index)){
+			return false;
+		}
+		size++;
+		store(slot, orderId, userId, orderType, orderPrice, quantity);
+		return true;
+	}
+
+	@Override
+	public synchronized void rebuildFreeSlots(){
+		freeSlots.clear();
+		for(int slot = 0; slot < highWaterMark; slot++){
+			ByteBuffer segment = segment(slot);
+			int index = slot & SEGMENT_MASK;
+			if(isFree(segment, index)){
+				//a slot skipped by the restore has never been written, it starts at generation 0.
+				if(OrderStore.slot(segment.getLong(ORDER_ID_OFFSET + index * Long.BYTES)) != slot){
+					segment.putLong(ORDER_ID_OFFSET + index * Long.BYTES, slot);
+				}
+				freeSlots.add(slot);
+			}
+		}
+	}
+
+	@Override
+	public long orderId(int slot) {
+		ByteBuffer segment = segment(slot);
+		int index = slot & SEGMENT_MASK;
+		return isFree(segment, index) ? NIL : segment.getLong(ORDER_ID_OFFSET + index * Long.BYTES);
+	}
+
+	@Override
+	public int userId(int slot) {
+		return segment(slot).getInt(USER_OFFSET + (slot & SEGMENT_MASK) * Integer.BYTES);
+	}
+
+	@Override
+	public OrderType orderType(int slot) {
+		return TYPES[segment(slot).get(TYPE_OFFSET + (slot & SEGMENT_MASK))];
+	}
+
+	@Override
+	public int orderPrice(int slot) {
+		return segment(slot).getInt(PRICE_OFFSET + (slot & SEGMENT_MASK) * Integer.BYTES);
+	}
+
+	@Override
+	public long quantity(int slot) {
+		return segment(slot).getLong(QUANTITY_OFFSET + (slot & SEGMENT_MASK) * Long.BYTES);
+	}
+
+	@Override
+	public void setQuantity(int slot, long quantity) {
+		segment(slot).putLong(QUANTITY_OFFSET + (slot & SEGMENT_MASK) * Long.BYTES, quantity);
+	}
+
+	@Override
+	public OrderState state(int slot) {
+		long state = (long) STATE.getVolatile(segment(slot), STATE_OFFSET + (slot & SEGMENT_MASK) * Long.BYTES);
+		//the state an order was released in is not kept, a released slot is reported as cancelled.
+		return state == FREE ? OrderState.CANCELLED : STATES[(int) (state & 0xff) - 1];
+	}
+
+	@Override
+	public void setState(int slot, OrderState state) {
+		ByteBuffer segment = segment(slot);
+		int index = slot & SEGMENT_MASK;
+		STATE.setVolatile(segment, STATE_OFFSET + index * Long.BYTES, encode(segment.getLong(ORDER_ID_OFFSET + index * Long.BYTES), state));
+	}
+
+	@Override
+	public boolean compareAndSetState(int slot, long orderId, OrderState expected, OrderState state) {
+		//the generation is part of the expected value, a reused slot does not match.
+		return STATE.compareAndSet(segment(slot), STATE_OFFSET + (slot & SEGMENT_MASK) * Long.BYTES, encode(orderId, expected), encode(orderId, state));
+	}
+
+	@Override
+	public int previous(int slot) {
+		return segment(slot).getInt(PREVIOUS_OFFSET + (slot & SEGMENT_MASK) * Integer.BYTES);
+	}
+
+	@Override
+	public void setPrevious(int slot, int previous) {
+		segment(slot).putInt(PREVIOUS_OFFSET + (slot & SEGMENT_MASK) * Integer.BYTES, previous);
+	}
+
+	@Override
+	public int next(int slot) {
+		return segment(slot).getInt(NEXT_OFFSET + (slot & SEGMENT_MASK) * Integer.BYTES);
+	}
+
+	@Override
+	public void setNext(int slot, int next) {
+		segment(slot).putInt(NEXT_OFFSET + (slot & SEGMENT_MASK) * Integer.BYTES, next);
+	}
+
+	@Override
+	public synchronized int size(){
+		return size;
+	}
+
+	@Override
+	public synchronized int capacity(){
+		int capacity = 0;
+		for(int segment = 0; segment < segments.length && segments[segment] != null; segment++){
+			capacity += SEGMENT_SIZE;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Makes sure the slot is below the high water mark, and its segment exists.
+	 */
+	private void raiseHighWaterMark(int slot){
+		if(slot < highWaterMark){
+			return;
+		}
+		for(int segment = highWaterMark >>> SEGMENT_BITS; segment <= slot >>> SEGMENT_BITS; segment++){
+			if(segments[segment] == null){
+				createSegment(segment);
+			}
+		}
+		highWaterMark = slot + 1;
+	}
+
+	private ByteBuffer segment(int slot){
+		return segments[slot >>> SEGMENT_BITS];
+	}
+
+	/**
+	 * The value of the state column, for an order in the given state.
+	 */
+	private static long encode(long orderId, OrderState state){
+		return (orderId >>> SLOT_BITS) << 8 | (state.ordinal() + 1);
+	}
+
+	private static boolean isFree(ByteBuffer segment, int index){
+		return (long) STATE.getVolatile(segment, STATE_OFFSET + index * Long.BYTES) == FREE;
+	}
+
+	private void createSegment(int segment){
+		ByteBuffer buffer;
+		if(directory == null){
+			buffer = ByteBuffer.allocateDirect(SEGMENT_BYTES);
+		}else{
+			try{
+				//a new file per segment, the mapping extends the file with zeros (ie: FREE slots).
+				File file = File.createTempFile("orders-segment-"+segment+"-", ".dat", directory);
+				file.deleteOnExit();
+				try(RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()){
+					//the mapping stays valid after the channel is closed.
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+				}
+			}catch(IOException ex){
+				throw new UncheckedIOException("Failed to map order segment "+segment+" in "+directory, ex);
+			}
+		}
+		buffer.order(ByteOrder.nativeOrder());
+		segments[segment] = buffer;
+	}
+}
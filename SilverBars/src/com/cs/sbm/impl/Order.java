@@ -1,54 +1,55 @@
 package com.cs.sbm.impl;
 
-import java.math.BigDecimal;
-
 import com.cs.sbm.api.OrderType;
 
 /**
  * An order, with pointers to previous and next orders in the price level.
+ * This is the representation of an order held by the {@link HeapOrderStore}, the pointers are slot indices in that store.
  * @author Nat
  *
  */
 public class Order {
 	
 	/**The ID of this order */
-	final int orderId;
-	/** Name of the user, placed this order */
-	final String userName;
+	final long orderId;
+	/** ID of the user, placed this order (see {@link UserRegistry}) */
+	final int userId;
 	/** The type of this order. Either buy or sell. */
 	final OrderType orderType;
 	/** The order price, in pence. */
 	final int orderPrice;
-	/** The order quantity */
-	final BigDecimal quantity;
-	/** The current state of this order */
-	OrderState state;
-	/**The previous order at this price level */
-	Order previous;
-	/**The next order at this price level */
-	Order next;
+	/** The remaining order quantity, in fixed point units (see {@link FixedPointQuantity}). Reduced by partial fills. */
+	long quantity;
+	/** The current state of this order. Changed atomically by the {@link HeapOrderStore}, as orders are cancelled without lock. */
+	volatile OrderState state;
+	/**The slot of the previous order at this price level */
+	int previous;
+	/**The slot of the next order at this price level */
+	int next;
 	/**
 	 * Constructor to create an instance of an order.
 	 * @param orderId The order ID
-	 * @param userName The user name.
+	 * @param userId The ID of the user.
 	 * @param orderType The type of the order.
 	 * @param orderPrice The order price, in GBPx
-	 * @param quantity Quantity.
+	 * @param quantity Quantity, in fixed point units.
 	 */
-	public Order(int orderId, String userName, OrderType orderType, int orderPrice, BigDecimal quantity) {
+	public Order(long orderId, int userId, OrderType orderType, int orderPrice, long quantity) {
 		super();
 		this.orderId = orderId;
-		this.userName = userName;
+		this.userId = userId;
 		this.orderType = orderType;
 		this.orderPrice = orderPrice;
 		this.quantity = quantity;
 		this.state = OrderState.LIVE;
+		this.previous = OrderStore.NIL;
+		this.next = OrderStore.NIL;
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
-		builder.append("Order {userName=").append(userName).append(", orderType=").append(orderType)
+		builder.append("Order {userId=").append(userId).append(", orderType=").append(orderType)
 				.append(", orderPrice=").append(orderPrice).append(", quantity=").append(quantity).append(", state=")
 				.append(state).append(", next=").append(next).append("}");
 		return builder.toString();
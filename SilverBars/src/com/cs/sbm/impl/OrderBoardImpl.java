@@ -1,20 +1,27 @@
 package com.cs.sbm.impl;
 
+import java.io.File;
 import java.math.BigDecimal;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
+import com.cs.sbm.api.BatchResult;
 import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.api.OrderBookDeltaListener;
 import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderRequest;
 import com.cs.sbm.api.OrderType;
 import com.cs.sbm.api.OrderUpdateListener;
+import com.cs.sbm.api.ResultCode;
+import com.cs.sbm.api.TradeListener;
 
 /**
  * An implementation of {@link OrderBoard} that performs register, cancellation of an order.
@@ -25,161 +32,1173 @@ import com.cs.sbm.api.OrderUpdateListener;
  * ----------- IMPLEMENTATION NOTE ---------
  * 
  * There are 2 key operations on the orderbook. The first one is, locating price levels, so as to add an order to a price level. The level look up should be as fast as possible.
- * For this purpose, a {@link ConcurrentSkipListMap} is used, with order price being the key. For simplicity sake, its been assumed that that price is whole integer. 
- * Additionally {@link ConcurrentSkipListMap} offers thread safety. 
+ * For this purpose, a {@link PriceLadder} is used, which is an array of levels indexed by the offset of the order price from a base price. For simplicity sake, its been assumed that that price is whole integer. 
+ * As silver prices live in a narrow band, this gives O(1) look up without boxing the price, with a sorted map as a fallback for outliers. 
+ * Additionally {@link PriceLadder} offers thread safety. 
  * 
  * The second operation is Looking up the order itself for cancellation or execution purpose. For this, a {@link Map} could be used, with an orderId as key. 
  * However in terms of GC, this is not a great choice, as the memory needs to be dynamically allocated every time an item is added.
- * Instead, a big array is being used in this implementation. The array is initialised at the time of construction which helps in terms of GC.
+ * Instead, an {@link OrderStore} is being used in this implementation, which holds orders in segmented arrays. The initial segments are created at the time of construction which helps in terms of GC,
+ * and further segments are added as needed, without copying the orders already stored.
  * We could probably use 3rd party libraries like LMAX Disruptor, but for the purpose of this exercise no 3rd party library has been used. 
  * 
- *  OrderId is defined as an Integer, and it is generated using an AtomicInteger. This orderId also serves as the index of the specified order, in the storage array.
+ *  OrderId is defined as a Long, and it is handed out by the {@link OrderStore}. The low bits of this orderId serve as the index of the specified order, in the storage.
+ *  Slots of cancelled orders are recycled, the orderId carries a generation of the slot, so that an orderId of a cancelled order is not valid anymore once the slot is reused.
  * -----------------------------------------
  * 
  * @author Nat Paramasivam
  */
 public final class OrderBoardImpl implements OrderBoard {
 	
-	/**Maximum number of orders. */
-	private static final int DEFAULT_MAX_ORDER_COUNT = 1024 * 5;
+	/**Number of orders the storage is initially created for. */
+	private static final int DEFAULT_INITIAL_ORDER_COUNT = 1024 * 5;
+	/**Mask of the index of an item of a batch, in the sort key of the item. */
+	private static final int BATCH_INDEX_MASK = (1 << 30) - 1;
+	private static final OrderType[] ORDER_TYPES = OrderType.values();
 	
 	//The logger.
 	private final Logger logger = Logger.getLogger(OrderBoardImpl.class.getName());
 	/**
-	 * Bid price levels. Stored as a Skip list map, as it provides O(log n) search performance.
-	 * The concurrent version provides safety in a multi-threaded environment.
+	 * Bid price levels. Stored as a price ladder, as it provides O(1) search performance, with the highest price first.
+	 * The ladder provides safety in a multi-threaded environment.
 	 */
-	private ConcurrentSkipListMap<Integer, PriceLevel> buyPriceLevels = new ConcurrentSkipListMap<>(Comparator.comparing(Integer::intValue).reversed() );
+	private final PriceLadder buyPriceLevels;
 	
 	/**
-	 * Bid price levels. Stored as a Skip list map, as it provides best search performance.
-	 * The concurrent version provides safety in a multi threaded environment.
+	 * Ask price levels. Stored as a price ladder, as it provides O(1) search performance, with the lowest price first.
+	 * The ladder provides safety in a multi threaded environment.
 	 */
-	private ConcurrentSkipListMap<Integer, PriceLevel> sellPriceLevels = new ConcurrentSkipListMap<>();
+	private final PriceLadder sellPriceLevels;
 	
 	/**
-	 * Orders, stored as an array.
-	 * The index of the array also serves as orderId, enabling O(1) lookup to locate an order by its ID.
+	 * Orders, stored in segmented arrays, either on or off the heap.
+	 * The index in the storage also serves as orderId, enabling O(1) lookup to locate an order by its ID.
 	 * 
 	 */
-	private final Order[] orders;
+	private final OrderStore orders;
 	/**
-	 * Atomic counter to generate unique Order Ids.
+	 * Publishes the updates of this OrderBoard to the registered listeners.
+	 * By default, listeners are notified synchronously after every register/cancel, see {@link UpdateNotifier} for alternatives.
 	 */
-	private AtomicInteger orderCounter = new AtomicInteger(0);
+	private final UpdateNotifier notifier;
 	/**
-	 * List of listeners interested in receiving notification from this OrderBoard.
-	 * Number of read operations is expected to outnumber the number of write operations on this list, hence a CopyOnWriteArrayList is being used.
+	 * Publishes the changes of the price levels to the registered delta listeners.
 	 */
-	private CopyOnWriteArrayList<OrderUpdateListener> listeners = new CopyOnWriteArrayList<>();
+	private final DeltaPublisher deltas;
 	/**
-	 * Constructor to create an orderboard with default number (5120) of orders.
+	 * Versions of the BUY and SELL sides of the orderbook, bumped after every change of the side.
+	 */
+	private final AtomicLong buyVersion = new AtomicLong();
+	private final AtomicLong sellVersion = new AtomicLong();
+	/**
+	 * The last full snapshot of the orderbook, with the versions of the sides it was taken at.
+	 */
+	private volatile CachedSummary cachedSummary = new CachedSummary(-1, -1, null);
+	/**
+	 * Whether incoming orders are matched against the opposite side of the orderbook.
+	 */
+	private final boolean matching;
+	/**
+	 * Lock to serialise the matching of incoming orders, so that two crossing orders can not both rest on the orderbook. Only taken when matching.
+	 * In single writer mode (see {@link SequencedOrderBoard}), it is never contended.
+	 */
+	private final ReentrantLock matchLock = new ReentrantLock();
+	/**
+	 * Matches the incoming orders. Reused under the match lock, so matching does not allocate.
+	 */
+	private final Matcher matcher = new Matcher();
+	/**
+	 * List of listeners interested in receiving the trades of this OrderBoard.
+	 */
+	private final CopyOnWriteArrayList<TradeListener> tradeListeners = new CopyOnWriteArrayList<>();
+	/**
+	 * The journal of the register/cancel commands, or null if this OrderBoard is not journaled.
+	 */
+	private final OrderJournal journal;
+	/**
+	 * Lock to serialise the register/cancel commands, when journaling. The orderIds are handed out in journal order, so that the replay hands out the same orderIds.
+	 */
+	private final ReentrantLock journalLock = new ReentrantLock();
+	/**
+	 * Position of the end of the last record appended to the journal. Guarded by the journal lock.
+	 */
+	private long journalPosition;
+	/**
+	 * Whether a user has been defined in the journal, by user ID, since the journal position was last read for a snapshot. Guarded by the journal lock.
+	 */
+	private boolean[] journaledUsers = new boolean[64];
+	/**
+	 * Whether the orderboard is being recovered from a snapshot and the journal, ie: commands are not to be journaled again. Only set while constructing.
+	 */
+	private boolean replaying;
+	/**
+	 * The audit log of the registered/cancelled orders, or null to log them through java.util.logging, at FINE level.
+	 */
+	private final AuditLog audit;
+	/**
+	 * Number of decimal places of the fixed point order quantities. See {@link FixedPointQuantity}
+	 */
+	private final int quantityScale;
+	/**
+	 * The counters, gauges and latency histograms of this orderboard.
+	 */
+	private final OrderBoardMetrics metrics;
+	/**
+	 * The IDs of the users, so the orders hold an int rather than the user name.
+	 */
+	private final UserRegistry userRegistry = new UserRegistry();
+	/**
+	 * The live orders of every user.
+	 */
+	private final UserOrderIndex users;
+	/**
+	 * Constructor to create an orderboard with storage initially allocated for default number (5120) of orders.
 	 */
 	public OrderBoardImpl(){
-		this(DEFAULT_MAX_ORDER_COUNT);
+		this(DEFAULT_INITIAL_ORDER_COUNT);
+	}
+	/**
+	 * Constructor to create an orderboard with storage initially allocated for <code>initialOrderCount</code> orders.
+	 * The storage grows as needed.
+	 * 
+	 * @param initialOrderCount The initial orderbook size
+	 */
+	public OrderBoardImpl(int initialOrderCount){
+		this(initialOrderCount, FixedPointQuantity.DEFAULT_SCALE);
+	}
+	/**
+	 * Constructor to create an orderboard with storage initially allocated for <code>initialOrderCount</code> orders, holding quantities with <code>quantityScale</code> decimal places.
+	 * 
+	 * @param initialOrderCount The initial orderbook size
+	 * @param quantityScale Number of decimal places of the order quantities. For example 3, to hold quantities in thousandths of a kg.
+	 */
+	public OrderBoardImpl(int initialOrderCount, int quantityScale){
+		this(new HeapOrderStore(initialOrderCount), quantityScale);
+	}
+	/**
+	 * Constructor to create an orderboard on the given storage, holding quantities with <code>quantityScale</code> decimal places.
+	 * This allows to choose between keeping orders on the heap ({@link HeapOrderStore}) or off the heap ({@link OffHeapOrderStore}).
+	 * 
+	 * @param orders The storage of orders. Must not be shared with another orderboard.
+	 * @param quantityScale Number of decimal places of the order quantities. For example 3, to hold quantities in thousandths of a kg.
+	 */
+	public OrderBoardImpl(OrderStore orders, int quantityScale){
+		this(orders, quantityScale, new SynchronousUpdateNotifier());
+	}
+	/**
+	 * Constructor to create an orderboard on the given storage, publishing its updates through the given notifier.
+	 * For example, a {@link CoalescingUpdateNotifier} to publish at most one snapshot per interval.
+	 * 
+	 * @param orders The storage of orders. Must not be shared with another orderboard.
+	 * @param quantityScale Number of decimal places of the order quantities. For example 3, to hold quantities in thousandths of a kg.
+	 * @param notifier The notifier. Must not be shared with another orderboard.
+	 */
+	public OrderBoardImpl(OrderStore orders, int quantityScale, UpdateNotifier notifier){
+		this(orders, quantityScale, notifier, false);
+	}
+	/**
+	 * Constructor to create an orderboard on the given storage, publishing its updates through the given notifier, and optionally matching the incoming orders.
+	 * 
+	 * @param orders The storage of orders. Must not be shared with another orderboard.
+	 * @param quantityScale Number of decimal places of the order quantities. For example 3, to hold quantities in thousandths of a kg.
+	 * @param notifier The notifier. Must not be shared with another orderboard.
+	 * @param matching true to match incoming orders against the opposite side, in price-time priority. Otherwise, crossing orders rest on the orderbook.
+	 */
+	public OrderBoardImpl(OrderStore orders, int quantityScale, UpdateNotifier notifier, boolean matching){
+		this(orders, quantityScale, notifier, matching, null);
+	}
+	/**
+	 * Constructor to create an orderboard on the given storage, journaling its register/cancel commands.
+	 * The commands already in the journal are replayed first, so the orderboard is rebuilt as it was, with the same orderIds.
+	 * 
+	 * @param orders The storage of orders. Must be empty, if the journal is not.
+	 * @param quantityScale Number of decimal places of the order quantities. Must be the scale the journal has been written with.
+	 * @param notifier The notifier. Must not be shared with another orderboard.
+	 * @param matching true to match incoming orders against the opposite side. Must be the mode the journal has been written with.
+	 * @param journal The journal, or null for none. Must not be shared with another orderboard.
+	 */
+	public OrderBoardImpl(OrderStore orders, int quantityScale, UpdateNotifier notifier, boolean matching, OrderJournal journal){
+		this(orders, quantityScale, notifier, matching, journal, null);
 	}
 	/**
-	 * Constructor to create an orderboard with <code>maxOrderCount<</code> of orders.
+	 * Constructor to create an orderboard on the given storage, recovered from a snapshot (see {@link #writeSnapshot(File)}) and the tail of its journal.
+	 * The orders of the snapshot are restored first, then the journal is replayed from the position the snapshot was taken at.
 	 * 
-	 * @param maxOrderCount The orderbook size
+	 * @param orders The storage of orders. Must be empty, if the journal or the snapshot is not.
+	 * @param quantityScale Number of decimal places of the order quantities. Must be the scale the journal and the snapshot have been written with.
+	 * @param notifier The notifier. Must not be shared with another orderboard.
+	 * @param matching true to match incoming orders against the opposite side. Must be the mode the journal has been written with.
+	 * @param journal The journal, or null for none. Must not be shared with another orderboard.
+	 * @param snapshot The snapshot file, or null for none. Ignored if the file does not exist yet, ie: the journal is replayed from the start.
+	 * @throws IllegalStateException if the snapshot is corrupted, or has been written with another quantity scale.
 	 */
-	public OrderBoardImpl(int maxOrderCount){
-		this.orders  = new Order[maxOrderCount];
+	public OrderBoardImpl(OrderStore orders, int quantityScale, UpdateNotifier notifier, boolean matching, OrderJournal journal, File snapshot){
+		this(orders, quantityScale, notifier, matching, journal, snapshot, null);
+	}
+	/**
+	 * Constructor to create an orderboard, recording the registered/cancelled orders in a binary audit log rather than logging them.
+	 * See {@link #OrderBoardImpl(OrderStore, int, UpdateNotifier, boolean, OrderJournal, File)} for the other parameters.
+	 * 
+	 * @param audit The audit log, or null to log the orders through java.util.logging, at FINE level. Can be shared with other orderboards.
+	 */
+	public OrderBoardImpl(OrderStore orders, int quantityScale, UpdateNotifier notifier, boolean matching, OrderJournal journal, File snapshot, AuditLog audit){
+		this.orders  = orders;
+		this.audit = audit;
+		this.journal = journal;
+		this.matching = matching;
+		this.notifier = notifier;
+		this.quantityScale = FixedPointQuantity.checkScale(quantityScale);
+		this.buyPriceLevels = new PriceLadder(OrderType.BUY, price -> new PriceLevel(price, this.quantityScale, this.orders));
+		this.sellPriceLevels = new PriceLadder(OrderType.SELL, price -> new PriceLevel(price, this.quantityScale, this.orders));
+		this.deltas = new DeltaPublisher(buyPriceLevels, sellPriceLevels);
+		this.users = new UserOrderIndex(this.orders);
+		this.metrics = new OrderBoardMetrics(orders::size, () -> levelCount(buyPriceLevels), () -> levelCount(sellPriceLevels));
+		this.notifier.bind(this::getSummary, metrics);
+		if(journal != null || (snapshot != null && snapshot.exists())){
+			recover(snapshot);
+		}
+	}
+	
+	/**
+	 * Utility method to rebuild the orderbook from the snapshot and the journal.
+	 * Orders are put back in their slots, with their orderIds, rather than allocated. The free slots of the storage are rebuilt once all the orders are back.
+	 * 
+	 * As the snapshot is only consistent level by level, the journal may hold commands already reflected by the snapshot. The replay skips them:
+	 * a register is skipped if the slot of its orderId already holds an order, a cancel is skipped if its order is not there.
+	 * A command which fails to apply is logged and skipped, rather than making the orderboard unrecoverable.
+	 */
+	private void recover(File snapshot){
+		if(orders.size() != 0){
+			throw new IllegalArgumentException("The orderboard must be recovered on an empty storage");
+		}
+		replaying = true;
+		try{
+			long position = 0;
+			if(snapshot != null && snapshot.exists()){
+				position = OrderBookSnapshot.read(snapshot, orders, userRegistry, quantityScale, (slot, side, price) -> addToPriceLevel(slot, side, price));
+				logger.log(Level.INFO, "Restored "+orders.size()+" live orders from "+snapshot);
+			}
+			if(journal != null){
+				int records = journal.replay(new OrderJournal.Visitor() {
+					/** IDs of the users in the registry, by their IDs in the journal, which may be those of a previous life of the orderboard. */
+					private int[] userIds = new int[64];
+					@Override
+					public void onUser(int userId, String userName) {
+						if(userId >= userIds.length){
+							userIds = Arrays.copyOf(userIds, Math.max(userId + 1, userIds.length * 2));
+						}
+						//shifted by one, so that 0 is an undefined user.
+						userIds[userId] = userRegistry.register(userName) + 1;
+					}
+					@Override
+					public void onRegister(long orderId, int userId, OrderType orderType, int orderPrice, long quantity) {
+						try{
+							if(orders.restore(orderId, userId(userId), orderType, orderPrice, quantity)){
+								execute(orderId, orderType, orderPrice, quantity);
+							}
+						}catch(RuntimeException ex){
+							logger.log(Level.WARNING, "Skipped the replay of order "+orderId+", "+orderType+" "+quantity+" @ "+orderPrice, ex);
+							abandon(orderId, orderType, orderPrice);
+						}
+					}
+					@Override
+					public void onCancel(long orderId) {
+						try{
+							cancel(orderId);
+						}catch(RuntimeException ex){
+							logger.log(Level.WARNING, "Skipped the replay of the cancel of order "+orderId, ex);
+						}
+					}
+					private int userId(int journalUserId){
+						if(journalUserId == UserRegistry.NO_USER){
+							return UserRegistry.NO_USER;
+						}
+						if(journalUserId < 0 || journalUserId >= userIds.length || userIds[journalUserId] == 0){
+							throw new IllegalStateException("User "+journalUserId+" is not defined in the journal");
+						}
+						return userIds[journalUserId] - 1;
+					}
+				}, position);
+				logger.log(Level.INFO, "Replayed "+records+" commands, "+orders.size()+" live orders");
+			}
+			orders.rebuildFreeSlots();
+		}finally{
+			replaying = false;
+		}
 	}
 	
 	/**
 	 * Registers an order.
 	 * If the price level at orderPrice does not exist, a new price level will be created. 
 	 * If the price level already exists, this order will be added to the tail of existing orders at that price level.
-	 * Once the order is processed, all registered {@link OrderUpdateListener}s are notified with latest orderbook snapshot. 
+	 * Once the order is processed, the {@link UpdateNotifier} notifies all registered {@link OrderUpdateListener}s with latest orderbook snapshot. 
 	 * @param userName The user name.
 	 * @param orderType The order type
 	 * @param orderPrice The order price, in whole pounds. 
 	 * @param quantity The order size
 	 */
 	@Override
-	public int registerOrder(String userName, OrderType orderType, int orderPrice, BigDecimal quantity) {
-		//The unique ID of this order.
-		int orderId = orderCounter.getAndIncrement();
-		//boundary check. If this is an attempt to add more orders than the storage can support, throw exception
-		if(orderId >= orders.length){
-			//Cannot add order, as it exceeds the max allowed count.
-			throw new RuntimeException("Attempt to add more than "+this.orders.length+" orders");
+	public long registerOrder(String userName, OrderType orderType, int orderPrice, BigDecimal quantity) {
+		//convert at the edge, the rest of the board works with fixed point quantities.
+		return registerOrder(userName, orderType, orderPrice, FixedPointQuantity.toUnits(quantity, quantityScale));
+	}
+	/**
+	 * Registers an order, with the quantity in fixed point units.
+	 * When matching, the order is first matched against the opposite side of the orderbook, from the best price and in time priority at every price level,
+	 * as long as the prices cross. Every fill is reported to the registered {@link TradeListener}s. Only the remaining quantity, if any, rests on the orderbook.
+	 * If the price level at orderPrice does not exist, a new price level will be created. 
+	 * If the price level already exists, this order will be added to the tail of existing orders at that price level.
+	 * Once the order is processed, the {@link UpdateNotifier} notifies all registered {@link OrderUpdateListener}s with latest orderbook snapshot. 
+	 * @param userName The user name.
+	 * @param orderType The order type
+	 * @param orderPrice The order price, in whole pounds. 
+	 * @param quantity The order size, in units of 10^-quantityScale kg.
+	 */
+	@Override
+	public long registerOrder(String userName, OrderType orderType, int orderPrice, long quantity) {
+		return registerOrder(userRegistry.register(userName), orderType, orderPrice, quantity);
+	}
+	/**
+	 * Registers an order for a user registered earlier, see {@link #registerOrder(String, OrderType, int, long)}. No String is handled on the way.
+	 * @param userId The ID of the user, as returned by {@link #registerUser(String)}.
+	 * @param orderType The order type
+	 * @param orderPrice The order price, in whole pounds. 
+	 * @param quantity The order size, in units of 10^-quantityScale kg.
+	 * @throws IllegalArgumentException if the user has not been registered, there is no order type or the quantity is not positive.
+	 */
+	@Override
+	public long registerOrder(int userId, OrderType orderType, int orderPrice, long quantity) {
+		if(!userRegistry.isValid(userId)){
+			throw new IllegalArgumentException("Unknown user "+userId);
 		}
-		Order order = new Order(orderId, userName, orderType, orderPrice, quantity);
-		//locate the price level, this order belongs to.
-		PriceLevel priceLevel = null;
-		if(OrderType.BUY == orderType){
-			priceLevel = buyPriceLevels.computeIfAbsent(orderPrice, k -> new PriceLevel(k));
+		checkOrder(orderType, quantity);
+		long start = System.nanoTime();
+		long orderId;
+		if(journal == null){
+			orderId = register(userId, orderType, orderPrice, quantity);
 		}else{
-			priceLevel = sellPriceLevels.computeIfAbsent(orderPrice, k -> new PriceLevel(k));
-		}
-		//update the price level, with new order.
-		priceLevel.addOrder(order);
-		//Update the orders array.
-		orders[orderId] = order;
-		logger.log(Level.INFO, "Added "+orderType+" order for "+quantity+" @ "+orderPrice);
-		//Notify all registered listeners with updated orderbook summary.
-		computeSummaryAndNotifyListeners();
+			long position;
+			journalLock.lock();
+			try{
+				orderId = register(userId, orderType, orderPrice, quantity);
+				position = journalPosition;
+			}finally{
+				journalLock.unlock();
+			}
+			//outside of the lock, so that concurrent callers can share a force of the journal.
+			journal.commit(position);
+		}
+		//Notify all registered listeners with updated orderbook summary, once the order is committed and out of the locks.
+		notifyListeners();
+		metrics.registered(1, start);
 		return orderId;
 	}
+	/**
+	 * Utility method to validate an order, as the batch path does (see {@link ResultCode#INVALID_REQUEST}).
+	 * @throws IllegalArgumentException if there is no order type or the quantity is not positive.
+	 */
+	static void checkOrder(OrderType orderType, long quantity){
+		if(orderType == null || quantity <= 0){
+			throw new IllegalArgumentException("Invalid order: type "+orderType+", quantity "+quantity);
+		}
+	}
+	/**
+	 * Registers an order, see {@link #registerOrder(int, OrderType, int, long)}. Called under the journal lock, when journaling, but not when recovering.
+	 * The listeners are left to the caller, to be notified out of the lock.
+	 */
+	private long register(int userId, OrderType orderType, int orderPrice, long quantity) {
+		//The unique ID of this order. The storage throws exception, if this is an attempt to have more live orders than it can support.
+		long orderId;
+		try{
+			orderId = orders.allocate(userId, orderType, orderPrice, quantity);
+		}catch(RuntimeException ex){
+			metrics.capacityRejected(1);
+			throw ex;
+		}
+		if(journal != null){
+			//write ahead: the command is journaled before it is applied to the orderbook.
+			try{
+				journalPosition = journalRegister(orderId, userId, orderType, orderPrice, quantity);
+			}catch(RuntimeException ex){
+				//not journaled, hence not registered.
+				orders.release(OrderStore.slot(orderId));
+				throw ex;
+			}
+		}
+		long rested;
+		try{
+			rested = execute(orderId, orderType, orderPrice, quantity);
+		}catch(RuntimeException ex){
+			try{
+				abandon(orderId, orderType, orderPrice);
+			}catch(RuntimeException suppressed){
+				ex.addSuppressed(suppressed);
+			}
+			throw ex;
+		}
+		if(audit != null){
+			audit.registered(orderId, orderType, orderPrice, quantity, rested, quantityScale);
+		}else if(logger.isLoggable(Level.FINE)){
+			//only build the message if it is going to be logged.
+			logger.log(Level.FINE, (rested == 0 ? "Filled on arrival " : "Added ")+orderType+" order for "+FixedPointQuantity.toBigDecimal(rested == 0 ? quantity : rested, quantityScale)+" @ "+orderPrice);
+		}
+		return orderId;
+	}
+	/**
+	 * Utility method to journal a register, by user ID. The name of the user is journaled first, the first time the user is journaled, so the registers do not handle a String.
+	 * Called under the journal lock.
+	 * @return The position of the end of the register record.
+	 */
+	private long journalRegister(long orderId, int userId, OrderType orderType, int orderPrice, long quantity){
+		if(userId != UserRegistry.NO_USER){
+			if(userId >= journaledUsers.length){
+				journaledUsers = Arrays.copyOf(journaledUsers, Math.max(userId + 1, journaledUsers.length * 2));
+			}
+			if(!journaledUsers[userId]){
+				journal.appendUser(userId, userRegistry.name(userId));
+				journaledUsers[userId] = true;
+			}
+		}
+		return journal.appendRegister(orderId, userId, orderType, orderPrice, quantity);
+	}
+	/**
+	 * Utility method to undo an order which failed to execute: the order is taken off its level if it made it there, or its slot is released.
+	 * When journaling, a cancel is journaled first, so that a recovery does not replay the order either.
+	 */
+	private void abandon(long orderId, OrderType orderType, int orderPrice){
+		if(journal != null && !replaying){
+			journalPosition = journal.appendCancel(orderId);
+		}
+		int slot = orders.find(orderId);
+		if(slot == OrderStore.NIL || OrderState.LIVE != orders.state(slot)){
+			//filled, or not restored in the first place.
+			return;
+		}
+		PriceLevel priceLevel = OrderType.BUY == orderType ? buyPriceLevels.get(orderPrice) : sellPriceLevels.get(orderPrice);
+		if(priceLevel != null && priceLevel.removeOrder(slot, orderId, OrderState.CANCELLED)){
+			//the price level releases the slot.
+			version(orderType).incrementAndGet();
+			deltas.levelChanged(orderType, priceLevel);
+			evictIfEmpty(orderType, priceLevel);
+		}else{
+			orders.release(slot);
+		}
+	}
+	/**
+	 * Utility method to match a new order, and rest what remains of it on the orderbook.
+	 * @return The quantity rested on the orderbook, 0 if the order was completely filled on arrival, in which case its slot is released.
+	 */
+	private long execute(long orderId, OrderType orderType, int orderPrice, long quantity){
+		int slot = OrderStore.slot(orderId);
+		if(matching){
+			matchLock.lock();
+			try{
+				long remaining = matcher.match(orderId, orderType, orderPrice, quantity);
+				if(remaining == 0){
+					//completely filled on arrival, the order never rests on the orderbook.
+					orders.setState(slot, OrderState.FILLED);
+					orders.release(slot);
+				}else{
+					orders.setQuantity(slot, remaining);
+					addToPriceLevel(slot, orderType, orderPrice);
+				}
+				return remaining;
+			}finally{
+				matchLock.unlock();
+			}
+		}
+		addToPriceLevel(slot, orderType, orderPrice);
+		return quantity;
+	}
+	/**
+	 * Utility method to rest an order on the orderbook.
+	 */
+	private void addToPriceLevel(int slot, OrderType orderType, int orderPrice){
+		//locate the price level, this order belongs to.
+		PriceLadder ladder = OrderType.BUY == orderType ? buyPriceLevels : sellPriceLevels;
+		PriceLevel priceLevel;
+		//update the price level, with new order. Looked up again if the level has been evicted in the meantime.
+		do{
+			priceLevel = ladder.getOrCreate(orderPrice);
+		}while(!priceLevel.addOrder(slot));
+		users.add(orders.userId(slot), orders.orderId(slot));
+		version(orderType).incrementAndGet();
+		deltas.levelChanged(orderType, priceLevel);
+	}
+	/**
+	 * Registers a batch of orders, see {@link #registerOrder(String, OrderType, int, long)}.
+	 * The slots of the orders are allocated in a block, under a single lock of the storage. When journaling, the batch is journaled under a single journal lock and committed once.
+	 * Without matching, the orders are grouped by price level and every level is locked, and published to the delta listeners, once.
+	 * When matching, an order may match the orders before it in the batch, hence the orders are matched one at a time.
+	 * Either way, the {@link UpdateNotifier} is told once, after the whole batch.
+	 */
+	@Override
+	public BatchResult registerOrders(List<OrderRequest> requests) {
+		int size = requests.size();
+		if(size > BATCH_INDEX_MASK){
+			throw new IllegalArgumentException("Batch of "+size+" orders is too large");
+		}
+		long[] orderIds = new long[size];
+		ResultCode[] codes = new ResultCode[size];
+		Arrays.fill(orderIds, -1);
+		//the indices of the valid requests.
+		int[] valid = new int[size];
+		int count = 0;
+		for(int i=0; i<size; i++){
+			OrderRequest request = requests.get(i);
+			if(request == null || request.getOrderType() == null || request.getQuantity() <= 0){
+				codes[i] = ResultCode.INVALID_REQUEST;
+			}else{
+				valid[count++] = i;
+			}
+		}
+		if(count == 0){
+			return new BatchResult(orderIds, codes);
+		}
+		if(journal == null){
+			register(requests, valid, count, orderIds, codes);
+		}else{
+			long position;
+			journalLock.lock();
+			try{
+				register(requests, valid, count, orderIds, codes);
+				position = journalPosition;
+			}finally{
+				journalLock.unlock();
+			}
+			journal.commit(position);
+		}
+		notifyListeners();
+		int registered = 0;
+		for(ResultCode code : codes){
+			if(ResultCode.OK == code){
+				registered++;
+			}
+		}
+		metrics.registered(registered, 0);
+		return new BatchResult(orderIds, codes);
+	}
+	/**
+	 * Registers the valid requests of a batch, see {@link #registerOrders(List)}. Called under the journal lock, when journaling.
+	 */
+	private void register(List<OrderRequest> requests, int[] valid, int count, long[] orderIds, ResultCode[] codes) {
+		long[] allocated = new long[count];
+		int[] userIds = new int[count];
+		for(int i=0; i<count; i++){
+			userIds[i] = userRegistry.register(requests.get(valid[i]).getUserName());
+		}
+		int registered = orders.allocate(requests, userIds, valid, count, allocated);
+		for(int i=registered; i<count; i++){
+			codes[valid[i]] = ResultCode.CAPACITY_EXCEEDED;
+		}
+		if(registered < count){
+			metrics.capacityRejected(count - registered);
+		}
+		if(journal != null){
+			//write ahead, as for a single order.
+			for(int i=0; i<registered; i++){
+				OrderRequest request = requests.get(valid[i]);
+				try{
+					journalPosition = journalRegister(allocated[i], userIds[i], request.getOrderType(), request.getOrderPrice(), request.getQuantity());
+				}catch(RuntimeException ex){
+					logger.log(Level.WARNING, "Failed to journal a batch of orders", ex);
+					//not journaled, hence not registered, neither are the orders after it.
+					for(int j=i; j<registered; j++){
+						orders.release(OrderStore.slot(allocated[j]));
+						codes[valid[j]] = ResultCode.FAILED;
+					}
+					registered = i;
+				}
+			}
+		}
+		for(int i=0; i<registered; i++){
+			orderIds[valid[i]] = allocated[i];
+			codes[valid[i]] = ResultCode.OK;
+		}
+		//the quantities rested, which the audit records.
+		long[] rested = null;
+		if(matching){
+			rested = new long[registered];
+			for(int i=0; i<registered; i++){
+				OrderRequest request = requests.get(valid[i]);
+				rested[i] = execute(allocated[i], request.getOrderType(), request.getOrderPrice(), request.getQuantity());
+			}
+		}else{
+			//group the orders by price level, the orders of a level staying in the order of the batch.
+			long[] keys = new long[registered];
+			for(int i=0; i<registered; i++){
+				OrderRequest request = requests.get(valid[i]);
+				keys[i] = levelKey(request.getOrderType(), request.getOrderPrice(), i);
+				users.add(userIds[i], allocated[i]);
+			}
+			Arrays.sort(keys);
+			int[] slots = new int[registered];
+			for(int i=0; i<registered; i++){
+				slots[i] = OrderStore.slot(allocated[(int) (keys[i] & BATCH_INDEX_MASK)]);
+			}
+			for(int from=0, to; from<registered; from=to){
+				to = groupEnd(keys, from, registered);
+				OrderRequest request = requests.get(valid[(int) (keys[from] & BATCH_INDEX_MASK)]);
+				OrderType orderType = request.getOrderType();
+				PriceLadder ladder = OrderType.BUY == orderType ? buyPriceLevels : sellPriceLevels;
+				PriceLevel priceLevel;
+				do{
+					priceLevel = ladder.getOrCreate(request.getOrderPrice());
+				}while(!priceLevel.addOrders(slots, from, to));
+				version(orderType).incrementAndGet();
+				deltas.levelChanged(orderType, priceLevel);
+			}
+		}
+		if(audit != null){
+			for(int i=0; i<registered; i++){
+				OrderRequest request = requests.get(valid[i]);
+				audit.registered(allocated[i], request.getOrderType(), request.getOrderPrice(), request.getQuantity(), rested == null ? request.getQuantity() : rested[i], quantityScale);
+			}
+		}
+	}
+	/**
+	 * Utility method to sort the items of a batch by price level, then by their index in the batch.
+	 */
+	private static long levelKey(OrderType orderType, int orderPrice, int index){
+		return (long) orderType.ordinal() << 62 | ((orderPrice ^ Integer.MIN_VALUE) & 0xffffffffL) << 30 | index;
+	}
+	/**
+	 * Utility method to find the end of the group of items of a sorted batch, at the same price level as the item at <code>from</code>.
+	 */
+	private static int groupEnd(long[] keys, int from, int count){
+		int to = from + 1;
+		while(to < count && keys[to] >>> 30 == keys[from] >>> 30){
+			to++;
+		}
+		return to;
+	}
 	/**
 	 * Cancels an order by its orderId.
 	 * This method marks the order as cancelled and removes it from the price level. 
-	 * However, the order itself is not being removed from the storage array. This may not sound like a great idea, however this reduces the need for GC cycles,
-	 * and also avoids copying the entire array to adjust the index positions, which could be a significant overhead if the array is very big and there are frequent cancellations.
-	 * Once the order is cancelled, all registered {@link OrderUpdateListener}s are notified with latest orderbook snapshot. 
+	 * The slot of the order in the storage is then released for reuse, without copying the storage to adjust the index positions.
+	 * Only the cancel which takes the order off its price level returns true, a further cancel attempt of the same orderId returns false.
+	 * Once the order is cancelled, the {@link UpdateNotifier} notifies all registered {@link OrderUpdateListener}s with latest orderbook snapshot. 
 	 */
 	@Override
-	public boolean cancelOrder(int orderId) {
+	public boolean cancelOrder(long orderId) {
+		long start = System.nanoTime();
+		boolean cancelled;
+		if(journal == null){
+			cancelled = cancel(orderId);
+		}else{
+			long position;
+			journalLock.lock();
+			try{
+				journalPosition = 0;
+				cancelled = cancel(orderId);
+				position = journalPosition;
+			}finally{
+				journalLock.unlock();
+			}
+			//outside of the lock, so that concurrent callers can share a force of the journal.
+			journal.commit(position);
+		}
+		if(cancelled){
+			notifyListeners();
+		}
+		metrics.cancelled(cancelled ? 1 : 0, cancelled ? 0 : 1, start);
+		return cancelled;
+	}
+	/**
+	 * Cancels an order, see {@link #cancelOrder(long)}. Called under the journal lock, when journaling.
+	 * The listeners are left to the caller, to be notified out of the lock.
+	 */
+	private boolean cancel(long orderId) {
 		//boundary check.
-		if(orderId <0 || orderId >= orders.length){
+		if(orderId <0){
 			//Invalid orderId. We should probably throw exception, something like InvalidOrderIdException, but for simplicity sake, we return false.
 			return false;
 		}
 		//Locate the order, by index.
-		Order order = orders[orderId];
-		//Check there is an order with this id.
-		if(order == null){
+		int slot = orders.find(orderId);
+		//Check there is an order with this id. A stale orderId, whose slot has been reused, is not found either.
+		if(slot == OrderStore.NIL){
 			//Invalid orderId. We should probably throw exception, something like NoSuchOrderException, but for simplicity sake, we return false.
 			return false;
 		}
-		if(OrderState.FILLED == order.state){
+		OrderState state = orders.state(slot);
+		if(OrderState.FILLED == state){
 			//Order is already filled. cannot be cancelled.
 			return false;
 		}
-		//If the order state is already cancelled, no need to do the same work again.
-		if(OrderState.CANCELLED == order.state){
-			return true;
+		//Already cancelled, its slot is released lazily under contention. Only the cancel which took it off the level reports true.
+		if(OrderState.CANCELLED == state){
+			return false;
+		}
+		if(journal != null && !replaying){
+			//write ahead: the command is journaled before it is applied to the orderbook.
+			journalPosition = journal.appendCancel(orderId);
 		}
 		/*
 		 * Mark the order as cancelled, and update the price level.
-		 * Note that, the order itself is not being removed from the storage. This may not look great at the start,
-		 * however, this avoids recopying of storage array, and also helps towards GC.
 		 */
-		order.state = OrderState.CANCELLED;
-		PriceLevel priceLevel = OrderType.BUY == order.orderType ?  buyPriceLevels.get(order.orderPrice) : sellPriceLevels.get(order.orderPrice);
-		priceLevel.removeOrder(order);
-		logger.log(Level.INFO, "Cancelled "+order.orderType+" order for "+order.quantity+" @ "+order.orderPrice);
-		computeSummaryAndNotifyListeners();
+		OrderType orderType = orders.orderType(slot);
+		int orderPrice = orders.orderPrice(slot);
+		long quantity = orders.quantity(slot);
+		PriceLevel priceLevel = OrderType.BUY == orderType ?  buyPriceLevels.get(orderPrice) : sellPriceLevels.get(orderPrice);
+		//the price level takes the order out of LIVE with a CAS on its orderId and state, in case the slot has been released and reused in the meantime.
+		if(priceLevel == null || !priceLevel.removeOrder(slot, orderId, OrderState.CANCELLED)){
+			//Lost the race against another cancel (or a fill).
+			return false;
+		}
+		//the price level releases the slot, once the order is unlinked.
+		version(orderType).incrementAndGet();
+		deltas.levelChanged(orderType, priceLevel);
+		evictIfEmpty(orderType, priceLevel);
+		if(!replaying && audit != null){
+			audit.cancelled(orderId, orderType, orderPrice, quantity, quantityScale);
+		}else if(!replaying && logger.isLoggable(Level.FINE)){
+			logger.log(Level.FINE, "Cancelled "+orderType+" order for "+FixedPointQuantity.toBigDecimal(quantity, quantityScale)+" @ "+orderPrice);
+		}
 		return true;
 	}
 	
+	/**
+	 * Cancels a batch of orders, see {@link #cancelOrder(long)}.
+	 * When journaling, the batch is journaled under a single journal lock and committed once.
+	 * The orders are grouped by price level and every level is locked, and published to the delta listeners, once. The {@link UpdateNotifier} is told once, after the whole batch.
+	 */
+	@Override
+	public BatchResult cancelOrders(long[] orderIds) {
+		if(orderIds.length > BATCH_INDEX_MASK){
+			throw new IllegalArgumentException("Batch of "+orderIds.length+" orders is too large");
+		}
+		ResultCode[] codes = new ResultCode[orderIds.length];
+		int cancelled;
+		if(journal == null){
+			cancelled = cancel(orderIds, codes);
+		}else{
+			long position;
+			journalLock.lock();
+			try{
+				journalPosition = 0;
+				cancelled = cancel(orderIds, codes);
+				position = journalPosition;
+			}finally{
+				journalLock.unlock();
+			}
+			journal.commit(position);
+		}
+		if(cancelled > 0){
+			notifyListeners();
+		}
+		int ok = 0;
+		for(ResultCode code : codes){
+			if(ResultCode.OK == code){
+				ok++;
+			}
+		}
+		metrics.cancelled(ok, codes.length - ok, 0);
+		return new BatchResult(orderIds.clone(), codes);
+	}
+	/**
+	 * Cancels a batch of orders, see {@link #cancelOrders(long[])}. Called under the journal lock, when journaling.
+	 * @return Number of orders cancelled.
+	 */
+	private int cancel(long[] orderIds, ResultCode[] codes) {
+		//the orders to take off their price level, sorted by level.
+		long[] keys = new long[orderIds.length];
+		int count = 0;
+		for(int i=0; i<orderIds.length; i++){
+			long orderId = orderIds[i];
+			int slot = orderId < 0 ? OrderStore.NIL : orders.find(orderId);
+			if(slot == OrderStore.NIL){
+				codes[i] = ResultCode.UNKNOWN_ORDER;
+				continue;
+			}
+			OrderState state = orders.state(slot);
+			if(OrderState.FILLED == state || OrderState.CANCELLED == state){
+				//an order already cancelled is as good as gone, its slot is released lazily under contention.
+				codes[i] = OrderState.FILLED == state ? ResultCode.ALREADY_FILLED : ResultCode.UNKNOWN_ORDER;
+				continue;
+			}
+			if(journal != null){
+				//write ahead, as for a single order.
+				try{
+					journalPosition = journal.appendCancel(orderId);
+				}catch(RuntimeException ex){
+					logger.log(Level.WARNING, "Failed to journal the cancel of order "+orderId, ex);
+					codes[i] = ResultCode.FAILED;
+					continue;
+				}
+			}
+			keys[count++] = levelKey(orders.orderType(slot), orders.orderPrice(slot), i);
+		}
+		Arrays.sort(keys, 0, count);
+		int[] slots = new int[count];
+		long[] ids = new long[count];
+		//read before the orders are removed, their slots may be released straight away.
+		long[] quantities = new long[count];
+		for(int i=0; i<count; i++){
+			ids[i] = orderIds[(int) (keys[i] & BATCH_INDEX_MASK)];
+			slots[i] = OrderStore.slot(ids[i]);
+			quantities[i] = orders.quantity(slots[i]);
+		}
+		boolean[] removed = new boolean[count];
+		int cancelled = 0;
+		for(int from=0, to; from<count; from=to){
+			to = groupEnd(keys, from, count);
+			OrderType orderType = ORDER_TYPES[(int) (keys[from] >>> 62)];
+			int orderPrice = (int) (keys[from] >>> 30) ^ Integer.MIN_VALUE;
+			PriceLevel priceLevel = OrderType.BUY == orderType ? buyPriceLevels.get(orderPrice) : sellPriceLevels.get(orderPrice);
+			int removedCount = priceLevel == null ? 0 : priceLevel.removeOrders(slots, ids, from, to, OrderState.CANCELLED, removed);
+			for(int i=from; i<to; i++){
+				int index = (int) (keys[i] & BATCH_INDEX_MASK);
+				if(priceLevel == null || !removed[i]){
+					//Lost the race against another cancel (or a fill). Report the state the order ended up in.
+					codes[index] = orders.orderId(slots[i]) == ids[i] && OrderState.FILLED == orders.state(slots[i]) ? ResultCode.ALREADY_FILLED : ResultCode.UNKNOWN_ORDER;
+					continue;
+				}
+				codes[index] = ResultCode.OK;
+				if(audit != null){
+					audit.cancelled(ids[i], orderType, orderPrice, quantities[i], quantityScale);
+				}
+			}
+			if(removedCount > 0){
+				cancelled += removedCount;
+				version(orderType).incrementAndGet();
+				deltas.levelChanged(orderType, priceLevel);
+				evictIfEmpty(orderType, priceLevel);
+			}
+		}
+		return cancelled;
+	}
+	
+	/**
+	 * Lists the live orders of a user, from the index of the orders by user (see {@link UserOrderIndex}), rather than scanning the orderbook.
+	 */
+	@Override
+	public long[] getOrdersForUser(String userName) {
+		return users.liveOrders(userRegistry.find(userName));
+	}
+	
+	/**
+	 * Cancels the live orders of a user as a batch, see {@link #cancelOrders(long[])}: every price level is updated once, and the {@link UpdateNotifier} is told once.
+	 * An order registered while the orders are being cancelled may be left on the orderbook.
+	 */
+	@Override
+	public BatchResult cancelAllForUser(String userName) {
+		return cancelOrders(users.liveOrders(userRegistry.find(userName)));
+	}
+	
+	/**
+	 * Registers a user in the {@link UserRegistry} of this orderboard.
+	 */
+	@Override
+	public int registerUser(String userName) {
+		return userRegistry.register(userName);
+	}
+	
+	/**
+	 * 
+	 * @return The IDs of the users of this orderboard.
+	 */
+	public UserRegistry getUserRegistry() {
+		return userRegistry;
+	}
+	
+	/**
+	 * Writes a snapshot of the live orders to a file, level by level and in time priority at every level, along with the next orderId of every free slot of the storage.
+	 * The orderboard can then be recovered from the snapshot and the tail of the journal, see {@link #OrderBoardImpl(OrderStore, int, UpdateNotifier, boolean, OrderJournal, File)}.
+	 * 
+	 * Meant to be called periodically, from a background thread. Every level is copied under its own lock and written out of it, so order entry carries on while the snapshot is taken.
+	 * When matching, a fill changes several levels at once, hence the register/cancel commands are held while the snapshot is taken, for it to be consistent.
+	 * @param file The snapshot file, replaced once the snapshot is complete.
+	 * @return Number of orders in the snapshot.
+	 */
+	public int writeSnapshot(File file){
+		if(!matching){
+			long position = 0;
+			if(journal != null){
+				//the position the next command will be appended at, the replay starts from there.
+				journalLock.lock();
+				try{
+					position = journal.position();
+					forgetJournaledUsers();
+				}finally{
+					journalLock.unlock();
+				}
+			}
+			return OrderBookSnapshot.write(file, orders, userRegistry, buyPriceLevels, sellPriceLevels, quantityScale, position);
+		}
+		ReentrantLock lock = journal != null ? journalLock : matchLock;
+		lock.lock();
+		try{
+			if(journal != null){
+				forgetJournaledUsers();
+			}
+			return OrderBookSnapshot.write(file, orders, userRegistry, buyPriceLevels, sellPriceLevels, quantityScale, journal != null ? journal.position() : 0);
+		}finally{
+			lock.unlock();
+		}
+	}
+	/**
+	 * Utility method to have the users journaled again, by the registers which follow the journal position of a snapshot, as the replay starts from there.
+	 * Called under the journal lock.
+	 */
+	private void forgetJournaledUsers(){
+		Arrays.fill(journaledUsers, false);
+	}
+	
 	/**
 	 * Method to get the current snapshot of the orderbook.
+	 * The snapshot carries the sequence of the last delta event it reflects, see {@link OrderBookDeltaListener}.
+	 * 
+	 * The snapshot is immutable, hence it is cached and returned as is, until the orderbook changes. 
+	 * Only the side(s) which changed since are then rebuilt, the list of the other side and the summaries of the levels are shared with the previous snapshot.
 	 */
 	@Override
 	public OrderBookSummary getSummary() {
-		List<PriceLevelSummary> buys = buyPriceLevels.entrySet().stream().map(entry -> entry.getValue())
-				.map(priceLevel -> priceLevel.getSummary())
-				.filter(summary -> summary.getCumulativeQuantity().compareTo(BigDecimal.ZERO) > 0) //filter any priceLevel with 0 cumulative quantity.
-				.collect(Collectors.toList());
-		List<PriceLevelSummary> sells = sellPriceLevels.entrySet().stream().map(entry -> entry.getValue())
-				.map(priceLevel -> priceLevel.getSummary())
-				.filter(summary -> summary.getCumulativeQuantity().compareTo(BigDecimal.ZERO) > 0)
-				.collect(Collectors.toList());
-		OrderBookSummary summary = new OrderBookSummary(buys, sells);
-		return summary;
+		return deltas.snapshot(sequence -> {
+			//read the versions first, a change made while the snapshot is taken makes the next call rebuild it.
+			long buys = buyVersion.get();
+			long sells = sellVersion.get();
+			CachedSummary cached = cachedSummary;
+			if(cached.buyVersion == buys && cached.sellVersion == sells && cached.summary.getSequence() == sequence){
+				return cached.summary;
+			}
+			long start = System.nanoTime();
+			List<PriceLevelSummary> buyLevels = cached.buyVersion == buys ? cached.summary.getBuys() : Collections.unmodifiableList(summarise(buyPriceLevels, OrderType.BUY, Integer.MAX_VALUE, 1));
+			List<PriceLevelSummary> sellLevels = cached.sellVersion == sells ? cached.summary.getSells() : Collections.unmodifiableList(summarise(sellPriceLevels, OrderType.SELL, Integer.MAX_VALUE, 1));
+			OrderBookSummary summary = new OrderBookSummary(buyLevels, sellLevels, sequence);
+			cachedSummary = new CachedSummary(buys, sells, summary);
+			metrics.summaryBuilt(start);
+			return summary;
+		});
+	}
+	
+	/**
+	 * Method to get the best <code>depth</code> price levels of either side of the orderbook.
+	 * The ladders are walked from the best price, and the walk stops as soon as <code>depth</code> levels have been collected.
+	 */
+	@Override
+	public OrderBookSummary getSummary(int depth) {
+		return getSummary(depth, 1);
+	}
+	
+	/**
+	 * Method to get the best <code>depth</code> price bands of either side of the orderbook, the levels being aggregated on the fly into bands of <code>bucketSize</code>.
+	 * BUY prices are rounded down to a multiple of <code>bucketSize</code>, SELL prices are rounded up, so a band never looks better than the levels in it.
+	 * A band beyond the int range is reported at Integer.MIN_VALUE or Integer.MAX_VALUE.
+	 * The ladders are walked from the best price, and the walk stops as soon as <code>depth</code> bands have been collected.
+	 */
+	@Override
+	public OrderBookSummary getSummary(int depth, int bucketSize) {
+		if(depth < 1 || bucketSize < 1){
+			throw new IllegalArgumentException("Invalid depth "+depth+" or bucket size "+bucketSize);
+		}
+		return deltas.snapshot(sequence -> {
+			long start = System.nanoTime();
+			List<PriceLevelSummary> buys = summarise(buyPriceLevels, OrderType.BUY, depth, bucketSize);
+			List<PriceLevelSummary> sells = summarise(sellPriceLevels, OrderType.SELL, depth, bucketSize);
+			OrderBookSummary summary = new OrderBookSummary(buys, sells, sequence);
+			metrics.summaryBuilt(start);
+			return summary;
+		});
+	}
+	
+	/**
+	 * Utility method to collect the summaries of the price levels of a ladder, best price first.
+	 */
+	private List<PriceLevelSummary> summarise(PriceLadder ladder, OrderType side, int depth, int bucketSize){
+		LevelAggregator aggregator = new LevelAggregator(side, depth, bucketSize, quantityScale);
+		ladder.forEach(aggregator);
+		return aggregator.finish();
+	}
+	
+	/**
+	 * Utility method to count the levels of a ladder holding orders, for the metrics.
+	 */
+	private static int levelCount(PriceLadder ladder){
+		int[] count = new int[1];
+		ladder.forEach(level -> {
+			if(level.getSummary().getNumberOfOrders() > 0){
+				count[0]++;
+			}
+			return true;
+		});
+		return count[0];
+	}
+	
+	/**
+	 * Matches an incoming order against the opposite side of the orderbook. Used under the match lock.
+	 */
+	private final class Matcher implements PriceLadder.LevelVisitor, PriceLevel.FillHandler {
+		private long incomingOrderId;
+		private OrderType incomingSide;
+		private int limitPrice;
+		private long remaining;
+		/** The price of the level being matched. */
+		private int levelPrice;
+		/** The levels matched, to be published once the ladder has been walked. */
+		private PriceLevel[] matched = new PriceLevel[16];
+		private int matchedCount;
+		
+		/**
+		 * Matches an incoming order.
+		 * @return The remaining quantity of the incoming order.
+		 */
+		long match(long orderId, OrderType side, int price, long quantity){
+			this.incomingOrderId = orderId;
+			this.incomingSide = side;
+			this.limitPrice = price;
+			this.remaining = quantity;
+			OrderType restingSide = OrderType.BUY == side ? OrderType.SELL : OrderType.BUY;
+			(OrderType.BUY == side ? sellPriceLevels : buyPriceLevels).forEach(this);
+			//publish the changes outside of the lock of the ladder.
+			if(matchedCount > 0){
+				version(restingSide).incrementAndGet();
+				for(int i=0; i<matchedCount; i++){
+					deltas.levelChanged(restingSide, matched[i]);
+					evictIfEmpty(restingSide, matched[i]);
+					matched[i] = null;
+				}
+				matchedCount = 0;
+			}
+			return remaining;
+		}
+		
+		@Override
+		public boolean visit(PriceLevel level) {
+			int price = level.getPrice();
+			if(OrderType.BUY == incomingSide ? price > limitPrice : price < limitPrice){
+				//the prices do not cross anymore.
+				return false;
+			}
+			if(level.getSummary().getNumberOfOrders() == 0){
+				return true;
+			}
+			levelPrice = price;
+			long filled = level.match(remaining, this);
+			if(filled > 0){
+				remaining -= filled;
+				if(matchedCount == matched.length){
+					PriceLevel[] tmp = new PriceLevel[matched.length * 2];
+					System.arraycopy(matched, 0, tmp, 0, matchedCount);
+					matched = tmp;
+				}
+				matched[matchedCount++] = level;
+			}
+			return remaining > 0;
+		}
+		
+		@Override
+		public void onFill(int slot, long orderId, long quantity, boolean complete) {
+			for(TradeListener listener : tradeListeners){
+				listener.onTrade(incomingOrderId, orderId, incomingSide, levelPrice, quantity, complete);
+			}
+		}
+	}
+	
+	/**
+	 * Utility method to take a level left without orders off its ladder, once its removal has been published.
+	 * The level is not evicted if an order has been added to it in the meantime.
+	 */
+	private void evictIfEmpty(OrderType side, PriceLevel priceLevel){
+		if(priceLevel.getSummary().getNumberOfOrders() == 0){
+			(OrderType.BUY == side ? buyPriceLevels : sellPriceLevels).remove(priceLevel);
+		}
+	}
+	
+	private AtomicLong version(OrderType side){
+		return OrderType.BUY == side ? buyVersion : sellVersion;
+	}
+	
+	/**
+	 * A snapshot of the orderbook, with the versions of the sides it was taken at.
+	 */
+	private static final class CachedSummary {
+		final long buyVersion;
+		final long sellVersion;
+		final OrderBookSummary summary;
+		
+		CachedSummary(long buyVersion, long sellVersion, OrderBookSummary summary) {
+			this.buyVersion = buyVersion;
+			this.sellVersion = sellVersion;
+			this.summary = summary;
+		}
+	}
+	
+	/**
+	 * Collects the summaries of the price levels of a ladder, up to a depth, aggregating them into price bands.
+	 */
+	private static final class LevelAggregator implements PriceLadder.LevelVisitor {
+		private final OrderType side;
+		private final int depth;
+		private final int bucketSize;
+		private final int quantityScale;
+		private final List<PriceLevelSummary> summaries;
+		/** The band being aggregated, and its running totals. */
+		private int bucket;
+		private int numberOfOrders;
+		private long quantity;
+		
+		LevelAggregator(OrderType side, int depth, int bucketSize, int quantityScale) {
+			this.side = side;
+			this.depth = depth;
+			this.bucketSize = bucketSize;
+			this.quantityScale = quantityScale;
+			this.summaries = new ArrayList<>(Math.min(depth, 16));
+		}
+		
+		@Override
+		public boolean visit(PriceLevel priceLevel) {
+			PriceLevelSummary summary = priceLevel.getSummary();
+			//filter any priceLevel with 0 cumulative quantity.
+			if(summary.getCumulativeQuantityUnits() <= 0){
+				return true;
+			}
+			if(bucketSize == 1){
+				//no aggregation, the summary of the level is immutable and can be shared.
+				summaries.add(summary);
+				return summaries.size() < depth;
+			}
+			int price = bucketOf(summary.getPrice());
+			if(numberOfOrders > 0 && price != bucket){
+				//the band is complete, the levels are visited in price order.
+				flush();
+				if(summaries.size() == depth){
+					return false;
+				}
+			}
+			bucket = price;
+			numberOfOrders += summary.getNumberOfOrders();
+			quantity += summary.getCumulativeQuantityUnits();
+			return true;
+		}
+		
+		List<PriceLevelSummary> finish(){
+			if(numberOfOrders > 0 && summaries.size() < depth){
+				flush();
+			}
+			return summaries;
+		}
+		
+		private void flush(){
+			summaries.add(new PriceLevelSummary(bucket, numberOfOrders, quantity, quantityScale));
+			numberOfOrders = 0;
+			quantity = 0;
+		}
+		
+		private int bucketOf(int price){
+			//in long, as the band of a price near the int limits may be beyond them.
+			long floor = Math.floorDiv(price, bucketSize) * (long) bucketSize;
+			long band = OrderType.BUY == side || floor == price ? floor : floor + bucketSize;
+			return (int) Math.max(Integer.MIN_VALUE, Math.min(band, Integer.MAX_VALUE));
+		}
+	}
+	
+	/**
+	 * The number of decimal places of the fixed point quantities used by this orderboard.
+	 */
+	@Override
+	public int getQuantityScale() {
+		return quantityScale;
 	}
 	
 	/**
@@ -188,7 +1207,7 @@ public final class OrderBoardImpl implements OrderBoard {
 	 */
 	@Override
 	public void addUpdateListener(OrderUpdateListener listener) {
-		listeners.addIfAbsent(listener);
+		notifier.addListener(listener);
 	}
 
 	/**
@@ -197,15 +1216,63 @@ public final class OrderBoardImpl implements OrderBoard {
 	 */
 	@Override
 	public void removeUpdateListener(OrderUpdateListener listener) {
-		listeners.remove(listener);
+		notifier.removeListener(listener);
+		metrics.listenerRemoved(listener);
 	}
+	
 	/**
-	 * Utility method to compute the orderbook snapshot and notify all registered listeners.
+	 * The metrics of this orderboard: counters of the register/cancel, gauges of the orderbook and latency histograms of the hot paths and of the update listeners.
+	 * Export them to JMX with {@link OrderBoardMetrics#registerMBean(String)}.
+	 * @return The metrics of this orderboard.
 	 */
-	private void computeSummaryAndNotifyListeners(){
-		OrderBookSummary summary = getSummary();
-		listeners.forEach(listener -> listener.onUpdate(summary));
-		
+	public OrderBoardMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Registers a listener for the changes of the price levels.
+	 * To build its copy of the orderbook, the listener should take a snapshot through {@link #getSummary()} once registered, then apply the events after the sequence of the snapshot.
+	 * @param the listener to be registered.
+	 */
+	@Override
+	public void addDeltaListener(OrderBookDeltaListener listener) {
+		deltas.addListener(listener);
+	}
+	
+	/**
+	 * Registers a listener for the trades. Trades only happen if this orderboard has been created with matching enabled.
+	 * @param the listener to be registered.
+	 */
+	@Override
+	public void addTradeListener(TradeListener listener) {
+		tradeListeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Removes a listener from receiving the trades.
+	 * @param The listener to be removed.
+	 */
+	@Override
+	public void removeTradeListener(TradeListener listener) {
+		tradeListeners.remove(listener);
+	}
+	
+	/**
+	 * Removes a listener from receiving the changes of the price levels.
+	 * @param The listener to be removed.
+	 */
+	@Override
+	public void removeDeltaListener(OrderBookDeltaListener listener) {
+		deltas.removeListener(listener);
+	}
+	/**
+	 * Utility method to publish the levels changed to the delta listeners, and let the notifier know that the orderbook has changed.
+	 * The default notifier computes the orderbook snapshot and notifies all registered listeners straight away.
+	 * Called once a command is done, out of the journal and matching locks, so the listeners do not hold up the other writers.
+	 */
+	private void notifyListeners(){
+		deltas.flush();
+		notifier.bookChanged();
 	}
 	
 }
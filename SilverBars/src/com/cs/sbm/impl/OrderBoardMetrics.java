@@ -0,0 +1,223 @@
+package com.cs.sbm.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.cs.sbm.api.OrderUpdateListener;
+
+/**
+ * The metrics of an {@link OrderBoardImpl}: counters of the register/cancel, gauges of the orderbook and latency histograms of the hot paths and of the listeners.
+ *
+ * Counters are striped ({@link LongAdder}) and the histograms are made of striped counters (see {@link LatencyHistogram}), so recording neither allocates nor locks,
+ * and concurrent callers do not contend on a single counter. The gauges are computed when read.
+ *
+ * The metrics are exported to JMX with {@link #registerMBean(String)}, as com.cs.sbm:type=OrderBoard,name=&lt;name&gt;.
+ * @author Nat
+ *
+ */
+public final class OrderBoardMetrics implements OrderBoardMetricsMXBean {
+
+	private final LongAdder registers = new LongAdder();
+	private final LongAdder cancels = new LongAdder();
+	private final LongAdder rejectedCancels = new LongAdder();
+	private final LongAdder capacityRejections = new LongAdder();
+	private final LatencyHistogram registerLatency = new LatencyHistogram();
+	private final LatencyHistogram cancelLatency = new LatencyHistogram();
+	private final LatencyHistogram summaryLatency = new LatencyHistogram();
+	/** Time spent in onUpdate, per listener. */
+	private final Map<OrderUpdateListener, LatencyHistogram> listenerLatencies = new ConcurrentHashMap<>();
+	private final IntSupplier liveOrders;
+	private final IntSupplier buyLevels;
+	private final IntSupplier sellLevels;
+	/** The name this is registered under, or null. */
+	private volatile ObjectName objectName;
+
+	/**
+	 * Constructs the metrics of an orderboard.
+	 * @param liveOrders Computes the number of live orders.
+	 * @param buyLevels Computes the number of BUY levels holding orders.
+	 * @param sellLevels Computes the number of SELL levels holding orders.
+	 */
+	OrderBoardMetrics(IntSupplier liveOrders, IntSupplier buyLevels, IntSupplier sellLevels) {
+		this.liveOrders = liveOrders;
+		this.buyLevels = buyLevels;
+		this.sellLevels = sellLevels;
+	}
+
+	/**
+	 * Records a register.
+	 * @param count Number of orders registered.
+	 * @param startNanos The start of the register, or 0 not to record its latency.
+	 */
+	void registered(int count, long startNanos){
+		registers.add(count);
+		if(startNanos != 0){
+			registerLatency.recordSince(startNanos);
+		}
+	}
+
+	/**
+	 * Records cancels.
+	 * @param cancelled Number of orders cancelled.
+	 * @param rejected Number of cancels rejected, ie: the order was unknown, stale or filled.
+	 * @param startNanos The start of the cancel, or 0 not to record its latency.
+	 */
+	void cancelled(int cancelled, int rejected, long startNanos){
+		cancels.add(cancelled);
+		rejectedCancels.add(rejected);
+		if(startNanos != 0){
+			cancelLatency.recordSince(startNanos);
+		}
+	}
+
+	/**
+	 * Records orders rejected as the storage could not take them.
+	 */
+	void capacityRejected(int count){
+		capacityRejections.add(count);
+	}
+
+	/**
+	 * Records the build of a summary.
+	 */
+	void summaryBuilt(long startNanos){
+		summaryLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Records the time a listener has spent in onUpdate. Called by the {@link UpdateNotifier}.
+	 */
+	void listenerNotified(OrderUpdateListener listener, long startNanos){
+		long nanos = System.nanoTime() - startNanos;
+		LatencyHistogram histogram = listenerLatencies.get(listener);
+		if(histogram == null){
+			histogram = listenerLatencies.computeIfAbsent(listener, key -> new LatencyHistogram());
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Stops recording the latencies of a listener, once removed. Called by the orderboard.
+	 */
+	void listenerRemoved(OrderUpdateListener listener){
+		listenerLatencies.remove(listener);
+	}
+
+	/**
+	 *
+	 * @param listener The listener.
+	 * @return The histogram of the time the listener has spent in onUpdate, or null if it has not been notified yet.
+	 */
+	public LatencyHistogram getListenerLatency(OrderUpdateListener listener){
+		return listenerLatencies.get(listener);
+	}
+
+	/**
+	 * Exports these metrics to the platform MBean server.
+	 * @param name The name of the orderboard, as in com.cs.sbm:type=OrderBoard,name=&lt;name&gt;.
+	 * @throws IllegalStateException if the metrics can not be registered, ie: the name is taken.
+	 */
+	public void registerMBean(String name){
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try{
+			ObjectName objectName = new ObjectName("com.cs.sbm:type=OrderBoard,name="+ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		}catch(JMException ex){
+			throw new IllegalStateException("Failed to register the metrics of orderboard "+name, ex);
+		}
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 */
+	public void unregisterMBean(){
+		ObjectName name = objectName;
+		if(name == null){
+			return;
+		}
+		objectName = null;
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}catch(JMException ex){
+			throw new IllegalStateException("Failed to unregister "+name, ex);
+		}
+	}
+
+	@Override
+	public long getRegisters() {
+		return registers.sum();
+	}
+
+	@Override
+	public long getCancels() {
+		return cancels.sum();
+	}
+
+	@Override
+	public long getRejectedCancels() {
+		return rejectedCancels.sum();
+	}
+
+	@Override
+	public long getCapacityRejections() {
+		return capacityRejections.sum();
+	}
+
+	@Override
+	public int getLiveOrders() {
+		return liveOrders.getAsInt();
+	}
+
+	@Override
+	public int getBuyLevels() {
+		return buyLevels.getAsInt();
+	}
+
+	@Override
+	public int getSellLevels() {
+		return sellLevels.getAsInt();
+	}
+
+	@Override
+	public LatencySnapshot getRegisterLatency() {
+		return registerLatency.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getCancelLatency() {
+		return cancelLatency.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getSummaryLatency() {
+		return summaryLatency.snapshot();
+	}
+
+	/**
+	 * The listeners are named after their class and identity hash code.
+	 */
+	@Override
+	public Map<String, LatencySnapshot> getListenerLatencies() {
+		Map<String, LatencySnapshot> latencies = new TreeMap<>();
+		listenerLatencies.forEach((listener, histogram) ->
+			latencies.put(listener.getClass().getName()+"@"+Integer.toHexString(System.identityHashCode(listener)), histogram.snapshot()));
+		return latencies;
+	}
+
+	@Override
+	public void resetLatencies() {
+		registerLatency.reset();
+		cancelLatency.reset();
+		summaryLatency.reset();
+		listenerLatencies.values().forEach(LatencyHistogram::reset);
+	}
+}
@@ -0,0 +1,75 @@
+package com.cs.sbm.impl;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link OrderBoardMetrics}, as exported to JMX.
+ * All the latencies are in nanoseconds.
+ * @author Nat
+ *
+ */
+public interface OrderBoardMetricsMXBean {
+
+	/**
+	 *
+	 * @return Number of orders registered.
+	 */
+	public long getRegisters();
+
+	/**
+	 *
+	 * @return Number of orders cancelled.
+	 */
+	public long getCancels();
+
+	/**
+	 *
+	 * @return Number of cancels rejected, ie: the order was unknown, stale or filled.
+	 */
+	public long getRejectedCancels();
+
+	/**
+	 *
+	 * @return Number of orders rejected, as the storage could not take them.
+	 */
+	public long getCapacityRejections();
+
+	/**
+	 *
+	 * @return Number of live orders.
+	 */
+	public int getLiveOrders();
+
+	/**
+	 *
+	 * @return Number of BUY price levels holding orders.
+	 */
+	public int getBuyLevels();
+
+	/**
+	 *
+	 * @return Number of SELL price levels holding orders.
+	 */
+	public int getSellLevels();
+
+	public LatencySnapshot getRegisterLatency();
+
+	public LatencySnapshot getCancelLatency();
+
+	/**
+	 *
+	 * @return Latency of building a summary of the orderbook, when it is not cached.
+	 */
+	public LatencySnapshot getSummaryLatency();
+
+	/**
+	 *
+	 * @return Time spent in onUpdate, per listener.
+	 */
+	public Map<String, LatencySnapshot> getListenerLatencies();
+
+	/**
+	 * Clears the latencies recorded so far. The counters are not reset.
+	 */
+	public void resetLatencies();
+}
@@ -0,0 +1,118 @@
+package com.cs.sbm.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.cs.sbm.api.OrderBoard;
+
+/**
+ * Runs the orderboards of many instruments (ie: silver in several bar sizes, gold, platinum) on one JVM.
+ *
+ * The instruments are hashed onto a fixed number of shards. Every shard is an {@link OrderBoardSequencer}, whose engine thread owns the orderboards of its instruments.
+ * So the instruments of a shard are executed one command at a time, with no contention, and the instruments of different shards never share a thread, nor a lock.
+ * Throughput scales with the number of shards, as long as the load is spread across instruments and there are cores for the engine threads.
+ *
+ * Every instrument is exposed as an {@link OrderBoard} (a {@link SequencedOrderBoard}), created on first use.
+ * Every orderboard has its own storage, hence its own orderIds: an orderId is only meaningful along with its instrument.
+ * @author Nat
+ *
+ */
+public final class OrderBoardRegistry implements AutoCloseable {
+
+	/** The shards. */
+	private final OrderBoardSequencer[] shards;
+	/** The orderboards, by instrument. */
+	private final Map<String, SequencedOrderBoard> boards = new ConcurrentHashMap<>();
+	/** Creates the orderboard of an instrument. */
+	private final Function<String, OrderBoardImpl> boardFactory;
+	/** Whether this registry has been closed. */
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a registry, creating the orderboards with the default storage.
+	 * @param name Name of the registry, the engine threads are named after it.
+	 * @param shardCount Number of shards, typically no more than the number of cores available.
+	 */
+	public OrderBoardRegistry(String name, int shardCount) {
+		this(name, shardCount, instrument -> new OrderBoardImpl());
+	}
+
+	/**
+	 * Constructs a registry.
+	 * @param name Name of the registry, the engine threads are named after it.
+	 * @param shardCount Number of shards, typically no more than the number of cores available.
+	 * @param boardFactory Creates the orderboard of an instrument, ie: with its own storage, journal and notifier. Called once per instrument.
+	 */
+	public OrderBoardRegistry(String name, int shardCount, Function<String, OrderBoardImpl> boardFactory) {
+		if(shardCount < 1){
+			throw new IllegalArgumentException("Invalid number of shards "+shardCount);
+		}
+		this.boardFactory = boardFactory;
+		this.shards = new OrderBoardSequencer[shardCount];
+		for(int i=0; i<shardCount; i++){
+			shards[i] = new OrderBoardSequencer(name+"-shard-"+i);
+		}
+	}
+
+	/**
+	 * Gets the orderboard of an instrument, creating it on first use.
+	 * @param instrument The instrument.
+	 * @return The orderboard of the instrument, executed by the engine thread of its shard.
+	 * @throws IllegalStateException if this registry has been closed.
+	 */
+	public OrderBoard getOrderBoard(String instrument){
+		SequencedOrderBoard board = boards.get(instrument);
+		if(board != null){
+			return board;
+		}
+		if(closed){
+			throw new IllegalStateException("Registry has been closed");
+		}
+		return boards.computeIfAbsent(instrument, key -> new SequencedOrderBoard(boardFactory.apply(key), shards[getShard(key)]));
+	}
+
+	/**
+	 * The shard of an instrument. The hash of the instrument is spread, so instruments named alike do not cluster on a shard.
+	 * @param instrument The instrument.
+	 * @return The index of the shard, from 0 to {@link #getShardCount()} - 1.
+	 */
+	public int getShard(String instrument){
+		int hash = instrument.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return Math.floorMod(hash, shards.length);
+	}
+
+	/**
+	 *
+	 * @return Number of shards.
+	 */
+	public int getShardCount(){
+		return shards.length;
+	}
+
+	/**
+	 *
+	 * @return The instruments created so far, sorted.
+	 */
+	public NavigableSet<String> getInstruments(){
+		return Collections.unmodifiableNavigableSet(new TreeSet<>(boards.keySet()));
+	}
+
+	/**
+	 * Stops the shards, once the commands already published are executed.
+	 * Commands should not be submitted concurrently with close, see {@link OrderBoardSequencer#close()}.
+	 */
+	@Override
+	public void close(){
+		closed = true;
+		for(OrderBoardSequencer shard : shards){
+			shard.close();
+		}
+	}
+}
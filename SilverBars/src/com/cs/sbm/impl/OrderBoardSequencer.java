@@ -0,0 +1,323 @@
+package com.cs.sbm.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * A single writer engine for {@link OrderBoardImpl}s.
+ *
+ * Caller threads do not touch the orderbook. Instead, they publish register/cancel commands into a preallocated ring of commands,
+ * which is consumed by a single, dedicated thread. This thread owns the state of the orderbooks, so the price levels, the ladders and the storage
+ * are only ever accessed from one core and there is no contention (and no cache line bouncing) on the orderbook.
+ * The result of a command (ie: the orderId) is handed back through a {@link CompletableFuture}, or an allocation free callback.
+ *
+ * The ring is a bounded, multi producer single consumer queue. Every slot carries a sequence:
+ * a producer claims the next position with a CAS, fills the slot and publishes it by advancing the sequence of the slot;
+ * the consumer executes published slots in order and hands them back to producers by advancing the sequence once more.
+ * There are no locks on this path. If the ring is full, producers spin (then yield) until the consumer catches up.
+ * As with the rest of this project, no 3rd party library (ie: LMAX Disruptor) is used.
+ *
+ * Note that, java does not offer thread affinity. The engine thread is named after the sequencer, so it can be pinned to an isolated core by the OS (ie: taskset).
+ * @author Nat
+ *
+ */
+public final class OrderBoardSequencer implements AutoCloseable {
+
+	/** Default number of commands in the ring. */
+	public static final int DEFAULT_RING_SIZE = 1 << 14;
+
+	/** Number of idle iterations the engine spins, before it yields. */
+	private static final int SPIN_LIMIT = 1000;
+	/** Number of idle iterations the engine yields, before it parks. */
+	private static final int YIELD_LIMIT = SPIN_LIMIT + 100;
+	/** Time the engine parks for, when idle. */
+	private static final long PARK_NANOS = 50_000;
+
+	//The logger.
+	private static final Logger logger = Logger.getLogger(OrderBoardSequencer.class.getName());
+
+	/**
+	 * Type of a command.
+	 */
+	private enum CommandType {
+		REGISTER,
+		CANCEL,
+		TASK;
+	}
+
+	/**
+	 * A slot of the ring. Slots are allocated upfront and reused.
+	 */
+	private static final class Command {
+		/** The sequence of this slot. position: free to claim, position + 1: published. */
+		volatile long sequence;
+		/** The position this slot has been claimed for. */
+		long position;
+		CommandType type;
+		OrderBoardImpl board;
+		int userId;
+		OrderType orderType;
+		int orderPrice;
+		long quantity;
+		long orderId;
+		LongConsumer callback;
+		CompletableFuture<Long> registered;
+		CompletableFuture<Boolean> cancelled;
+		Supplier<?> task;
+		CompletableFuture<Object> result;
+
+		void clear(){
+			board = null;
+			orderType = null;
+			callback = null;
+			registered = null;
+			cancelled = null;
+			task = null;
+			result = null;
+		}
+	}
+
+	/** The ring of commands. */
+	private final Command[] ring;
+	/** Mask to map a position to a slot of the ring. */
+	private final int mask;
+	/** The next position to be claimed by a producer. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The next position to be executed. Only accessed by the engine thread. */
+	private long head;
+	/** The engine thread. */
+	private final Thread thread;
+	/** Whether this sequencer accepts commands. */
+	private volatile boolean running = true;
+	/** Whether the engine thread is parked. */
+	private volatile boolean parked;
+
+	/**
+	 * Constructs a sequencer with a ring of default size.
+	 * @param name Name of the engine thread.
+	 */
+	public OrderBoardSequencer(String name) {
+		this(name, DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Constructs a sequencer. The engine thread is started straight away.
+	 * @param name Name of the engine thread.
+	 * @param ringSize Number of commands in the ring, rounded up to a power of 2.
+	 */
+	public OrderBoardSequencer(String name, int ringSize) {
+		int size = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+		this.ring = new Command[size];
+		this.mask = size - 1;
+		for(int i=0; i<size; i++){
+			ring[i] = new Command();
+			ring[i].sequence = i;
+		}
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Registers an order on the given orderboard, from the engine thread.
+	 * @return Future of the orderId.
+	 */
+	public CompletableFuture<Long> register(OrderBoardImpl board, int userId, OrderType orderType, int orderPrice, long quantity){
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		Command command = claim();
+		fillRegister(command, board, userId, orderType, orderPrice, quantity);
+		command.registered = future;
+		publish(command);
+		return future;
+	}
+
+	/**
+	 * Registers an order on the given orderboard, from the engine thread.
+	 * The callback is invoked on the engine thread with the orderId, hence it must not block. Failures are logged.
+	 * This does not allocate.
+	 */
+	public void register(OrderBoardImpl board, int userId, OrderType orderType, int orderPrice, long quantity, LongConsumer callback){
+		Command command = claim();
+		fillRegister(command, board, userId, orderType, orderPrice, quantity);
+		command.callback = callback;
+		publish(command);
+	}
+
+	/**
+	 * Cancels an order on the given orderboard, from the engine thread.
+	 * @return Future of the outcome of the cancellation.
+	 */
+	public CompletableFuture<Boolean> cancel(OrderBoardImpl board, long orderId){
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		Command command = claim();
+		command.type = CommandType.CANCEL;
+		command.board = board;
+		command.orderId = orderId;
+		command.cancelled = future;
+		publish(command);
+		return future;
+	}
+
+	/**
+	 * Runs a task on the engine thread, in sequence with the register/cancel commands. For example, to take a consistent summary.
+	 * @param task The task.
+	 * @return Future of the result of the task.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> submit(Supplier<T> task){
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		Command command = claim();
+		command.type = CommandType.TASK;
+		command.task = task;
+		command.result = future;
+		publish(command);
+		return (CompletableFuture<T>) (CompletableFuture<?>) future;
+	}
+
+	/**
+	 * Checks whether the current thread is the engine thread of this sequencer.
+	 */
+	public boolean isEngineThread(){
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Stops accepting commands, executes the commands already published and stops the engine thread.
+	 * Commands should not be submitted concurrently with close, as such a command may be claimed after the engine thread has stopped and never complete.
+	 */
+	@Override
+	public void close(){
+		running = false;
+		LockSupport.unpark(thread);
+		try{
+			thread.join();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void fillRegister(Command command, OrderBoardImpl board, int userId, OrderType orderType, int orderPrice, long quantity){
+		command.type = CommandType.REGISTER;
+		command.board = board;
+		command.userId = userId;
+		command.orderType = orderType;
+		command.orderPrice = orderPrice;
+		command.quantity = quantity;
+	}
+
+	/**
+	 * Claims the next slot of the ring, waits if the ring is full.
+	 */
+	private Command claim(){
+		int idle = 0;
+		while(true){
+			if(!running){
+				throw new RejectedExecutionException("Sequencer "+thread.getName()+" has been closed");
+			}
+			long position = tail.get();
+			Command command = ring[(int) position & mask];
+			long diff = command.sequence - position;
+			if(diff == 0){
+				if(tail.compareAndSet(position, position + 1)){
+					command.position = position;
+					return command;
+				}
+			}else if(diff < 0){
+				//the ring is full, wait for the engine to catch up.
+				if(++idle < SPIN_LIMIT){
+					Thread.onSpinWait();
+				}else{
+					Thread.yield();
+				}
+			}
+			//otherwise, another producer has claimed this position. Try the next one.
+		}
+	}
+
+	/**
+	 * Publishes a claimed slot to the engine.
+	 */
+	private void publish(Command command){
+		command.sequence = command.position + 1;
+		if(parked){
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * The engine loop.
+	 */
+	private void run(){
+		int idle = 0;
+		while(true){
+			Command command = ring[(int) head & mask];
+			if(command.sequence == head + 1){
+				execute(command);
+				command.clear();
+				//hand the slot back to the producers, for the next lap of the ring.
+				command.sequence = head + ring.length;
+				head++;
+				idle = 0;
+			}else if(!running && tail.get() == head){
+				return;
+			}else if(++idle < SPIN_LIMIT){
+				Thread.onSpinWait();
+			}else if(idle < YIELD_LIMIT){
+				Thread.yield();
+			}else{
+				parked = true;
+				//re-check, a producer may have published before seeing the flag.
+				if(ring[(int) head & mask].sequence != head + 1 && running){
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+				parked = false;
+			}
+		}
+	}
+
+	/**
+	 * Executes a command, on the engine thread.
+	 */
+	private void execute(Command command){
+		switch(command.type){
+		case REGISTER:
+			try{
+				long orderId = command.board.registerOrder(command.userId, command.orderType, command.orderPrice, command.quantity);
+				if(command.callback != null){
+					command.callback.accept(orderId);
+				}else{
+					command.registered.complete(orderId);
+				}
+			}catch(RuntimeException ex){
+				if(command.registered != null){
+					command.registered.completeExceptionally(ex);
+				}else{
+					logger.log(Level.WARNING, "Failed to register "+command.orderType+" order for user "+command.userId, ex);
+				}
+			}
+			break;
+		case CANCEL:
+			try{
+				command.cancelled.complete(command.board.cancelOrder(command.orderId));
+			}catch(RuntimeException ex){
+				command.cancelled.completeExceptionally(ex);
+			}
+			break;
+		case TASK:
+			try{
+				command.result.complete(command.task.get());
+			}catch(RuntimeException ex){
+				command.result.completeExceptionally(ex);
+			}
+			break;
+		}
+	}
+}
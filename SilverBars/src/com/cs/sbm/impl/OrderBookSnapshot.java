@@ -0,0 +1,299 @@
+package com.cs.sbm.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * Writes and reads the binary snapshots of an orderboard, see {@link OrderBoardImpl#writeSnapshot(File)}.
+ *
+ * A snapshot holds the live orders, level by level from the best price, in time priority at every level, followed by the generation of every slot of the {@link OrderStore}
+ * (ie: the next orderId of every free slot, or of every slot whose order has been removed but not released yet). It is laid out as
+ * <pre>
+ *   int magic | int version | int quantityScale | long journalPosition
+ *   per side (BUY then SELL): { int numberOfOrders | int price | per order: { long orderId | int userName | long quantity } } ... | int 0
+ *   int highWaterMark | long generation * highWaterMark
+ * </pre>
+ * User names are written once, the first occurrence of a name is followed by the name itself, later occurrences only carry its index.
+ *
+ * Every level is copied under its read lock, then written outside of the lock. So order entry carries on while the snapshot is taken,
+ * and the snapshot is only consistent level by level. The journal position of the snapshot is read before the first level is copied,
+ * the orderboard replays the journal from there, skipping the commands already reflected by the snapshot.
+ * A slot may even be written twice: its order copied at one level, then cancelled, and the slot reused by an order copied at a later level.
+ * Only the order of the newest generation of a slot is restored, the older one has been cancelled after the journal position, which the replay settles.
+ * @author Nat
+ *
+ */
+final class OrderBookSnapshot {
+
+	/**
+	 * Callback to rest the orders of a snapshot on the orderboard, in the order they are read.
+	 */
+	@FunctionalInterface
+	interface Loader {
+		/**
+		 * An order has been restored in the storage.
+		 * @param slot The slot of the order.
+		 * @param side The side of the order.
+		 * @param price The price of the order.
+		 */
+		public void onOrder(int slot, OrderType side, int price);
+	}
+
+	/** "SBMS" */
+	private static final int MAGIC = 0x53424d53;
+	private static final int VERSION = 3;
+	/** Index of a null user name. */
+	private static final int NO_NAME = -1;
+
+	private OrderBookSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot. The file is replaced atomically, once the snapshot is complete.
+	 * @return Number of orders written.
+	 */
+	static int write(File file, OrderStore store, UserRegistry users, PriceLadder buys, PriceLadder sells, int quantityScale, long journalPosition){
+		File tmp = new File(file.getPath()+".tmp");
+		int count = 0;
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(quantityScale);
+			out.writeLong(journalPosition);
+			LevelWriter writer = new LevelWriter(store, users, out);
+			count += writer.write(buys);
+			count += writer.write(sells);
+			//read last, the generations only move forward.
+			int highWaterMark = store.highWaterMark();
+			out.writeInt(highWaterMark);
+			for(int slot=0; slot<highWaterMark; slot++){
+				long generation = store.generation(slot);
+				if(store.orderId(slot) != OrderStore.NIL && OrderState.LIVE != store.state(slot)){
+					//removed, but its slot is not released yet (see PriceLevel). Its orderId must not be handed out again.
+					generation = (generation + 1) & OrderStore.MAX_GENERATION;
+				}
+				out.writeLong(generation);
+			}
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to write snapshot "+file, ex);
+		}
+		try{
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to replace snapshot "+file, ex);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a snapshot, restoring the orders in the given (empty) storage. The users of the orders are registered, if not registered yet.
+	 * @return The journal position of the snapshot.
+	 * @throws IllegalStateException if the snapshot is corrupted, or has been written with another quantity scale.
+	 */
+	static long read(File file, OrderStore store, UserRegistry users, int quantityScale, Loader loader){
+		//first pass, the newest order of every slot.
+		NewestOrders newest = new NewestOrders();
+		read(file, quantityScale, newest);
+		//second pass, restores them.
+		return read(file, quantityScale, new Visitor() {
+			@Override
+			public void onOrder(long orderId, String userName, OrderType side, int price, long quantity) {
+				if(!newest.isNewest(orderId)){
+					//released and reused while the snapshot was taken.
+					return;
+				}
+				if(!store.restore(orderId, users.register(userName), side, price, quantity)){
+					throw new IllegalStateException("Corrupted snapshot "+file+", order "+orderId+" restored twice");
+				}
+				loader.onOrder(OrderStore.slot(orderId), side, price);
+			}
+			@Override
+			public void onGeneration(int slot, long generation) {
+				store.restoreGeneration(slot, generation);
+			}
+		});
+	}
+
+	/**
+	 * Callback to read the orders and the generations of a snapshot.
+	 */
+	@FunctionalInterface
+	private interface Visitor {
+		public void onOrder(long orderId, String userName, OrderType side, int price, long quantity);
+
+		public default void onGeneration(int slot, long generation){
+		}
+	}
+
+	/**
+	 * Reads a snapshot through a visitor.
+	 * @return The journal position of the snapshot.
+	 */
+	private static long read(File file, int quantityScale, Visitor visitor){
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))){
+			if(in.readInt() != MAGIC || in.readInt() != VERSION){
+				throw new IllegalStateException("Not a snapshot "+file);
+			}
+			int scale = in.readInt();
+			if(scale != quantityScale){
+				throw new IllegalStateException("Snapshot "+file+" written with quantity scale "+scale+", not "+quantityScale);
+			}
+			long journalPosition = in.readLong();
+			List<String> names = new ArrayList<>();
+			for(OrderType side : new OrderType[]{OrderType.BUY, OrderType.SELL}){
+				int numberOfOrders;
+				while((numberOfOrders = in.readInt()) > 0){
+					int price = in.readInt();
+					for(int i=0; i<numberOfOrders; i++){
+						long orderId = in.readLong();
+						int name = in.readInt();
+						if(name == names.size()){
+							names.add(in.readUTF());
+						}
+						long quantity = in.readLong();
+						visitor.onOrder(orderId, name == NO_NAME ? null : names.get(name), side, price, quantity);
+					}
+				}
+			}
+			int highWaterMark = in.readInt();
+			for(int slot=0; slot<highWaterMark; slot++){
+				visitor.onGeneration(slot, in.readLong());
+			}
+			return journalPosition;
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to read snapshot "+file, ex);
+		}
+	}
+
+	/**
+	 * Collects the generation of the newest order written for every slot.
+	 */
+	private static final class NewestOrders implements Visitor {
+		/** The newest generation of every slot, plus one (0 if no order of the slot is written). */
+		private long[] generations = new long[1024];
+
+		@Override
+		public void onOrder(long orderId, String userName, OrderType side, int price, long quantity) {
+			int slot = OrderStore.slot(orderId);
+			if(slot >= generations.length){
+				generations = Arrays.copyOf(generations, Math.max(slot + 1, generations.length * 2));
+			}
+			long generation = orderId >>> OrderStore.SLOT_BITS;
+			if(generations[slot] == 0 || isNewer(generation, generations[slot] - 1)){
+				generations[slot] = generation + 1;
+			}
+		}
+
+		boolean isNewest(long orderId){
+			return generations[OrderStore.slot(orderId)] - 1 == orderId >>> OrderStore.SLOT_BITS;
+		}
+
+		/**
+		 * Checks whether a generation is newer than another, generations wrapping around after {@link OrderStore#MAX_GENERATION}.
+		 */
+		private static boolean isNewer(long generation, long other){
+			long diff = (generation - other) & OrderStore.MAX_GENERATION;
+			return diff != 0 && diff <= OrderStore.MAX_GENERATION / 2;
+		}
+	}
+
+	/**
+	 * Copies the levels of a ladder, one at a time, and writes them out.
+	 */
+	private static final class LevelWriter {
+		private final OrderStore store;
+		private final UserRegistry users;
+		private final DataOutputStream out;
+		/** Indices of the user names written so far. */
+		private final Map<String, Integer> names = new HashMap<>();
+		/** Copy of the level being written, reused from one level to the next. */
+		private long[] orderIds = new long[256];
+		private String[] userNames = new String[256];
+		private long[] quantities = new long[256];
+		private int count;
+
+		LevelWriter(OrderStore store, UserRegistry users, DataOutputStream out) {
+			this.store = store;
+			this.users = users;
+			this.out = out;
+		}
+
+		int write(PriceLadder ladder) throws IOException{
+			//collect the levels first, so the ladder is not locked while writing.
+			List<PriceLevel> levels = new ArrayList<>();
+			ladder.forEach(levels::add);
+			int written = 0;
+			for(PriceLevel level : levels){
+				count = 0;
+				level.forEachOrder(this::copy);
+				if(count == 0){
+					continue;
+				}
+				out.writeInt(count);
+				out.writeInt(level.getPrice());
+				for(int i=0; i<count; i++){
+					out.writeLong(orderIds[i]);
+					writeName(userNames[i]);
+					out.writeLong(quantities[i]);
+					userNames[i] = null;
+				}
+				written += count;
+			}
+			out.writeInt(0);
+			return written;
+		}
+
+		/**
+		 * Copies an order, under the lock of its level.
+		 */
+		private void copy(int slot){
+			if(count == orderIds.length){
+				int length = count * 2;
+				long[] ids = new long[length];
+				String[] users = new String[length];
+				long[] quantity = new long[length];
+				System.arraycopy(orderIds, 0, ids, 0, count);
+				System.arraycopy(userNames, 0, users, 0, count);
+				System.arraycopy(quantities, 0, quantity, 0, count);
+				orderIds = ids;
+				userNames = users;
+				quantities = quantity;
+			}
+			orderIds[count] = store.orderId(slot);
+			userNames[count] = users.name(store.userId(slot));
+			quantities[count] = store.quantity(slot);
+			count++;
+		}
+
+		private void writeName(String userName) throws IOException{
+			if(userName == null){
+				out.writeInt(NO_NAME);
+				return;
+			}
+			Integer index = names.get(userName);
+			if(index != null){
+				out.writeInt(index);
+				return;
+			}
+			out.writeInt(names.size());
+			out.writeUTF(userName);
+			names.put(userName, names.size());
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package com.cs.sbm.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * An append only, binary journal of the register/cancel commands of an {@link OrderBoardImpl}, written through a memory mapped file.
+ *
+ * The file is mapped in chunks of a fixed size, and grows by one chunk at a time. Every record is laid out as
+ * <pre>
+ *   int length | byte type | payload
+ * </pre>
+ * The payload is written before the length, so a record torn by a crash reads as a length of 0, ie: the end of the journal.
+ * A register carries the long orderId of the order and the int ID of its user, so no String is handled per order. The name of a user is journaled once, in a user record,
+ * before the first register which refers to it (and again after every snapshot, see {@link OrderBoardImpl#writeSnapshot(File)}).
+ * A record never straddles two chunks, a length of -1 tells the reader to carry on from the next chunk.
+ *
+ * A write to the mapped file survives a crash of the process, as soon as it is made. Surviving a crash of the OS requires the chunks to be forced to the disk,
+ * which is governed by the {@link FsyncPolicy}.
+ *
+ * The journal records the orderIds, the orderboard replays the commands on an empty {@link OrderStore} and checks that it hands out the same orderIds.
+ * Appends are not thread safe, they are serialised by the orderboard.
+ * @author Nat
+ *
+ */
+public final class OrderJournal implements AutoCloseable {
+
+	/**
+	 * When the journal is forced to the disk.
+	 */
+	public enum FsyncPolicy {
+		/** Never forced by the journal, the OS writes the pages back in its own time. */
+		NONE,
+		/** Forced by a background thread every interval, if anything has been appended. The callers do not wait. */
+		INTERVAL,
+		/** Group commit: every caller waits until its record is forced. A single force covers all the records appended by concurrent callers. */
+		GROUP,
+		/** Forced after every record. */
+		EVERY_RECORD;
+	}
+
+	/**
+	 * Callback to replay the records of a journal.
+	 */
+	public interface Visitor {
+		/**
+		 * A user has been defined. The registers which follow refer to it by its ID, until the ID is defined again.
+		 */
+		public void onUser(int userId, String userName);
+
+		public void onRegister(long orderId, int userId, OrderType orderType, int orderPrice, long quantity);
+
+		public void onCancel(long orderId);
+	}
+
+	/** Default size of a chunk of the journal file. */
+	public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+	private static final byte REGISTER = 1;
+	private static final byte CANCEL = 2;
+	private static final byte USER = 3;
+	/** Length of a register record. */
+	private static final int REGISTER_LENGTH = 26;
+	/** Length of a cancel record. */
+	private static final int CANCEL_LENGTH = 9;
+	/** Length marking the end of the records of a chunk. */
+	private static final int END_OF_CHUNK = -1;
+	/** Size of the length of a record. */
+	private static final int HEADER = Integer.BYTES;
+	private static final OrderType[] TYPES = OrderType.values();
+
+	//The logger.
+	private static final Logger logger = Logger.getLogger(OrderJournal.class.getName());
+
+	private final File file;
+	private final FileChannel channel;
+	private final int chunkSize;
+	private final FsyncPolicy policy;
+	/** Chunks mapped so far. Chunks which have been forced and are no longer written to are unmapped (ie: dropped). */
+	private final List<MappedByteBuffer> chunks = new ArrayList<>();
+	/** The chunk being written to. */
+	private MappedByteBuffer chunk;
+	private int chunkIndex;
+	/** Position of the end of the last record, from the start of the file. */
+	private volatile long writePosition;
+	/** Position up to which the journal has been forced. */
+	private volatile long forcedPosition;
+	/** Index of the first chunk not entirely forced. */
+	private int forcedChunk;
+	/** Lock of the forces. Not a monitor: a force blocks on I/O, which would pin the carrier of a virtual thread. */
+	private final ReentrantLock forceLock = new ReentrantLock();
+	/** Forces the journal every interval, for {@link FsyncPolicy#INTERVAL}. */
+	private final Thread flusher;
+	private volatile boolean open = true;
+
+	/**
+	 * Opens a journal, with a chunk of default size and, for {@link FsyncPolicy#INTERVAL}, a force every millisecond.
+	 * @param file The journal file, created if it does not exist.
+	 * @param policy The fsync policy.
+	 */
+	public OrderJournal(File file, FsyncPolicy policy) {
+		this(file, policy, DEFAULT_CHUNK_SIZE, 1, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a journal. Existing records are kept, and new records are appended after them.
+	 * @param file The journal file, created if it does not exist.
+	 * @param policy The fsync policy.
+	 * @param chunkSize The size of a chunk of the file. An existing journal must be reopened with the chunk size it was written with.
+	 * @param interval The interval between two forces, for {@link FsyncPolicy#INTERVAL}.
+	 * @param unit The unit of the interval.
+	 */
+	public OrderJournal(File file, FsyncPolicy policy, int chunkSize, long interval, TimeUnit unit) {
+		this.file = file;
+		this.policy = policy;
+		this.chunkSize = chunkSize;
+		try{
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to open journal "+file, ex);
+		}
+		//position the writer after the existing records.
+		replay(null);
+		this.forcedPosition = writePosition;
+		this.forcedChunk = chunkIndex;
+		if(FsyncPolicy.INTERVAL == policy){
+			long intervalNanos = unit.toNanos(interval);
+			this.flusher = new Thread(() -> {
+				while(open){
+					LockSupport.parkNanos(intervalNanos);
+					force(writePosition);
+				}
+			}, "journal-flusher");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		}else{
+			this.flusher = null;
+		}
+	}
+
+	/**
+	 * Reads the records of this journal, from the start, and positions the writer after the last one. Must not be called once records have been appended.
+	 * @param visitor The visitor, or null to skip the records.
+	 * @return Number of records read.
+	 */
+	public int replay(Visitor visitor){
+		return replay(visitor, 0);
+	}
+
+	/**
+	 * Reads the records of this journal, from the given position, and positions the writer after the last one. Must not be called once records have been appended.
+	 * @param visitor The visitor, or null to skip the records.
+	 * @param from The position of the first record to read, as returned by {@link #position()} at the time, eg: a snapshot was taken.
+	 * @return Number of records read.
+	 */
+	public int replay(Visitor visitor, long from){
+		if(from < 0){
+			throw new IllegalArgumentException("Invalid journal position "+from);
+		}
+		int records = 0;
+		chunkIndex = (int) (from / chunkSize);
+		chunk = map(chunkIndex);
+		chunk.position((int) (from % chunkSize));
+		while(true){
+			int position = chunk.position();
+			int length = position + HEADER <= chunkSize ? chunk.getInt(position) : END_OF_CHUNK;
+			if(length == END_OF_CHUNK){
+				chunk = map(++chunkIndex);
+				continue;
+			}
+			if(length == 0){
+				//end of the journal, or a record torn by a crash.
+				break;
+			}
+			int start = position + HEADER;
+			byte type = chunk.get(start);
+			if(visitor != null){
+				if(REGISTER == type){
+					long orderId = chunk.getLong(start + 1);
+					OrderType orderType = TYPES[chunk.get(start + 9)];
+					int orderPrice = chunk.getInt(start + 10);
+					long quantity = chunk.getLong(start + 14);
+					visitor.onRegister(orderId, chunk.getInt(start + 22), orderType, orderPrice, quantity);
+				}else if(CANCEL == type){
+					visitor.onCancel(chunk.getLong(start + 1));
+				}else if(USER == type){
+					byte[] name = new byte[length - 5];
+					chunk.get(start + 5, name);
+					visitor.onUser(chunk.getInt(start + 1), new String(name, StandardCharsets.UTF_8));
+				}else{
+					throw new IllegalStateException("Corrupted journal "+file+" at "+((long) chunkIndex * chunkSize + position));
+				}
+			}
+			chunk.position(start + length);
+			records++;
+		}
+		writePosition = (long) chunkIndex * chunkSize + chunk.position();
+		return records;
+	}
+
+	/**
+	 * Appends the definition of a user, once before the first register which refers to it.
+	 * @return The position of the end of the record, to {@link #commit(long)}.
+	 */
+	public long appendUser(int userId, String userName){
+		byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+		int length = 5 + name.length;
+		int start = reserve(length) + HEADER;
+		chunk.put(start, USER);
+		chunk.putInt(start + 1, userId);
+		chunk.put(start + 5, name);
+		return publish(length);
+	}
+
+	/**
+	 * Appends a register command. This does not allocate.
+	 * @param userId The ID of the user, defined earlier by {@link #appendUser(int, String)}, or {@link UserRegistry#NO_USER}.
+	 * @return The position of the end of the record, to {@link #commit(long)}.
+	 */
+	public long appendRegister(long orderId, int userId, OrderType orderType, int orderPrice, long quantity){
+		int start = reserve(REGISTER_LENGTH) + HEADER;
+		chunk.put(start, REGISTER);
+		chunk.putLong(start + 1, orderId);
+		chunk.put(start + 9, (byte) orderType.ordinal());
+		chunk.putInt(start + 10, orderPrice);
+		chunk.putLong(start + 14, quantity);
+		chunk.putInt(start + 22, userId);
+		return publish(REGISTER_LENGTH);
+	}
+
+	/**
+	 * Appends a cancel command.
+	 * @return The position of the end of the record, to {@link #commit(long)}.
+	 */
+	public long appendCancel(long orderId){
+		int start = reserve(CANCEL_LENGTH) + HEADER;
+		chunk.put(start, CANCEL);
+		chunk.putLong(start + 1, orderId);
+		return publish(CANCEL_LENGTH);
+	}
+
+	/**
+	 * Makes sure a record is as durable as required by the {@link FsyncPolicy}. Called once the record is appended, outside of the lock serialising the appends.
+	 * @param position The position of the end of the record.
+	 */
+	public void commit(long position){
+		if(FsyncPolicy.GROUP == policy || FsyncPolicy.EVERY_RECORD == policy){
+			force(position);
+		}
+	}
+
+	/**
+	 *
+	 * @return The position of the end of the last record appended. Read under the lock serialising the appends, it is the position the records which follow will be appended at.
+	 */
+	public long position(){
+		return writePosition;
+	}
+
+	/**
+	 * Forces all the records appended so far, and closes the journal.
+	 */
+	@Override
+	public void close(){
+		if(!open){
+			return;
+		}
+		open = false;
+		if(flusher != null){
+			LockSupport.unpark(flusher);
+			try{
+				flusher.join();
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}
+		}
+		force(writePosition);
+		try{
+			channel.close();
+		}catch(IOException ex){
+			logger.log(Level.WARNING, "Failed to close journal "+file, ex);
+		}
+	}
+
+	/**
+	 * Makes room for a record in the current chunk, moving on to the next chunk if needed.
+	 * @return The position of the record in the current chunk.
+	 */
+	private int reserve(int length){
+		if(!open){
+			throw new IllegalStateException("Journal "+file+" is closed");
+		}
+		if(HEADER + length + HEADER > chunkSize){
+			throw new IllegalArgumentException("Record of "+length+" bytes does not fit in a chunk of the journal");
+		}
+		//leave room for the length of the next record, or the end of chunk marker.
+		if(chunk.position() + HEADER + length + HEADER > chunkSize){
+			chunk.putInt(chunk.position(), END_OF_CHUNK);
+			chunk = map(++chunkIndex);
+		}
+		return chunk.position();
+	}
+
+	/**
+	 * Publishes a record, by writing its length once its payload is in place.
+	 */
+	private long publish(int length){
+		int position = chunk.position();
+		chunk.putInt(position, length);
+		chunk.position(position + HEADER + length);
+		long end = (long) chunkIndex * chunkSize + chunk.position();
+		writePosition = end;
+		return end;
+	}
+
+	/**
+	 * Forces the chunks up to the given position, unless already done.
+	 */
+	private void force(long position){
+		if(forcedPosition >= position){
+			return;
+		}
+		forceLock.lock();
+		try{
+			//a force by another caller may have covered this position while waiting for the lock.
+			if(forcedPosition >= position){
+				return;
+			}
+			long target = writePosition;
+			int lastChunk = (int) ((target - 1) / chunkSize);
+			for(int index = forcedChunk; index <= lastChunk; index++){
+				MappedByteBuffer buffer = chunk(index);
+				if(buffer != null){
+					buffer.force();
+				}
+				if(index < lastChunk){
+					//no longer written to, let it be unmapped.
+					dropChunk(index);
+				}
+			}
+			forcedChunk = lastChunk;
+			forcedPosition = target;
+		}finally{
+			forceLock.unlock();
+		}
+	}
+
+	private MappedByteBuffer map(int index){
+		MappedByteBuffer buffer = chunk(index);
+		if(buffer != null){
+			buffer.position(0);
+			return buffer;
+		}
+		try{
+			//the mapping extends the file with zeros, ie: no record.
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * chunkSize, chunkSize);
+		}catch(IOException ex){
+			throw new UncheckedIOException("Failed to map chunk "+index+" of journal "+file, ex);
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		synchronized(chunks){
+			while(chunks.size() <= index){
+				chunks.add(null);
+			}
+			chunks.set(index, buffer);
+		}
+		return buffer;
+	}
+
+	private MappedByteBuffer chunk(int index){
+		synchronized(chunks){
+			return index < chunks.size() ? chunks.get(index) : null;
+		}
+	}
+
+	private void dropChunk(int index){
+		synchronized(chunks){
+			chunks.set(index, null);
+		}
+	}
+}
@@ -6,12 +6,13 @@ package com.cs.sbm.impl;
 /**
  * State of an order at any given time.
  * Note that, there can be many more states of for an order, notably partially filled etc. 
- * However, for simplicity reasons, its assumed that an order is either fully filled or not yet filled.
+ * However, for simplicity reasons, a partially filled order stays LIVE, with its remaining quantity.
  * @author Nat
  *
  */
 public enum OrderState {
 	LIVE,/** The order is live */
 	FILLED,/** The order is completely filled*/
-	CANCELLED;/** The order is cancelled*/
+	CANCELLED,/** The order is cancelled*/
+	BUSY;/** The order is being filled or cancelled, by the thread which took it out of LIVE. Transient, see {@link PriceLevel} */
 }
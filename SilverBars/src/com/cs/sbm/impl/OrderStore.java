@@ -0,0 +1,208 @@
+package com.cs.sbm.impl;
+
+import java.util.List;
+
+import com.cs.sbm.api.OrderRequest;
+import com.cs.sbm.api.OrderType;
+
+/**
+ * Storage of orders, with O(1) look up by orderId.
+ *
+ * Orders are addressed by the index of their slot in the storage. The chain of orders at a {@link PriceLevel} is
+ * formed by the previous and next slot indices of every order, hence the storage can keep orders either as objects ({@link HeapOrderStore})
+ * or as primitive columns outside the heap ({@link OffHeapOrderStore}).
+ *
+ * Slots of orders which are no longer live (ie: CANCELLED or FILLED) are released and recycled through a quarantined, first in first out, free list ({@link FreeSlots}),
+ * so that the reuse is spread over many slots rather than concentrated on the slot released last.
+ * To make sure that an orderId of a released order is not mistaken for the order which reuses the slot,
+ * every slot carries a generation which is bumped on release. The orderId is a long made of the generation and the slot index,
+ * <pre>
+ *   orderId = generation &lt;&lt; SLOT_BITS | slot
+ * </pre>
+ * which leaves 39 bits to the generation. Generations wrap around after {@link #MAX_GENERATION}, so an orderId is only rejected as stale as long as its slot
+ * has been reused less than 2^39 times: were every order of a session placed on the same slot, at 50,000 orders per second, that is about 4 months.
+ *
+ * A store can be restored from a snapshot: the orders are put back in their slots, with their orderIds, rather than allocated (see {@link #restore(long, int, OrderType, int, long)}).
+ *
+ * Users are held as the int IDs handed out by the {@link UserRegistry} of the orderboard, not as names, so an order does not carry a reference to a String.
+ *
+ * Allocation and release are thread safe. The state of an order is changed atomically (see {@link #compareAndSetState(int, long, OrderState, OrderState)}), by any thread.
+ * The previous/next pointers are expected to be updated by the thread holding its {@link PriceLevel}, the remaining quantity by the thread which moved the order to {@link OrderState#BUSY}.
+ * @author Nat
+ *
+ */
+public interface OrderStore {
+
+	/** Number of bits of the orderId used for the slot index. */
+	static final int SLOT_BITS = 24;
+	/** Maximum number of orders which can be stored at the same time. */
+	static final int MAX_SLOTS = 1 << SLOT_BITS;
+	/** Mask to extract the slot index from an orderId. */
+	static final int SLOT_MASK = MAX_SLOTS - 1;
+	/** Maximum generation of a slot, the remaining bits of a (non negative) orderId. */
+	static final long MAX_GENERATION = (1L << (63 - SLOT_BITS)) - 1;
+	/** Slot index used as a null pointer in the chain of orders. */
+	static final int NIL = -1;
+
+	/**
+	 *
+	 * @param orderId The orderId.
+	 * @return The index of the slot of the orderId.
+	 */
+	static int slot(long orderId){
+		return (int) orderId & SLOT_MASK;
+	}
+
+	/**
+	 * Allocates a slot, a fresh one or one released long enough ago (see {@link FreeSlots}), and stores a LIVE order in it.
+	 * @param userId The ID of the user, or {@link UserRegistry#NO_USER}.
+	 * @param orderType The type of the order.
+	 * @param orderPrice The order price.
+	 * @param quantity Quantity, in fixed point units.
+	 * @return The orderId of the order.
+	 * @throws RuntimeException if the maximum number of orders are live.
+	 */
+	public long allocate(int userId, OrderType orderType, int orderPrice, long quantity);
+
+	/**
+	 * Allocates slots for a batch of orders under a single lock, see {@link #allocate(int, OrderType, int, long)}.
+	 * Stops at the first order which would exceed the maximum number of live orders, rather than throwing.
+	 * @param requests The orders.
+	 * @param userIds The IDs of the users of the orders, at the position of their index in <code>indices</code>.
+	 * @param indices The indices in <code>requests</code> of the orders to allocate.
+	 * @param count Number of indices.
+	 * @param orderIds Set to the orderId of every order allocated, at the position of its index in <code>indices</code>.
+	 * @return Number of orders allocated, ie: <code>count</code>, unless the maximum number of orders are live.
+	 */
+	public int allocate(List<OrderRequest> requests, int[] userIds, int[] indices, int count, long[] orderIds);
+
+	/**
+	 * Looks up an order by its ID.
+	 * @param orderId The orderId.
+	 * @return The slot of the order, or {@link #NIL} if the orderId is invalid or has been released.
+	 */
+	public int find(long orderId);
+
+	/**
+	 * Releases the slot of an order which is no longer live, so it can be reused.
+	 * The generation of the slot is bumped, hence the orderId of the released order is no longer valid.
+	 * @param slot The slot of the order.
+	 */
+	public void release(int slot);
+
+	/**
+	 *
+	 * @param slot The slot of the order.
+	 * @return The orderId of the order in this slot, or {@link #NIL} if the slot is free.
+	 */
+	public long orderId(int slot);
+
+	public int userId(int slot);
+
+	public OrderType orderType(int slot);
+
+	public int orderPrice(int slot);
+
+	/**
+	 *
+	 * @param slot The slot of the order.
+	 * @return The quantity, in fixed point units.
+	 */
+	public long quantity(int slot);
+
+	/**
+	 *
+	 * @param slot The slot of the order.
+	 * @param quantity The remaining quantity, in fixed point units, after a partial fill.
+	 */
+	public void setQuantity(int slot, long quantity);
+
+	public OrderState state(int slot);
+
+	/**
+	 * Sets the state of an order, which is not contended, ie: the order is BUSY and owned by the caller.
+	 * @param slot The slot of the order.
+	 * @param state The new state.
+	 */
+	public void setState(int slot, OrderState state);
+
+	/**
+	 * Atomically moves an order from a state to another, provided the slot still holds the order.
+	 * A slot released and reused in the meantime is not affected, even if its new order is in the expected state.
+	 * @param slot The slot of the order.
+	 * @param orderId The ID of the order.
+	 * @param expected The state the order is expected in.
+	 * @param state The new state.
+	 * @return true if the state has been changed, false if the slot no longer holds the order or the order is not in the expected state.
+	 */
+	public boolean compareAndSetState(int slot, long orderId, OrderState expected, OrderState state);
+
+	/**
+	 *
+	 * @param slot The slot of the order.
+	 * @return The slot of the previous order at the same price level, or {@link #NIL}
+	 */
+	public int previous(int slot);
+
+	public void setPrevious(int slot, int previous);
+
+	/**
+	 *
+	 * @param slot The slot of the order.
+	 * @return The slot of the next order at the same price level, or {@link #NIL}
+	 */
+	public int next(int slot);
+
+	public void setNext(int slot, int next);
+
+	/**
+	 *
+	 * @return Number of slots ever handed out. Slots at and above this mark have never been used.
+	 */
+	public int highWaterMark();
+
+	/**
+	 *
+	 * @param slot The slot.
+	 * @return The generation of the slot, ie: of the order in the slot, or of the next order if the slot is free.
+	 */
+	public long generation(int slot);
+
+	/**
+	 * Sets the generation of a free slot, when restoring the store. Ignored if the slot holds an order.
+	 * The high water mark is raised above the slot, if needed.
+	 * @param slot The slot.
+	 * @param generation The generation of the next order of the slot.
+	 */
+	public void restoreGeneration(int slot, long generation);
+
+	/**
+	 * Stores a LIVE order in the slot of the given orderId, with the generation of the orderId, when restoring the store.
+	 * The high water mark is raised above the slot, if needed. The slots skipped are only reused once {@link #rebuildFreeSlots()} is called.
+	 * @param orderId The orderId of the order.
+	 * @param userId The ID of the user, or {@link UserRegistry#NO_USER}.
+	 * @param orderType The type of the order.
+	 * @param orderPrice The order price.
+	 * @param quantity Quantity, in fixed point units.
+	 * @return true if the order has been stored, false if the slot already holds an order.
+	 */
+	public boolean restore(long orderId, int userId, OrderType orderType, int orderPrice, long quantity);
+
+	/**
+	 * Rebuilds the list of released slots once the store has been restored, from the slots below the high water mark which do not hold an order.
+	 * The lowest slots are queued first.
+	 */
+	public void rebuildFreeSlots();
+
+	/**
+	 *
+	 * @return Number of orders currently held.
+	 */
+	public int size();
+
+	/**
+	 *
+	 * @return Number of orders that can be held without allocating more storage.
+	 */
+	public int capacity();
+}
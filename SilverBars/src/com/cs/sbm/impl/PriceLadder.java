@@ -0,0 +1,373 @@
+package com.cs.sbm.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
+
+import com.cs.sbm.api.OrderType;
+
+/**
+ * The price levels of one side (BUY or SELL) of the orderbook, keyed by the primitive price.
+ *
+ * Silver prices move in a narrow band, hence the levels are held in a dense array, indexed by the offset of the price from a base price.
+ * This makes the level look up O(1), without boxing the price, and keeps the levels in price order for free.
+ * Prices outside of the dense window (outliers) are held in a sparse, sorted map.
+ * When the price drifts, ie: the dense window is empty or too many levels fall outside of it, the ladder is rebased around the best price.
+ *
+ * The best price (highest BUY, lowest SELL) is tracked, so getting to the top of the book is allocation free.
+ * Any int is a valid price: the dense window is kept within the int range, and the empty ladder is not flagged by a price.
+ *
+ * A level left without orders is evicted (see {@link #remove(PriceLevel)}), so the ladder only holds the prices with orders, and a level created again
+ * at the same price is a new level.
+ *
+ * The look up of a level in the dense window is an optimistic read, only creating a level, rebasing or looking up an outlier takes a lock.
+ * @author Nat
+ *
+ */
+public final class PriceLadder {
+
+	/** Default number of price points in the dense window. */
+	static final int DEFAULT_SIZE = 1 << 12;
+	/** Value of {@link #bestPrice} when the ladder is empty. Outside of the int range, so that it is not a price. */
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	/**
+	 * Callback to visit the levels of a ladder.
+	 */
+	@FunctionalInterface
+	public interface LevelVisitor {
+		/**
+		 * Visits a price level.
+		 * @param level The price level.
+		 * @return true to continue to the next level, false to stop.
+		 */
+		public boolean visit(PriceLevel level);
+	}
+
+	/** The side of this ladder. BUY levels are visited from the highest price, SELL levels from the lowest. */
+	private final OrderType side;
+	/** Factory to create a new price level. */
+	private final IntFunction<PriceLevel> priceLevelFactory;
+	/** Levels of the dense window, indexed by price - base. Replaced, not modified, on rebase. */
+	private PriceLevel[] levels;
+	/** The price at index 0 of the dense window. At most Integer.MAX_VALUE - levels.length, so that base + levels.length does not overflow. */
+	private int base;
+	/** Whether the dense window has ever been positioned. */
+	private boolean positioned;
+	/** Number of levels in the dense window. */
+	private int denseCount;
+	/** Levels outside of the dense window. */
+	private final TreeMap<Integer, PriceLevel> outliers = new TreeMap<>();
+	/** Number of outliers which triggers a rebase. Raised after a rebase, so a genuinely wide book does not rebase on every new level. */
+	private int rebaseThreshold;
+	/** The best price, or {@link #EMPTY}. A long, so that the price and whether there is one are read at once. */
+	private volatile long bestPrice = EMPTY;
+	/** Lock protecting the structure of this ladder. Levels themselves are protected by their own lock. */
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Constructs a ladder with a dense window of default size.
+	 * @param side The side of the orderbook.
+	 * @param priceLevelFactory Factory to create a new price level.
+	 */
+	public PriceLadder(OrderType side, IntFunction<PriceLevel> priceLevelFactory) {
+		this(side, DEFAULT_SIZE, priceLevelFactory);
+	}
+
+	/**
+	 * Constructs a ladder.
+	 * @param side The side of the orderbook.
+	 * @param size Number of price points in the dense window.
+	 * @param priceLevelFactory Factory to create a new price level.
+	 */
+	public PriceLadder(OrderType side, int size, IntFunction<PriceLevel> priceLevelFactory) {
+		this.side = side;
+		this.priceLevelFactory = priceLevelFactory;
+		this.levels = new PriceLevel[size];
+		this.rebaseThreshold = minRebaseThreshold();
+	}
+
+	/**
+	 * Looks up the level at the given price.
+	 * @param price The price.
+	 * @return The level, or null if there is no level at this price.
+	 */
+	public PriceLevel get(int price){
+		long stamp = lock.tryOptimisticRead();
+		PriceLevel[] dense = levels;
+		int index = price - base;
+		if(index >= 0 && index < dense.length){
+			PriceLevel level = dense[index];
+			if(lock.validate(stamp)){
+				return level;
+			}
+		}
+		stamp = lock.readLock();
+		try{
+			return lookup(price);
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Looks up the level at the given price, creates one if there is no level at this price.
+	 * @param price The price.
+	 * @return The level.
+	 */
+	public PriceLevel getOrCreate(int price){
+		PriceLevel level = get(price);
+		if(level != null){
+			return level;
+		}
+		long stamp = lock.writeLock();
+		try{
+			level = lookup(price);
+			if(level == null){
+				level = priceLevelFactory.apply(price);
+				insert(level);
+				long best = bestPrice;
+				if(best == EMPTY || isBetter(price, (int) best)){
+					bestPrice = price;
+				}
+			}
+			return level;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Evicts a level which has no orders left. The level is retired (see {@link PriceLevel#retire()}) under the write lock of this ladder,
+	 * so it is taken off only if no order has been added to it in the meantime. The best price moves to the next level, if the level was at the best price.
+	 * @param level The level.
+	 * @return true if the level has been evicted, false if it holds orders or is no longer on this ladder.
+	 */
+	public boolean remove(PriceLevel level){
+		long stamp = lock.writeLock();
+		try{
+			int price = level.getPrice();
+			if(lookup(price) != level || !level.retire()){
+				return false;
+			}
+			long offset = (long) price - base;
+			if(positioned && offset >= 0 && offset < levels.length){
+				levels[(int) offset] = null;
+				denseCount--;
+			}else{
+				outliers.remove(price);
+			}
+			if(price == bestPrice){
+				bestPrice = findBest((int) Math.max(-1, Math.min(offset, levels.length)));
+			}
+			return true;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 *
+	 * @return Whether this ladder has a best price, ie: holds a level.
+	 */
+	public boolean hasBestPrice(){
+		return bestPrice != EMPTY;
+	}
+
+	/**
+	 * The best price of this ladder, ie: the highest BUY price or the lowest SELL price.
+	 * A caller racing with the eviction of the last level should rather use {@link #getBest()}.
+	 * @return The best price.
+	 * @throws IllegalStateException if the ladder is empty.
+	 */
+	public int getBestPrice(){
+		long price = bestPrice;
+		if(price == EMPTY){
+			throw new IllegalStateException("The "+side+" ladder is empty");
+		}
+		return (int) price;
+	}
+
+	/**
+	 * The level at the best price of this ladder.
+	 * @return The level at the best price, or null if the ladder is empty.
+	 */
+	public PriceLevel getBest(){
+		long price = bestPrice;
+		return price == EMPTY ? null : get((int) price);
+	}
+
+	/**
+	 * Visits the levels of this ladder, from the best price onwards, until the visitor returns false.
+	 * Levels are visited under the read lock of the ladder, the visitor must not create levels.
+	 * @param visitor The visitor.
+	 */
+	public void forEach(LevelVisitor visitor){
+		long stamp = lock.readLock();
+		try{
+			PriceLevel[] dense = levels;
+			if(OrderType.BUY == side){
+				//descending: outliers above the window, the window, outliers below the window.
+				if(!visit(outliers.tailMap(base + dense.length, true).descendingMap(), visitor)){
+					return;
+				}
+				for(int index = dense.length - 1; index >= 0; index--){
+					if(dense[index] != null && !visitor.visit(dense[index])){
+						return;
+					}
+				}
+				visit(outliers.headMap(base, false).descendingMap(), visitor);
+			}else{
+				//ascending: outliers below the window, the window, outliers above the window.
+				if(!visit(outliers.headMap(base, false), visitor)){
+					return;
+				}
+				for(int index = 0; index < dense.length; index++){
+					if(dense[index] != null && !visitor.visit(dense[index])){
+						return;
+					}
+				}
+				visit(outliers.tailMap(base + dense.length, true), visitor);
+			}
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 *
+	 * @return Number of levels in this ladder.
+	 */
+	public int size(){
+		long stamp = lock.readLock();
+		try{
+			return denseCount + outliers.size();
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private static boolean visit(NavigableMap<Integer, PriceLevel> levels, LevelVisitor visitor){
+		for(PriceLevel level : levels.values()){
+			if(!visitor.visit(level)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up a level, under lock.
+	 */
+	private PriceLevel lookup(int price){
+		//may wrap around, but is only within the window if the price is, as the window does not.
+		int index = price - base;
+		if(positioned && index >= 0 && index < levels.length){
+			return levels[index];
+		}
+		return outliers.get(price);
+	}
+
+	/**
+	 * Inserts a new level, under write lock. Rebases the dense window, if the price has drifted away from it.
+	 */
+	private void insert(PriceLevel level){
+		int price = level.getPrice();
+		if(!positioned || denseCount == 0){
+			//nothing in the window, move it to the new price.
+			rebase(baseAround(price));
+		}
+		int index = price - base;
+		if(index >= 0 && index < levels.length){
+			levels[index] = level;
+			denseCount++;
+			return;
+		}
+		outliers.put(price, level);
+		if(outliers.size() > rebaseThreshold){
+			//the price has drifted, centre the window around the best price.
+			long current = bestPrice;
+			int best = current == EMPTY || isBetter(price, (int) current) ? price : (int) current;
+			rebase(baseAround(best));
+			rebaseThreshold = Math.max(minRebaseThreshold(), outliers.size() * 2);
+		}
+	}
+
+	/**
+	 * The base of a window centred on the given price, as far as the window stays within the int range.
+	 */
+	private int baseAround(int price){
+		long newBase = (long) price - levels.length / 2;
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(newBase, (long) Integer.MAX_VALUE - levels.length));
+	}
+
+	/**
+	 * Moves the dense window to a new base, under write lock. Levels which fall outside of the new window become outliers and vice versa.
+	 */
+	private void rebase(int newBase){
+		PriceLevel[] dense = new PriceLevel[levels.length];
+		int count = 0;
+		if(positioned){
+			for(PriceLevel level : levels){
+				if(level != null){
+					outliers.put(level.getPrice(), level);
+				}
+			}
+		}
+		for(Iterator<Map.Entry<Integer, PriceLevel>> it = outliers.subMap(newBase, true, newBase + dense.length, false).entrySet().iterator(); it.hasNext(); ){
+			Map.Entry<Integer, PriceLevel> entry = it.next();
+			dense[entry.getKey() - newBase] = entry.getValue();
+			count++;
+			it.remove();
+		}
+		//publish the new window. Optimistic readers of the old window fail validation.
+		this.base = newBase;
+		this.levels = dense;
+		this.denseCount = count;
+		this.positioned = true;
+	}
+
+	/**
+	 * Finds the best price, under write lock, once the level at the best price has been evicted.
+	 * No level of the window is better than the evicted one, so the window is only scanned from its index onwards.
+	 * @param from The index of the evicted level, relative to the base (it may be outside of the window).
+	 */
+	private long findBest(int from){
+		PriceLevel[] dense = levels;
+		if(OrderType.BUY == side){
+			if(!outliers.isEmpty() && outliers.lastKey() >= base + dense.length){
+				return outliers.lastKey();
+			}
+			for(int index = Math.min(from, dense.length - 1); index >= 0; index--){
+				if(dense[index] != null){
+					return base + index;
+				}
+			}
+			//only outliers below the window are left, if any.
+			return outliers.isEmpty() ? EMPTY : outliers.lastKey();
+		}
+		if(!outliers.isEmpty() && outliers.firstKey() < base){
+			return outliers.firstKey();
+		}
+		for(int index = Math.max(from, 0); index < dense.length; index++){
+			if(dense[index] != null){
+				return base + index;
+			}
+		}
+		return outliers.isEmpty() ? EMPTY : outliers.firstKey();
+	}
+
+	private int minRebaseThreshold(){
+		return Math.max(levels.length >>> 4, 16);
+	}
+
+	/**
+	 * Checks whether a price is better than another, for the side of this ladder.
+	 */
+	private boolean isBetter(int price, int than){
+		return OrderType.BUY == side ? price > than : price < than;
+	}
+}
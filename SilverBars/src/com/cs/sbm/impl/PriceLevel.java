@@ -1,25 +1,58 @@
 package com.cs.sbm.impl;
 
-import java.math.BigDecimal;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
 
 /**
  * A PriceLevel with reference to the price of this level and list of orders that belongs to this price level.
  * 
  * Note that, this PriceLevel does not use any kind of List, 
- * instead the {@link Order}s themselves will point to previous and next orders in the level, thus creating a chain of orders.
- * Whenever an order is added to this price level or removed from this price level, respective previous/next pointers are updated to keep the list intact.
+ * instead the orders themselves will point to previous and next orders in the level, thus creating a chain of orders.
+ * The pointers are the slot indices of the orders in the {@link OrderStore}, so the chain works the same, whether orders are held on the heap or off the heap.
  * 
  * This avoids having to use a {@link List} implementation, which may trigger GC or the look up could costlier, in case of removal operations.
  * 
- * Also, any add/remove operations are performed under a lock to ensure thread safe PriceLevel. (StampedLock is used for the sake of performance)
+ * Orders are added and removed without waiting on a lock, so many threads adding to (or cancelling from) the same hot level do not serialise:
+ * <ul>
+ * <li>An order is added by pushing it, with a CAS, onto a stack of pending orders, linked through their next pointers.</li>
+ * <li>An order is removed logically, by moving its state out of LIVE with a CAS (see {@link OrderStore#compareAndSetState(int, long, OrderState, OrderState)}).
+ * The thread which wins the CAS owns the order (it is {@link OrderState#BUSY}) until it sets its final state, so the order is taken off exactly once,
+ * even if it is cancelled by more than one thread at the same time, or filled while cancelled.</li>
+ * <li>The number of orders and the cumulative quantity are applied as deltas to the summary, which is republished with a CAS.</li>
+ * </ul>
+ * The chain itself (head, tail and the pointers of the orders) is only ever changed by the thread holding the lock of this level, which is only tried, never waited for, on order entry.
+ * The holder links the pending orders in the order they have been pushed, and physically unlinks the orders removed logically, then releases their slots.
+ * A thread which can not get the lock leaves its work to the holder, which checks for more once it has let go of the lock (flat combining).
+ * Hence the slot of an order cancelled under contention is released lazily: by the next holder of the lock, or by a sweep of the chain once the
+ * cancelled orders outnumber a quarter of the live ones, which keeps the cost of sweeps constant per cancel.
  * 
+ * Matching and the snapshot of the orders take the lock, and see every order added before.
+ *
+ * A level left without orders is retired by its {@link PriceLadder} (see {@link #retire()}), and no order can be added to it anymore.
+ * Adding to a retired level fails, the caller looks the level up again, and finds the new level at this price.
+ *
  * Note that, the orders are maintained in the order they are inserted (ie: not sorted by any means)
  * @author Nat
  *
  */
 public class PriceLevel {
+	/** The top of the stack of pending orders. */
+	private static final VarHandle PENDING;
+	/** The summary. */
+	private static final VarHandle SUMMARY;
+	static{
+		try{
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			PENDING = lookup.findVarHandle(PriceLevel.class, "pending", int.class);
+			SUMMARY = lookup.findVarHandle(PriceLevel.class, "summary", PriceLevelSummary.class);
+		}catch(ReflectiveOperationException ex){
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
 	/**
 	 * The price of this level.
 	 */
@@ -27,95 +60,447 @@ public class PriceLevel {
 	
 
 	/**
-	 * The first order at this level. 
+	 * The storage of the orders at this level.
+	 */
+	private final OrderStore store;
+	/**
+	 * The slot of the first order at this level. Only accessed under the lock.
+	 */
+	private int head = OrderStore.NIL;
+	/**
+	 * The slot of the last order at this level. Only accessed under the lock.
+	 */
+	private int tail = OrderStore.NIL;
+	/**
+	 * The slot of the last order added but not linked yet, which points to the order added before it, and so on.
 	 */
-	private Order head;
+	private volatile int pending = OrderStore.NIL;
 	/**
-	 * The last order at this level.
+	 * Number of orders removed logically, but still on the chain (or pending). Approximate, only used to trigger sweeps.
 	 */
-	private Order tail;
+	private final AtomicInteger dead = new AtomicInteger();
 	/**
-	 * The summary at this price level.
+	 * The scale of the fixed point quantities at this level.
+	 */
+	private final int quantityScale;
+	/**
+	 * The summary at this price level. Republished with a CAS, on every change.
 	 */
 	private volatile PriceLevelSummary summary;
 	/**
-	 * Lock to synchronize operations at this price level.
+	 * The summary of this level once retired. Never republished otherwise, so it is told apart by identity.
+	 */
+	private final PriceLevelSummary retired;
+	/**
+	 * Lock of the chain of orders at this level. Only tried on order entry. (StampedLock is used for the sake of performance)
 	 */
-	private StampedLock lock = new StampedLock();
+	private final StampedLock lock = new StampedLock();
+	/**
+	 * Whether this level has been published to the delta listeners, as added. Only accessed under the lock of the {@link DeltaPublisher}.
+	 */
+	boolean published;
+	/**
+	 * Whether this level is queued in the {@link DeltaPublisher}, to be published.
+	 */
+	volatile boolean changed;
+	
+	/**
+	 * Callback for the fills of the orders at a level. Called under the lock of the level, hence it must not block.
+	 */
+	@FunctionalInterface
+	public interface FillHandler {
+		/**
+		 * An order of the level has been (partially) filled.
+		 * @param slot The slot of the order.
+		 * @param orderId The ID of the order.
+		 * @param quantity The quantity filled, in fixed point units.
+		 * @param complete true if the order is completely filled, and has been taken off the level. Its slot is released once the handler returns.
+		 */
+		public void onFill(int slot, long orderId, long quantity, boolean complete);
+	}
 	
 	/**
 	 * Construct this price level.
 	 * @param price The price of this level.
+	 * @param quantityScale The scale of the fixed point quantities at this level.
+	 * @param store The storage of the orders at this level.
 	 */
-	public PriceLevel(int price) {
+	public PriceLevel(int price, int quantityScale, OrderStore store) {
 		super();
 		this.price = price;
+		this.store = store;
+		this.quantityScale = quantityScale;
+		this.summary = new PriceLevelSummary(price, 0, 0L, quantityScale);
+		this.retired = new PriceLevelSummary(price, 0, 0L, quantityScale);
 	}
 	/**
-	 * Adds an order at the end of this price level, and computes the snapshot after this operation.
-	 * @param order
-	 * @return
+	 * Adds an order at the end of this price level, and updates the snapshot after this operation.
+	 * @param slot The slot of the order in the store.
+	 * @return true if the order has been added, false if this level has been retired.
 	 */
-	public Order addOrder(Order order){
-		long stamp = lock.writeLock();
-		final Order tmp = tail;
-		order.previous = tmp;
-		order.next = null;
-		tail = order;
-		if(tmp == null){
-			head = order;
-		}else{
-			tmp.next = order;
+	public boolean addOrder(int slot){
+		if(!adjust(1, store.quantity(slot))){
+			return false;
 		}
-		//recompute cumulative quantity, under lock.
-		computeSummary();
-		lock.unlockWrite(stamp);
-		
-		return order;
+		push(slot, slot);
+		maintain();
+		return true;
 	}
 	/**
-	 * Removes an order from this PriceLevel and computes the snapshot after this operation.
-	 * The removal operation simply modifies the previous and next pointers of previous and next orders.
-	 * @param order
-	 * @return
+	 * Adds a batch of orders at the end of this price level, in the given order, with a single CAS. The snapshot is updated once, after all the orders.
+	 * @param slots The slots of the orders in the store.
+	 * @param from The index of the first order in <code>slots</code>.
+	 * @param to The index after the last order in <code>slots</code>.
+	 * @return true if the orders have been added, false if this level has been retired.
 	 */
-	public Order removeOrder(Order order){
-		long stamp = lock.writeLock();
-		Order prev = order.previous;
-		Order next = order.next;
-		if(prev != null){
-			prev.next = next;
+	public boolean addOrders(int[] slots, int from, int to){
+		if(from >= to){
+			return true;
+		}
+		long quantity = 0;
+		for(int i=from; i<to; i++){
+			quantity += store.quantity(slots[i]);
+			if(i > from){
+				//the stack is popped from the last order, so every order points to the one added before it.
+				store.setNext(slots[i], slots[i - 1]);
+			}
 		}
-		if(next != null){
-			next.previous = prev;
+		if(!adjust(to - from, quantity)){
+			return false;
 		}
-		//recompute cumulative quantity, under lock.
-		computeSummary();
-		lock.unlockWrite(stamp);
-		return order;
+		push(slots[from], slots[to - 1]);
+		maintain();
+		return true;
 	}
 	/**
-	 * Utility method to compute the snapshot.
+	 * Utility method to push orders onto the stack of pending orders.
+	 * @param first The first order, to be linked to the current top of the stack.
+	 * @param last The last order, the new top of the stack.
 	 */
-	private void computeSummary(){
-		if(head == null){
-			summary = new PriceLevelSummary(price, 0, BigDecimal.ZERO);
-			return;
+	private void push(int first, int last){
+		int top;
+		do{
+			top = pending;
+			store.setNext(first, top);
+		}while(!PENDING.compareAndSet(this, top, last));
+	}
+	/**
+	 * Removes a LIVE order from this PriceLevel, moves it to the given state and updates the snapshot after this operation.
+	 *
+	 * The order is taken out of LIVE with a CAS, so an order is taken off the level (and its quantity deducted) only once,
+	 * even if it is cancelled concurrently by more than one thread, or its slot has been reused in the meantime.
+	 * The order is then unlinked and its slot released, straight away if the lock of this level is free, otherwise by the thread holding it.
+	 * @param slot The slot of the order to be removed.
+	 * @param orderId The ID of the order to be removed.
+	 * @param newState The state of the order after removal. Either {@link OrderState#CANCELLED} or {@link OrderState#FILLED}
+	 * @return true if the order has been removed, false if the order was not LIVE.
+	 */
+	public boolean removeOrder(int slot, long orderId, OrderState newState){
+		if(!acquire(slot, orderId)){
+			return false;
 		}
-		BigDecimal qty = BigDecimal.ZERO;
+		long quantity = store.quantity(slot);
+		store.setState(slot, newState);
+		dead.incrementAndGet();
+		adjust(-1, -quantity);
+		long stamp = lock.tryWriteLock();
+		if(stamp != 0L){
+			try{
+				drain();
+				discard(slot, orderId);
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		maintain();
+		return true;
+	}
+	/**
+	 * Removes a batch of LIVE orders from this PriceLevel, see {@link #removeOrder(int, long, OrderState)}. The snapshot is updated once, after all the orders.
+	 * @param slots The slots of the orders to be removed.
+	 * @param orderIds The IDs of the orders to be removed.
+	 * @param from The index of the first order in <code>slots</code> and <code>orderIds</code>.
+	 * @param to The index after the last order in <code>slots</code> and <code>orderIds</code>.
+	 * @param newState The state of the orders after removal.
+	 * @param removed Set to true at the index of every order which has been removed, false if the order was not LIVE.
+	 * @return Number of orders removed.
+	 */
+	public int removeOrders(int[] slots, long[] orderIds, int from, int to, OrderState newState, boolean[] removed){
 		int count = 0;
-		Order ord = head;
-		while(ord != null){
-			//Count only LIVE orders, ignore FILLED and CANCELLED orders.
-			if(OrderState.LIVE == ord.state){
-				qty = qty.add(ord.quantity);
+		long quantity = 0;
+		for(int i=from; i<to; i++){
+			removed[i] = acquire(slots[i], orderIds[i]);
+			if(removed[i]){
+				quantity += store.quantity(slots[i]);
+				store.setState(slots[i], newState);
 				count++;
 			}
-			
-			ord = ord.next;
 		}
-		summary = new PriceLevelSummary(price, count, qty);
-		return;
+		if(count == 0){
+			return 0;
+		}
+		dead.addAndGet(count);
+		adjust(-count, -quantity);
+		long stamp = lock.tryWriteLock();
+		if(stamp != 0L){
+			try{
+				drain();
+				for(int i=from; i<to; i++){
+					if(removed[i]){
+						discard(slots[i], orderIds[i]);
+					}
+				}
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		maintain();
+		return count;
+	}
+	/**
+	 * Fills the orders at this level, in time priority (ie: from the head of the chain), up to the given quantity.
+	 * Completely filled orders are moved to {@link OrderState#FILLED} and taken off the level, a partially filled order stays at the head of the level with its remaining quantity.
+	 * The summary is updated once, after all the fills.
+	 * @param quantity The quantity to fill, in fixed point units.
+	 * @param handler Called for every fill, under the lock of this level.
+	 * @return The quantity filled.
+	 */
+	public long match(long quantity, FillHandler handler){
+		long remaining = quantity;
+		int filledOrders = 0;
+		long stamp = lock.writeLock();
+		try{
+			drain();
+			int slot = head;
+			while(slot != OrderStore.NIL && remaining > 0){
+				//read the next order first, the slot of a filled order is released.
+				int next = store.next(slot);
+				long orderId = store.orderId(slot);
+				if(!acquire(slot, orderId)){
+					//cancelled, but not unlinked yet.
+					discard(slot, orderId);
+					slot = next;
+					continue;
+				}
+				long resting = store.quantity(slot);
+				if(resting <= remaining){
+					store.setState(slot, OrderState.FILLED);
+					unlink(slot);
+					remaining -= resting;
+					filledOrders++;
+					handler.onFill(slot, orderId, resting, true);
+					store.release(slot);
+				}else{
+					store.setQuantity(slot, resting - remaining);
+					store.setState(slot, OrderState.LIVE);
+					handler.onFill(slot, orderId, remaining, false);
+					remaining = 0;
+				}
+				slot = next;
+			}
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		if(remaining != quantity){
+			adjust(-filledOrders, remaining - quantity);
+		}
+		maintain();
+		return quantity - remaining;
+	}
+	/**
+	 * Visits the LIVE orders at this level in time priority (ie: from the head of the chain), under the lock.
+	 * Used to take a snapshot of the level, the visitor must neither block nor change this level.
+	 * @param visitor Called with the slot of every order.
+	 */
+	public void forEachOrder(IntConsumer visitor){
+		long stamp = lock.writeLock();
+		try{
+			drain();
+			for(int slot = head; slot != OrderStore.NIL;){
+				int next = store.next(slot);
+				OrderState state = store.state(slot);
+				if(OrderState.LIVE == state){
+					visitor.accept(slot);
+				}else if(OrderState.BUSY != state){
+					//cancelled, but not unlinked yet.
+					discard(slot, store.orderId(slot));
+				}
+				slot = next;
+			}
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		maintain();
+	}
+	/**
+	 * Retires this level, if it has no orders left. Called by the {@link PriceLadder}, under its write lock, before the level is taken off the ladder.
+	 * The removed orders still on the chain are released, and the summary is swapped for the retired one with a CAS, so an order added concurrently either
+	 * makes this call fail, or fails to be added.
+	 * @return true if this level has been retired, false if it holds orders.
+	 */
+	boolean retire(){
+		PriceLevelSummary current = summary;
+		if(current == retired){
+			return true;
+		}
+		if(current.getNumberOfOrders() != 0){
+			return false;
+		}
+		long stamp = lock.writeLock();
+		try{
+			drain();
+			sweep();
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		return SUMMARY.compareAndSet(this, current, retired);
+	}
+	/**
+	 *
+	 * @return true if this level has been retired.
+	 */
+	public boolean isRetired(){
+		return summary == retired;
+	}
+	/**
+	 * Utility method to take a LIVE order out of LIVE, so the caller owns it. Waits while the order is owned by another thread, which only takes a few instructions.
+	 * @return true if the order is now BUSY, false if the order is no longer LIVE (or the slot has been reused).
+	 */
+	private boolean acquire(int slot, long orderId){
+		while(!store.compareAndSetState(slot, orderId, OrderState.LIVE, OrderState.BUSY)){
+			if(store.orderId(slot) != orderId || OrderState.BUSY != store.state(slot)){
+				return false;
+			}
+			Thread.onSpinWait();
+		}
+		return true;
+	}
+	/**
+	 * Utility method to link the pending orders and release the slots of the pending orders already removed, until there are none left. Must be called under the lock.
+	 */
+	private void drain(){
+		int top = (int) PENDING.getAndSet(this, OrderStore.NIL);
+		//reverse the stack, so the orders are linked in the order they have been pushed.
+		int first = OrderStore.NIL;
+		while(top != OrderStore.NIL){
+			int previous = store.next(top);
+			store.setNext(top, first);
+			first = top;
+			top = previous;
+		}
+		while(first != OrderStore.NIL){
+			int slot = first;
+			first = store.next(slot);
+			OrderState state = store.state(slot);
+			if(OrderState.LIVE == state || OrderState.BUSY == state){
+				link(slot);
+			}else{
+				//removed before it has been linked.
+				store.release(slot);
+				dead.decrementAndGet();
+			}
+		}
+	}
+	/**
+	 * Utility method to let the lock holder (ie: this thread if the lock is free) link the pending orders, and sweep the chain if needed.
+	 * Called by every thread after it has changed this level, with the lock released.
+	 */
+	private void maintain(){
+		while(pending != OrderStore.NIL || needsSweep()){
+			long stamp = lock.tryWriteLock();
+			if(stamp == 0L){
+				//the thread holding the lock checks again, once it has let go of the lock.
+				return;
+			}
+			try{
+				drain();
+				if(needsSweep()){
+					sweep();
+				}
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+	}
+	/**
+	 * Utility method to check whether the removed orders left on the chain outnumber a quarter of the live ones.
+	 */
+	private boolean needsSweep(){
+		int count = dead.get();
+		return count > 0 && count >= summary.getNumberOfOrders() >>> 2;
+	}
+	/**
+	 * Utility method to unlink all the removed orders of the chain, and release their slots. Must be called under the lock.
+	 */
+	private void sweep(){
+		for(int slot = head; slot != OrderStore.NIL;){
+			int next = store.next(slot);
+			OrderState state = store.state(slot);
+			if(OrderState.LIVE != state && OrderState.BUSY != state){
+				discard(slot, store.orderId(slot));
+			}
+			slot = next;
+		}
+	}
+	/**
+	 * Utility method to unlink a removed order and release its slot, unless another thread has done it already. Must be called under the lock, once the pending orders are drained.
+	 */
+	private void discard(int slot, long orderId){
+		//slots are only released under the lock, so an order which is still in its slot is still on the chain.
+		if(store.orderId(slot) != orderId){
+			return;
+		}
+		unlink(slot);
+		store.release(slot);
+		dead.decrementAndGet();
+	}
+	/**
+	 * Utility method to put an order at the end of the chain. Must be called under the lock.
+	 */
+	private void link(int slot){
+		final int tmp = tail;
+		store.setPrevious(slot, tmp);
+		store.setNext(slot, OrderStore.NIL);
+		tail = slot;
+		if(tmp == OrderStore.NIL){
+			head = slot;
+		}else{
+			store.setNext(tmp, slot);
+		}
+	}
+	/**
+	 * Utility method to take an order off the chain. Must be called under the lock.
+	 */
+	private void unlink(int slot){
+		int prev = store.previous(slot);
+		int next = store.next(slot);
+		if(prev != OrderStore.NIL){
+			store.setNext(prev, next);
+		}else{
+			//slots are recycled, the level must not keep pointing to a removed order.
+			head = next;
+		}
+		if(next != OrderStore.NIL){
+			store.setPrevious(next, prev);
+		}else{
+			tail = prev;
+		}
+	}
+	/**
+	 * Utility method to apply a delta to the running totals, and republish the summary with a CAS.
+	 * @return false if this level has been retired.
+	 */
+	private boolean adjust(int orders, long quantity){
+		PriceLevelSummary current;
+		PriceLevelSummary next;
+		do{
+			current = summary;
+			if(current == retired){
+				return false;
+			}
+			next = new PriceLevelSummary(price, current.getNumberOfOrders() + orders, current.getCumulativeQuantityUnits() + quantity, quantityScale);
+		}while(!SUMMARY.compareAndSet(this, current, next));
+		return true;
 	}
 	/**
 	 * The price of this level
@@ -129,15 +514,7 @@ public class PriceLevel {
 	 * @return The summary of this price level.
 	 */
 	public PriceLevelSummary getSummary(){
-		long stamp = lock.tryOptimisticRead();
-		PriceLevelSummary sum = this.summary;
-		if(!lock.validate(stamp)){
-			//compute under lock.
-			stamp = lock.readLock();
-			computeSummary();
-			sum = this.summary;
-			lock.unlockRead(stamp);
-		}
-		return sum;
+		//The summary is immutable and republished on every change, hence a volatile read is sufficient.
+		return summary;
 	}
 }
@@ -17,16 +17,31 @@ public final class PriceLevelSummary{
 	private final int numberOfOrders;
 	
 	/**
-	 * The cumulative quantity.
+	 * The cumulative quantity, in fixed point units.
 	 */
-	private final BigDecimal cumulativeQuantity;
+	private final long cumulativeQuantity;
+	
+	/**
+	 * The scale of the cumulative quantity. See {@link FixedPointQuantity}
+	 */
+	private final int quantityScale;
+	
+	/**
+	 * The cumulative quantity as BigDecimal. Created lazily, only if requested at the API edge.
+	 */
+	private BigDecimal cumulativeQuantityDecimal;
 	
 	private final int hash;
 
 	PriceLevelSummary(int price, int numberOfOrders, BigDecimal cumQty){
+		this(price, numberOfOrders, FixedPointQuantity.toUnits(cumQty, FixedPointQuantity.DEFAULT_SCALE), FixedPointQuantity.DEFAULT_SCALE);
+	}
+	
+	PriceLevelSummary(int price, int numberOfOrders, long cumQty, int quantityScale){
 		this.price = price;
 		this.numberOfOrders = numberOfOrders;
 		this.cumulativeQuantity = cumQty;
+		this.quantityScale = quantityScale;
 		hash = calculateHash(); //hashcode can be calculated just once, as this object is immutable.
 	}
 	public int getPrice(){
@@ -36,8 +51,28 @@ public final class PriceLevelSummary{
 		return numberOfOrders;
 	}
 	public BigDecimal getCumulativeQuantity() {
+		//benign race, at worst the same value is created twice.
+		BigDecimal qty = cumulativeQuantityDecimal;
+		if(qty == null){
+			qty = FixedPointQuantity.toBigDecimal(cumulativeQuantity, quantityScale);
+			cumulativeQuantityDecimal = qty;
+		}
+		return qty;
+	}
+	/**
+	 * 
+	 * @return The cumulative quantity, in fixed point units of 10^-{@link #getQuantityScale()} kg.
+	 */
+	public long getCumulativeQuantityUnits() {
 		return cumulativeQuantity;
 	}
+	/**
+	 * 
+	 * @return The scale of the cumulative quantity.
+	 */
+	public int getQuantityScale() {
+		return quantityScale;
+	}
 	@Override
 	public int hashCode() {
 		return hash;
@@ -51,10 +86,9 @@ public final class PriceLevelSummary{
 		if (getClass() != obj.getClass())
 			return false;
 		PriceLevelSummary other = (PriceLevelSummary) obj;
-		if (cumulativeQuantity == null) {
-			if (other.cumulativeQuantity != null)
-				return false;
-		} else if (cumulativeQuantity.compareTo(other.cumulativeQuantity) !=0)
+		if (cumulativeQuantity != other.cumulativeQuantity)
+			return false;
+		if (quantityScale != other.quantityScale)
 			return false;
 		if (numberOfOrders != other.numberOfOrders)
 			return false;
@@ -66,7 +100,8 @@ public final class PriceLevelSummary{
 	private int calculateHash(){
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((cumulativeQuantity == null) ? 0 : cumulativeQuantity.hashCode());
+		result = prime * result + (int) (cumulativeQuantity ^ (cumulativeQuantity >>> 32));
+		result = prime * result + quantityScale;
 		result = prime * result + numberOfOrders;
 		result = prime * result + price;
 		return result;
@@ -75,7 +110,7 @@ public final class PriceLevelSummary{
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("PriceLevelSummary {price=").append(price).append(", numberOfOrders=").append(numberOfOrders)
-				.append(", cumulativeQuantity=").append(cumulativeQuantity).append("}");
+				.append(", cumulativeQuantity=").append(getCumulativeQuantity()).append("}");
 		return builder.toString();
 	}
 	
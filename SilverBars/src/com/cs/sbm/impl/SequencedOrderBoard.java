@@ -0,0 +1,278 @@
+package com.cs.sbm.impl;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongConsumer;
+
+import com.cs.sbm.api.BatchResult;
+import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.api.OrderBookDeltaListener;
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderRequest;
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.api.OrderUpdateListener;
+import com.cs.sbm.api.TradeListener;
+
+/**
+ * An {@link OrderBoard} running in single writer mode. See {@link OrderBoardSequencer}.
+ *
+ * Every register/cancel is published to the sequencer and executed by its engine thread, which is the only thread touching the underlying {@link OrderBoardImpl}.
+ * The locks of the price levels and the ladders are still taken, but they are never contended.
+ * The listeners are notified on the engine thread, hence they should hand the summary over rather than do any heavy work.
+ *
+ * The blocking methods of {@link OrderBoard} wait for the command to be executed. The asynchronous variants let the caller carry on,
+ * and get the orderId through a {@link CompletableFuture} or a callback.
+ * @author Nat
+ *
+ */
+public final class SequencedOrderBoard implements OrderBoard, AutoCloseable {
+
+	/** The orderboard, only accessed from the engine thread. */
+	private final OrderBoardImpl board;
+	/** The sequencer. */
+	private final OrderBoardSequencer sequencer;
+	/** Whether the sequencer is owned by this orderboard, ie: to be closed with it. */
+	private final boolean ownSequencer;
+
+	/**
+	 * Constructs an orderboard with its own sequencer.
+	 * @param name Name of the engine thread.
+	 * @param board The orderboard. Must not be accessed directly once handed over.
+	 */
+	public SequencedOrderBoard(String name, OrderBoardImpl board) {
+		this(board, new OrderBoardSequencer(name), true);
+	}
+
+	/**
+	 * Constructs an orderboard on a sequencer shared with other orderboards. The sequencer is not closed with this orderboard.
+	 * @param board The orderboard. Must not be accessed directly once handed over.
+	 * @param sequencer The sequencer.
+	 */
+	public SequencedOrderBoard(OrderBoardImpl board, OrderBoardSequencer sequencer) {
+		this(board, sequencer, false);
+	}
+
+	private SequencedOrderBoard(OrderBoardImpl board, OrderBoardSequencer sequencer, boolean ownSequencer) {
+		this.board = board;
+		this.sequencer = sequencer;
+		this.ownSequencer = ownSequencer;
+	}
+
+	@Override
+	public long registerOrder(String userName, OrderType orderType, int orderPrice, BigDecimal quantity) {
+		return join(registerOrderAsync(userName, orderType, orderPrice, quantity));
+	}
+
+	@Override
+	public long registerOrder(String userName, OrderType orderType, int orderPrice, long quantity) {
+		return join(registerOrderAsync(userName, orderType, orderPrice, quantity));
+	}
+
+	@Override
+	public long registerOrder(int userId, OrderType orderType, int orderPrice, long quantity) {
+		return join(registerOrderAsync(userId, orderType, orderPrice, quantity));
+	}
+
+	/**
+	 * The user is registered on the calling thread, the {@link UserRegistry} is thread safe.
+	 */
+	@Override
+	public int registerUser(String userName) {
+		return board.registerUser(userName);
+	}
+
+	/**
+	 * Registers an order, without waiting for it to be executed.
+	 * The quantity is converted on the calling thread, so an invalid quantity fails straight away.
+	 * @return Future of the orderId.
+	 */
+	public CompletableFuture<Long> registerOrderAsync(String userName, OrderType orderType, int orderPrice, BigDecimal quantity) {
+		return registerOrderAsync(userName, orderType, orderPrice, FixedPointQuantity.toUnits(quantity, board.getQuantityScale()));
+	}
+
+	/**
+	 * Registers an order, with the quantity in fixed point units, without waiting for it to be executed.
+	 * The user is looked up on the calling thread, only its ID goes through the ring.
+	 * @return Future of the orderId.
+	 */
+	public CompletableFuture<Long> registerOrderAsync(String userName, OrderType orderType, int orderPrice, long quantity) {
+		return registerOrderAsync(board.registerUser(userName), orderType, orderPrice, quantity);
+	}
+
+	/**
+	 * Registers an order for a registered user, with the quantity in fixed point units, without waiting for it to be executed.
+	 * @return Future of the orderId.
+	 */
+	public CompletableFuture<Long> registerOrderAsync(int userId, OrderType orderType, int orderPrice, long quantity) {
+		//rejected on the calling thread, rather than on the engine thread.
+		OrderBoardImpl.checkOrder(orderType, quantity);
+		if(sequencer.isEngineThread()){
+			//ie: from a listener, the engine cannot wait for itself.
+			return CompletableFuture.completedFuture(board.registerOrder(userId, orderType, orderPrice, quantity));
+		}
+		return sequencer.register(board, userId, orderType, orderPrice, quantity);
+	}
+
+	/**
+	 * Registers an order, with the quantity in fixed point units, without waiting for it to be executed.
+	 * The callback is invoked on the engine thread with the orderId, hence it must not block.
+	 */
+	public void registerOrder(String userName, OrderType orderType, int orderPrice, long quantity, LongConsumer callback) {
+		registerOrder(board.registerUser(userName), orderType, orderPrice, quantity, callback);
+	}
+
+	/**
+	 * Registers an order for a registered user, with the quantity in fixed point units, without waiting for it to be executed.
+	 * The callback is invoked on the engine thread with the orderId, hence it must not block. This does not allocate.
+	 */
+	public void registerOrder(int userId, OrderType orderType, int orderPrice, long quantity, LongConsumer callback) {
+		OrderBoardImpl.checkOrder(orderType, quantity);
+		if(sequencer.isEngineThread()){
+			callback.accept(board.registerOrder(userId, orderType, orderPrice, quantity));
+			return;
+		}
+		sequencer.register(board, userId, orderType, orderPrice, quantity, callback);
+	}
+
+	/**
+	 * The batch is executed on the engine thread as a single command.
+	 */
+	@Override
+	public BatchResult registerOrders(List<OrderRequest> requests) {
+		if(sequencer.isEngineThread()){
+			return board.registerOrders(requests);
+		}
+		return join(sequencer.submit(() -> board.registerOrders(requests)));
+	}
+
+	@Override
+	public boolean cancelOrder(long orderId) {
+		return join(cancelOrderAsync(orderId));
+	}
+
+	/**
+	 * Cancels an order, without waiting for it to be executed.
+	 * @return Future of the outcome of the cancellation.
+	 */
+	public CompletableFuture<Boolean> cancelOrderAsync(long orderId) {
+		if(sequencer.isEngineThread()){
+			return CompletableFuture.completedFuture(board.cancelOrder(orderId));
+		}
+		return sequencer.cancel(board, orderId);
+	}
+
+	/**
+	 * The batch is executed on the engine thread as a single command.
+	 */
+	@Override
+	public BatchResult cancelOrders(long[] orderIds) {
+		if(sequencer.isEngineThread()){
+			return board.cancelOrders(orderIds);
+		}
+		return join(sequencer.submit(() -> board.cancelOrders(orderIds)));
+	}
+
+	@Override
+	public long[] getOrdersForUser(String userName) {
+		if(sequencer.isEngineThread()){
+			return board.getOrdersForUser(userName);
+		}
+		return join(sequencer.submit(() -> board.getOrdersForUser(userName)));
+	}
+
+	/**
+	 * The orders are cancelled on the engine thread as a single command.
+	 */
+	@Override
+	public BatchResult cancelAllForUser(String userName) {
+		if(sequencer.isEngineThread()){
+			return board.cancelAllForUser(userName);
+		}
+		return join(sequencer.submit(() -> board.cancelAllForUser(userName)));
+	}
+
+	/**
+	 * The summary is taken on the engine thread, so it reflects all the commands published before.
+	 */
+	@Override
+	public OrderBookSummary getSummary() {
+		if(sequencer.isEngineThread()){
+			return board.getSummary();
+		}
+		return join(sequencer.submit(board::getSummary));
+	}
+
+	@Override
+	public OrderBookSummary getSummary(int depth) {
+		return getSummary(depth, 1);
+	}
+
+	@Override
+	public OrderBookSummary getSummary(int depth, int bucketSize) {
+		if(sequencer.isEngineThread()){
+			return board.getSummary(depth, bucketSize);
+		}
+		return join(sequencer.submit(() -> board.getSummary(depth, bucketSize)));
+	}
+
+	@Override
+	public int getQuantityScale() {
+		return board.getQuantityScale();
+	}
+
+	@Override
+	public void addUpdateListener(OrderUpdateListener listener) {
+		board.addUpdateListener(listener);
+	}
+
+	@Override
+	public void removeUpdateListener(OrderUpdateListener listener) {
+		board.removeUpdateListener(listener);
+	}
+
+	@Override
+	public void addDeltaListener(OrderBookDeltaListener listener) {
+		board.addDeltaListener(listener);
+	}
+
+	@Override
+	public void removeDeltaListener(OrderBookDeltaListener listener) {
+		board.removeDeltaListener(listener);
+	}
+
+	@Override
+	public void addTradeListener(TradeListener listener) {
+		board.addTradeListener(listener);
+	}
+
+	@Override
+	public void removeTradeListener(TradeListener listener) {
+		board.removeTradeListener(listener);
+	}
+
+	/**
+	 * Closes the sequencer, if owned by this orderboard.
+	 */
+	@Override
+	public void close() {
+		if(ownSequencer){
+			sequencer.close();
+		}
+	}
+
+	/**
+	 * Waits for a command to be executed, and rethrows its failure as is.
+	 */
+	private static <T> T join(CompletableFuture<T> future){
+		try{
+			return future.join();
+		}catch(CompletionException ex){
+			if(ex.getCause() instanceof RuntimeException){
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.cs.sbm.impl;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderUpdateListener;
+
+/**
+ * An {@link UpdateNotifier} which takes a snapshot of the orderboard and notifies all listeners on the caller thread, after every register/cancel.
+ * This is the default notifier of {@link OrderBoardImpl}.
+ * @author Nat
+ *
+ */
+public final class SynchronousUpdateNotifier implements UpdateNotifier {
+
+	/**
+	 * List of listeners interested in receiving notification from the orderboard.
+	 * Number of read operations is expected to outnumber the number of write operations on this list, hence a CopyOnWriteArrayList is being used.
+	 */
+	private final CopyOnWriteArrayList<OrderUpdateListener> listeners = new CopyOnWriteArrayList<>();
+	/** Takes a snapshot of the orderboard. */
+	private volatile Supplier<OrderBookSummary> snapshot;
+	/** Records the time spent by the listeners, set before the snapshot. */
+	private OrderBoardMetrics metrics;
+
+	@Override
+	public void bind(Supplier<OrderBookSummary> snapshot, OrderBoardMetrics metrics) {
+		if(this.snapshot != null){
+			throw new IllegalStateException("Notifier is already bound to an orderboard");
+		}
+		this.metrics = metrics;
+		this.snapshot = snapshot;
+	}
+
+	@Override
+	public void bookChanged() {
+		//no point taking a snapshot, nobody is listening.
+		if(listeners.isEmpty()){
+			return;
+		}
+		OrderBookSummary summary = snapshot.get();
+		for(OrderUpdateListener listener : listeners){
+			long start = System.nanoTime();
+			listener.onUpdate(summary);
+			metrics.listenerNotified(listener, start);
+		}
+	}
+
+	@Override
+	public void addListener(OrderUpdateListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	@Override
+	public void removeListener(OrderUpdateListener listener) {
+		listeners.remove(listener);
+	}
+}
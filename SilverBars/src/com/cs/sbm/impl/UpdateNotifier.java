@@ -0,0 +1,34 @@
+package com.cs.sbm.impl;
+
+import java.util.function.Supplier;
+
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderUpdateListener;
+
+/**
+ * Publishes the updates of an orderboard to its {@link OrderUpdateListener}s.
+ *
+ * The orderboard only tells the notifier that the book has changed, it is up to the notifier to decide when to take a snapshot and on which thread to deliver it.
+ * See {@link SynchronousUpdateNotifier} and {@link CoalescingUpdateNotifier}.
+ * @author Nat
+ *
+ */
+public interface UpdateNotifier {
+
+	/**
+	 * Binds this notifier to the orderboard it publishes the updates of. Called once, by the orderboard.
+	 * @param snapshot Takes a snapshot of the orderboard.
+	 * @param metrics Where to record the time spent by the listeners in {@link OrderUpdateListener#onUpdate(OrderBookSummary)}.
+	 * @throws IllegalStateException if this notifier is already bound to an orderboard.
+	 */
+	public void bind(Supplier<OrderBookSummary> snapshot, OrderBoardMetrics metrics);
+
+	/**
+	 * Called by the orderboard, after every register/cancel.
+	 */
+	public void bookChanged();
+
+	public void addListener(OrderUpdateListener listener);
+
+	public void removeListener(OrderUpdateListener listener);
+}
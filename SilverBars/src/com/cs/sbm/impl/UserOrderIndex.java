@@ -0,0 +1,123 @@
+package com.cs.sbm.impl;
+
+import java.util.Arrays;
+
+/**
+ * Index of the live orders of every user, so the orders of a user can be listed, or cancelled all at once (eg: when the user disconnects), without scanning the orderbook.
+ *
+ * Every user (see {@link UserRegistry}) has a primitive list of orderIds, in an array indexed by the ID of the user, in the order the orders have been rested on the orderbook. The list is not told when an order is cancelled or filled:
+ * the orderIds of the orders gone (ie: whose slot no longer holds them, or holds them cancelled or filled) are dropped lazily, when the list is read,
+ * and when it is full, before it grows. An orderId is only kept while its slot holds an order of the same user: once the generation of a slot wraps around,
+ * an orderId of a user gone long ago matches the order of whichever user reuses the slot. Hence the cancel and fill paths do not pay for the index, and the list of a user stays within twice its live orders.
+ * @author Nat
+ *
+ */
+final class UserOrderIndex {
+
+	private static final long[] NO_ORDERS = new long[0];
+
+	/** The storage of the orders. */
+	private final OrderStore store;
+	/** The orders of every user, by user ID. Replaced, not modified, when it grows. */
+	private volatile OrderIds[] users = new OrderIds[64];
+
+	UserOrderIndex(OrderStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Indexes an order, once it rests on the orderbook. Orders without a user are not indexed.
+	 * @param userId The ID of the user.
+	 * @param orderId The ID of the order.
+	 */
+	void add(int userId, long orderId){
+		if(userId < 0){
+			return;
+		}
+		OrderIds[] current = users;
+		OrderIds orderIds = userId < current.length ? current[userId] : null;
+		if(orderIds == null){
+			orderIds = create(userId);
+		}
+		orderIds.add(orderId, store);
+	}
+
+	/**
+	 *
+	 * @return The IDs of the live orders of a user, in the order they have been indexed.
+	 */
+	long[] liveOrders(int userId){
+		OrderIds[] current = users;
+		OrderIds orderIds = userId < 0 || userId >= current.length ? null : current[userId];
+		return orderIds == null ? NO_ORDERS : orderIds.live(store);
+	}
+
+	/**
+	 * Creates the list of a user, on its first order.
+	 */
+	private synchronized OrderIds create(int userId){
+		OrderIds[] current = users;
+		if(userId >= current.length){
+			current = Arrays.copyOf(current, Math.max(current.length * 2, userId + 1));
+		}
+		if(current[userId] == null){
+			current[userId] = new OrderIds(userId);
+		}
+		users = current;
+		return current[userId];
+	}
+
+	/**
+	 * Checks whether an order of a user is still on the orderbook, ie: its slot has not been reused, by any user, and it has not been cancelled or filled.
+	 */
+	private static boolean isLive(OrderStore store, int userId, long orderId){
+		int slot = OrderStore.slot(orderId);
+		if(store.orderId(slot) != orderId || store.userId(slot) != userId){
+			return false;
+		}
+		OrderState state = store.state(slot);
+		return OrderState.LIVE == state || OrderState.BUSY == state;
+	}
+
+	/**
+	 * The orderIds of a user. Guarded by itself, users do not share a lock.
+	 */
+	private static final class OrderIds {
+		/** The ID of the user. */
+		private final int userId;
+		private long[] ids = new long[8];
+		private int size;
+
+		OrderIds(int userId) {
+			this.userId = userId;
+		}
+
+		synchronized void add(long orderId, OrderStore store){
+			if(size == ids.length){
+				compact(store);
+				if(size > ids.length >>> 1){
+					ids = Arrays.copyOf(ids, ids.length * 2);
+				}
+			}
+			ids[size++] = orderId;
+		}
+
+		synchronized long[] live(OrderStore store){
+			compact(store);
+			return size == 0 ? NO_ORDERS : Arrays.copyOf(ids, size);
+		}
+
+		/**
+		 * Drops the orders gone, keeping the others in order.
+		 */
+		private void compact(OrderStore store){
+			int count = 0;
+			for(int i=0; i<size; i++){
+				if(isLive(store, userId, ids[i])){
+					ids[count++] = ids[i];
+				}
+			}
+			size = count;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.cs.sbm.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the user names of an orderboard, which maps every name to a compact int ID, so the orders hold an int rather than a reference to a String.
+ *
+ * A user is registered once, typically when its session starts, and keeps its ID for the life of the registry. IDs are handed out from 0, in the order of registration,
+ * hence the name of an ID is a plain array look up. Registering a new name takes a lock, looking up a name or an ID does not.
+ * @author Nat
+ *
+ */
+public final class UserRegistry {
+
+	/** ID of an order placed without a user name. */
+	public static final int NO_USER = -1;
+
+	/** IDs, by user name. */
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	/** User names, by ID. Replaced, not modified, when it grows. */
+	private volatile String[] names = new String[64];
+	/** Number of users registered. Guarded by this. */
+	private int count;
+
+	/**
+	 * Registers a user, if not registered yet.
+	 * @param userName The user name.
+	 * @return The ID of the user, or {@link #NO_USER} if the name is null.
+	 */
+	public int register(String userName){
+		if(userName == null){
+			return NO_USER;
+		}
+		Integer id = ids.get(userName);
+		if(id != null){
+			return id;
+		}
+		synchronized(this){
+			id = ids.get(userName);
+			if(id != null){
+				return id;
+			}
+			String[] current = names;
+			if(count == current.length){
+				current = Arrays.copyOf(current, count * 2);
+			}
+			//the name is in place before its ID is published.
+			current[count] = userName;
+			names = current;
+			ids.put(userName, count);
+			return count++;
+		}
+	}
+
+	/**
+	 * Looks up the ID of a user.
+	 * @param userName The user name.
+	 * @return The ID of the user, or {@link #NO_USER} if the user is not registered.
+	 */
+	public int find(String userName){
+		Integer id = userName == null ? null : ids.get(userName);
+		return id == null ? NO_USER : id;
+	}
+
+	/**
+	 * Looks up the name of a user.
+	 * @param userId The ID of the user.
+	 * @return The user name, or null if the ID is {@link #NO_USER} or is not registered.
+	 */
+	public String name(int userId){
+		String[] current = names;
+		return userId < 0 || userId >= current.length ? null : current[userId];
+	}
+
+	/**
+	 * Checks whether an ID has been handed out, or is {@link #NO_USER}.
+	 */
+	public boolean isValid(int userId){
+		return userId == NO_USER || name(userId) != null;
+	}
+
+	/**
+	 *
+	 * @return Number of users registered.
+	 */
+	public synchronized int size(){
+		return count;
+	}
+}
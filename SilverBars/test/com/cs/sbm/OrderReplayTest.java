@@ -0,0 +1,148 @@
+package com.cs.sbm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.gateway.GatewayProtocol;
+import com.cs.sbm.impl.FixedPointQuantity;
+import com.cs.sbm.impl.HeapOrderStore;
+import com.cs.sbm.impl.OrderBoardImpl;
+
+/**
+ * Testcase for {@link OrderReplay}.
+ * @author Nat
+ *
+ */
+public class OrderReplayTest {
+
+	OrderBoardImpl orderboard = new OrderBoardImpl(new HeapOrderStore(1 << 18), FixedPointQuantity.DEFAULT_SCALE);
+
+	/**
+	 * Tests the replay of a text file, including invalid commands, and that the orderIds of a replay are those of the capture.
+	 */
+	@Test
+	public void testText() throws IOException{
+		OrderBoardImpl captured = new OrderBoardImpl(new HeapOrderStore(1 << 18), FixedPointQuantity.DEFAULT_SCALE);
+		captured.registerOrder("Nat", OrderType.BUY, 306, 1500L);
+		long sellOrderId = captured.registerOrder("Bob", OrderType.SELL, 310, 2000L);
+
+		File file = write("# captured order flow\n"
+			+ "REGISTER Nat BUY 306 1.5\n"
+			+ "register  Bob\tsell 310 2\r\n"
+			+ "\n"
+			+ "REGISTER Nat BUY 306 .25\n"
+			+ "CANCEL "+sellOrderId+"\n"
+			+ "REGISTER Nat BUY abc 1\n"
+			+ "REGISTER Nat BUY 306 1.0005\n"
+			+ "CANCEL 999999\n"
+			+ "SUMMARY\n"
+			+ "SUMMARY EXIT\n"
+			+ "EXIT\n"
+			+ "REGISTER Nat BUY 300 1");
+		OrderReplay replay = new OrderReplay(orderboard);
+		replay.replay(file);
+
+		Assert.assertEquals(6, replay.getCommands());
+		Assert.assertEquals(3, replay.getRegisterLatency().getCount());
+		Assert.assertEquals(0, replay.getRegisterFailures());
+		Assert.assertEquals(1, replay.getCancelFailures());
+		Assert.assertEquals(1, replay.getSummaryLatency().getCount());
+		Assert.assertEquals(3, replay.getInvalidCommands());
+		OrderBookSummary summary = orderboard.getSummary();
+		Assert.assertEquals(1, summary.getBuys().size());
+		Assert.assertEquals(306, summary.getBuys().get(0).getPrice());
+		Assert.assertEquals(1750L, summary.getBuys().get(0).getCumulativeQuantityUnits());
+		Assert.assertEquals(0, summary.getSells().size());
+		Assert.assertEquals(2, orderboard.getOrdersForUser("Nat").length);
+		Assert.assertEquals(0, orderboard.getOrdersForUser("Bob").length);
+	}
+
+	/**
+	 * Tests the replay of a binary file, made of the request frames of the gateway protocol.
+	 */
+	@Test
+	public void testBinary() throws IOException{
+		ByteBuffer requests = ByteBuffer.allocate(GatewayProtocol.REQUEST_LENGTH * 8);
+		GatewayProtocol.login(requests, 1, "Nat");
+		GatewayProtocol.register(requests, 2, OrderType.BUY, 306, 1500L);
+		GatewayProtocol.register(requests, 3, OrderType.SELL, 310, 2000L);
+		GatewayProtocol.cancel(requests, 4, 999999);
+		GatewayProtocol.summary(requests, 5, 10, 1);
+		//truncated frame.
+		requests.put(GatewayProtocol.REGISTER);
+		requests.flip();
+		File file = File.createTempFile("orders-", ".bin");
+		file.deleteOnExit();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)){
+			channel.write(requests);
+		}
+		OrderReplay replay = new OrderReplay(orderboard);
+		replay.replay(file);
+
+		Assert.assertEquals(4, replay.getCommands());
+		Assert.assertEquals(1, replay.getCancelFailures());
+		Assert.assertEquals(1, replay.getInvalidCommands());
+		Assert.assertEquals(2, orderboard.getOrdersForUser("Nat").length);
+		Assert.assertEquals(2, orderboard.getMetrics().getLiveOrders());
+	}
+
+	/**
+	 * Replays a large generated order flow, and checks the report.
+	 */
+	@Test
+	public void testThroughput() throws IOException{
+		int count = 200000;
+		File file = File.createTempFile("orders-", ".txt");
+		file.deleteOnExit();
+		try(Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)){
+			for(int i=0; i<count; i++){
+				if(i % 2 == 0){
+					writer.write("REGISTER user"+i % 100+" BUY "+(300 + i % 10)+" 1.5\n");
+				}else{
+					writer.write("REGISTER user"+i % 100+" SELL "+(320 + i % 10)+" 2.25\n");
+				}
+				if(i % 1000 == 0){
+					writer.write("SUMMARY\n");
+				}
+			}
+		}
+		OrderReplay replay = new OrderReplay(orderboard);
+		replay.replay(file);
+		Assert.assertEquals(count + count / 1000, replay.getCommands());
+		Assert.assertEquals(0, replay.getInvalidCommands());
+		Assert.assertEquals(0, replay.getRegisterFailures());
+		Assert.assertEquals(count, orderboard.getMetrics().getLiveOrders());
+		Assert.assertTrue(replay.getElapsedNanos() > 0);
+		Assert.assertTrue(replay.getRegisterLatency().getP50() <= replay.getRegisterLatency().getP99());
+		Assert.assertTrue(replay.getRegisterLatency().getP99() <= replay.getRegisterLatency().getMax());
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		replay.report(new PrintStream(report, true, StandardCharsets.UTF_8));
+		String[] lines = report.toString(StandardCharsets.UTF_8).split("\\R");
+		Assert.assertEquals(4, lines.length);
+		Assert.assertTrue(lines[0], lines[0].startsWith("Replayed "+(count + count / 1000)+" commands in "));
+		Assert.assertTrue(lines[1], lines[1].startsWith("REGISTER: "+count+" (0 failed), latency (ns) p50="+replay.getRegisterLatency().getP50()+" "));
+		Assert.assertTrue(lines[2], lines[2].startsWith("CANCEL: 0 (0 unknown)"));
+		Assert.assertTrue(lines[3], lines[3].startsWith("SUMMARY: "+count / 1000+","));
+	}
+
+	private static File write(String commands) throws IOException{
+		File file = File.createTempFile("orders-", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), commands.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
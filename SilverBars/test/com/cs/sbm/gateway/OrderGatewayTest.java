@@ -0,0 +1,161 @@
+package com.cs.sbm.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.api.ResultCode;
+import com.cs.sbm.impl.FixedPointQuantity;
+import com.cs.sbm.impl.HeapOrderStore;
+import com.cs.sbm.impl.OrderBoardImpl;
+import com.cs.sbm.impl.PriceLevelSummary;
+
+/**
+ * Testcase for {@link OrderGateway}, driven over the loopback interface.
+ * @author Nat
+ *
+ */
+public class OrderGatewayTest {
+
+	OrderBoardImpl orderboard;
+	OrderGateway gateway;
+	SocketChannel client;
+
+	@Before
+	public void setup() throws IOException{
+		orderboard = new OrderBoardImpl(new HeapOrderStore(1 << 16), FixedPointQuantity.DEFAULT_SCALE);
+		gateway = new OrderGateway(orderboard, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = SocketChannel.open(gateway.getLocalAddress());
+	}
+
+	@After
+	public void teardown() throws IOException{
+		client.close();
+		gateway.close();
+	}
+
+	/**
+	 * Tests login, register, cancel and summary requests, and the responses to invalid requests.
+	 */
+	@Test
+	public void testRequests() throws IOException{
+		ByteBuffer requests = ByteBuffer.allocate(GatewayProtocol.REQUEST_LENGTH * 16);
+		GatewayProtocol.login(requests, 1, "Nat");
+		GatewayProtocol.register(requests, 2, OrderType.BUY, 306, 1500L);
+		GatewayProtocol.register(requests, 3, OrderType.SELL, 310, 2000L);
+		GatewayProtocol.register(requests, 4, OrderType.BUY, 306, 0L);
+		GatewayProtocol.cancel(requests, 5, 999999);
+		requests.put(requests.position(), (byte) 99);
+		requests.position(requests.position() + GatewayProtocol.REQUEST_LENGTH);
+		write(requests);
+
+		ByteBuffer responses = read(GatewayProtocol.RESPONSE_LENGTH * 6);
+		long userId = assertResponse(responses, GatewayProtocol.LOGIN, 1, ResultCode.OK);
+		Assert.assertEquals(orderboard.getUserRegistry().find("Nat"), userId);
+		long orderId = assertResponse(responses, GatewayProtocol.REGISTER, 2, ResultCode.OK);
+		long sellOrderId = assertResponse(responses, GatewayProtocol.REGISTER, 3, ResultCode.OK);
+		assertResponse(responses, GatewayProtocol.REGISTER, 4, ResultCode.INVALID_REQUEST);
+		assertResponse(responses, GatewayProtocol.CANCEL, 5, ResultCode.UNKNOWN_ORDER);
+		assertResponse(responses, (byte) 99, 0, ResultCode.INVALID_REQUEST);
+		Assert.assertArrayEquals(new long[]{orderId, sellOrderId}, orderboard.getOrdersForUser("Nat"));
+
+		GatewayProtocol.cancel(requests, 6, orderId);
+		GatewayProtocol.summary(requests, 7, 10, 1);
+		write(requests);
+		responses = read(GatewayProtocol.RESPONSE_LENGTH + GatewayProtocol.SUMMARY_HEADER_LENGTH + GatewayProtocol.LEVEL_LENGTH);
+		Assert.assertEquals(orderId, assertResponse(responses, GatewayProtocol.CANCEL, 6, ResultCode.OK));
+		OrderBookSummary summary = orderboard.getSummary();
+		Assert.assertEquals(GatewayProtocol.SUMMARY, responses.get());
+		Assert.assertEquals(ResultCode.OK, GatewayProtocol.resultCode(responses.get()));
+		responses.getShort();
+		Assert.assertEquals(7, responses.getInt());
+		Assert.assertEquals(summary.getSequence(), responses.getLong());
+		Assert.assertEquals(0, responses.getInt());
+		Assert.assertEquals(1, responses.getInt());
+		PriceLevelSummary level = summary.getSells().get(0);
+		Assert.assertEquals(level.getPrice(), responses.getInt());
+		Assert.assertEquals(level.getNumberOfOrders(), responses.getInt());
+		Assert.assertEquals(level.getCumulativeQuantityUnits(), responses.getLong());
+	}
+
+	/**
+	 * Tests that pipelined requests are all answered, in order, while the client writes faster than it reads.
+	 */
+	@Test
+	public void testPipelining() throws Exception{
+		int count = 50000;
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			ByteBuffer requests = ByteBuffer.allocateDirect(GatewayProtocol.REQUEST_LENGTH * 1024);
+			try{
+				for(int i=0; i<count; i++){
+					GatewayProtocol.register(requests, i, i % 2 == 0 ? OrderType.BUY : OrderType.SELL, i % 2 == 0 ? 300 + i % 5 : 310 + i % 5, 1000L);
+					if(!requests.hasRemaining()){
+						write(requests);
+					}
+				}
+				write(requests);
+			}catch(IOException ex){
+				failure.set(ex);
+			}
+		});
+		writer.start();
+		ByteBuffer responses = ByteBuffer.allocateDirect(GatewayProtocol.RESPONSE_LENGTH * 1024);
+		int received = 0;
+		while(received < count){
+			if(client.read(responses) < 0){
+				Assert.fail("Connection closed after "+received+" responses");
+			}
+			responses.flip();
+			while(responses.remaining() >= GatewayProtocol.RESPONSE_LENGTH){
+				Assert.assertEquals(received, assertResponse(responses, GatewayProtocol.REGISTER, received, ResultCode.OK) & 0xffffff);
+				received++;
+			}
+			responses.compact();
+		}
+		writer.join();
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(count, orderboard.getMetrics().getLiveOrders());
+	}
+
+	private void write(ByteBuffer buffer) throws IOException{
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			client.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private ByteBuffer read(int length) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()){
+			if(client.read(buffer) < 0){
+				Assert.fail("Connection closed");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Checks a LOGIN, REGISTER or CANCEL response.
+	 * @return The value of the response.
+	 */
+	private static long assertResponse(ByteBuffer responses, byte type, int requestId, ResultCode code){
+		Assert.assertEquals(type, responses.get());
+		Assert.assertEquals(code, GatewayProtocol.resultCode(responses.get()));
+		responses.getShort();
+		Assert.assertEquals(requestId, responses.getInt());
+		return responses.getLong();
+	}
+}
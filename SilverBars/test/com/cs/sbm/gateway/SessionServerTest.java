@@ -0,0 +1,156 @@
+package com.cs.sbm.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cs.sbm.api.OrderBookDeltaListener;
+import com.cs.sbm.api.OrderType;
+import com.cs.sbm.api.ResultCode;
+import com.cs.sbm.impl.FixedPointQuantity;
+import com.cs.sbm.impl.HeapOrderStore;
+import com.cs.sbm.impl.OrderBoardImpl;
+
+/**
+ * Testcase for {@link SessionServer}, driven over the loopback interface.
+ * @author Nat
+ *
+ */
+public class SessionServerTest {
+
+	OrderBoardImpl orderboard = new OrderBoardImpl(new HeapOrderStore(1 << 16), FixedPointQuantity.DEFAULT_SCALE);
+	SessionServer server;
+	List<SocketChannel> clients = new ArrayList<>();
+
+	@After
+	public void teardown() throws IOException{
+		disconnect();
+		server.close();
+	}
+
+	/**
+	 * Tests that a session blocked in a listener holds its permit, and that the other sessions wait for it rather than call the orderboard.
+	 */
+	@Test
+	public void testBackpressure() throws Exception{
+		server = new SessionServer(orderboard, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		orderboard.addDeltaListener(new OrderBookDeltaListener() {
+			@Override
+			public void onLevelAdded(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+				if(price == 300){
+					blocked.countDown();
+					try{
+						release.await();
+					}catch(InterruptedException ex){
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			@Override
+			public void onLevelChanged(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+			}
+			@Override
+			public void onLevelRemoved(long sequence, OrderType side, int price) {
+			}
+		});
+		SocketChannel first = connect();
+		SocketChannel second = connect();
+		ByteBuffer requests = ByteBuffer.allocate(GatewayProtocol.REQUEST_LENGTH);
+		GatewayProtocol.register(requests, 1, OrderType.BUY, 300, 1000L);
+		write(first, requests);
+		Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+		GatewayProtocol.register(requests, 2, OrderType.SELL, 310, 1000L);
+		write(second, requests);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while(server.getThrottledCount() == 0 && System.nanoTime() < deadline){
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(1, server.getThrottledCount());
+
+		release.countDown();
+		Assert.assertEquals(ResultCode.OK, response(first, 1));
+		Assert.assertEquals(ResultCode.OK, response(second, 2));
+		Assert.assertEquals(2, orderboard.getMetrics().getLiveOrders());
+	}
+
+	/**
+	 * Tests that an increasing number of clients, each logging in and placing an order, are all served.
+	 * This only checks that the sessions scale functionally, the throughput and latencies per number of connections are measured by the load driver of the benchmarks.
+	 */
+	@Test
+	public void testConnectionScaling() throws Exception{
+		server = new SessionServer(orderboard, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		ByteBuffer requests = ByteBuffer.allocate(GatewayProtocol.REQUEST_LENGTH * 2);
+		int orders = 0;
+		for(int count = 250; count <= 2000; count *= 2){
+			for(int i=0; i<count; i++){
+				SocketChannel client = connect();
+				GatewayProtocol.login(requests, 1, "user"+i);
+				GatewayProtocol.register(requests, 2, i % 2 == 0 ? OrderType.BUY : OrderType.SELL, i % 2 == 0 ? 300 + i % 10 : 320 + i % 10, 1000L);
+				write(client, requests);
+			}
+			for(SocketChannel client : clients){
+				Assert.assertEquals(ResultCode.OK, response(client, 1));
+				Assert.assertEquals(ResultCode.OK, response(client, 2));
+			}
+			orders += count;
+			Assert.assertEquals(count, server.getOpenSessions());
+			Assert.assertEquals(orders, orderboard.getMetrics().getLiveOrders());
+			disconnect();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while(server.getOpenSessions() > 0 && System.nanoTime() < deadline){
+				Thread.sleep(1);
+			}
+			Assert.assertEquals(0, server.getOpenSessions());
+		}
+	}
+
+	private SocketChannel connect() throws IOException{
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		clients.add(client);
+		return client;
+	}
+
+	private void disconnect() throws IOException{
+		for(SocketChannel client : clients){
+			client.close();
+		}
+		clients.clear();
+	}
+
+	private static void write(SocketChannel client, ByteBuffer buffer) throws IOException{
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			client.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Reads a LOGIN, REGISTER or CANCEL response.
+	 * @return The result code of the response.
+	 */
+	private static ResultCode response(SocketChannel client, int requestId) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(GatewayProtocol.RESPONSE_LENGTH);
+		while(buffer.hasRemaining()){
+			if(client.read(buffer) < 0){
+				Assert.fail("Connection closed");
+			}
+		}
+		Assert.assertEquals(requestId, buffer.getInt(GatewayProtocol.REQUEST_ID_OFFSET));
+		return GatewayProtocol.resultCode(buffer.get(1));
+	}
+}
@@ -3,36 +3,80 @@
  */
 package com.cs.sbm.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 
+import com.cs.sbm.api.BatchResult;
+import com.cs.sbm.api.OrderBookDeltaListener;
 import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderRequest;
 import com.cs.sbm.api.OrderType;
 import com.cs.sbm.api.OrderUpdateListener;
+import com.cs.sbm.api.ResultCode;
 
 
 /**
  * Testcase for {@link OrderBoardImpl}
+ * All scenarios are run against every {@link OrderStore} implementation.
  * 
  * @author Nat
  *
  */
+@RunWith(Parameterized.class)
 public class OrderBoardImplTest {
 
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> stores(){
+		IntFunction<OrderStore> heap = HeapOrderStore::new;
+		IntFunction<OrderStore> offHeap = OffHeapOrderStore::new;
+		IntFunction<OrderStore> mapped = capacity -> new OffHeapOrderStore(capacity, new File(System.getProperty("java.io.tmpdir")));
+		return Arrays.asList(new Object[][]{{"heap", heap}, {"off-heap", offHeap}, {"memory-mapped", mapped}});
+	}
+	
+	@Parameter(0)
+	public String storeName;
+	@Parameter(1)
+	public IntFunction<OrderStore> storeFactory;
+	
 	OrderBoardImpl orderboard;
 	DefaultOrderUpdateListener updateListener;
 	@Before
 	public void setup(){
 		this.updateListener = new DefaultOrderUpdateListener();
-		this.orderboard = new OrderBoardImpl();
+		this.orderboard = new OrderBoardImpl(storeFactory.apply(5120), FixedPointQuantity.DEFAULT_SCALE);
 		this.orderboard.addUpdateListener(updateListener);
 	}
 	
@@ -102,13 +146,13 @@ public class OrderBoardImplTest {
 	public void testCancelOrder(){
 	
 		OrderBookSummary expected = null;
-		int orderId1 = orderboard.registerOrder("Nat", OrderType.BUY, 306, BigDecimal.valueOf(3.5));
+		long orderId1 = orderboard.registerOrder("Nat", OrderType.BUY, 306, BigDecimal.valueOf(3.5));
 		expected = new OrderBookSummary(Arrays.asList(new PriceLevelSummary(306, 1, BigDecimal.valueOf(3.5))), Collections.emptyList());
 		validate(expected, updateListener.getUpdates().get(0) );
 		updateListener.clear();
 		
 		
-		int orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 310, BigDecimal.valueOf(1.2));
+		long orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 310, BigDecimal.valueOf(1.2));
 		expected = new OrderBookSummary(Arrays.asList(new PriceLevelSummary(310, 1, BigDecimal.valueOf(1.2)), new PriceLevelSummary(306, 1, BigDecimal.valueOf(3.5))), Collections.emptyList());
 		validate(expected, updateListener.getUpdates().get(0) );
 		updateListener.clear();
@@ -153,9 +197,9 @@ public class OrderBoardImplTest {
 	@Test
 	public void testRemoveAndReRegister(){
 		OrderBookSummary expected = null;
-		int orderId1 = orderboard.registerOrder("Nat", OrderType.BUY, 306, BigDecimal.valueOf(3.5));
+		long orderId1 = orderboard.registerOrder("Nat", OrderType.BUY, 306, BigDecimal.valueOf(3.5));
 		updateListener.clear();
-		int orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 310, BigDecimal.valueOf(1.2));
+		long orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 310, BigDecimal.valueOf(1.2));
 		expected = new OrderBookSummary(Arrays.asList(new PriceLevelSummary(310, 1, BigDecimal.valueOf(1.2)), new PriceLevelSummary(306, 1, BigDecimal.valueOf(3.5))), Collections.emptyList());
 		validate(expected, updateListener.getUpdates().get(0) );
 		updateListener.clear();
@@ -173,6 +217,1065 @@ public class OrderBoardImplTest {
 		updateListener.clear();
 	}
 	
+	/**
+	 * Tests registering orders with fixed point quantities, alongside BigDecimal quantities.
+	 */
+	@Test
+	public void testRegisterOrder_FixedPointQuantity(){
+		OrderBookSummary expected = null;
+		Assert.assertEquals(FixedPointQuantity.DEFAULT_SCALE, orderboard.getQuantityScale());
+		orderboard.registerOrder("Nat", OrderType.SELL, 306, 1500L);
+		orderboard.registerOrder("Nat", OrderType.SELL, 306, BigDecimal.valueOf(2.25));
+		expected = new OrderBookSummary(Collections.emptyList(), Arrays.asList(new PriceLevelSummary(306, 2, BigDecimal.valueOf(3.75))));
+		validate(expected, updateListener.getUpdates().get(1) );
+		Assert.assertEquals(3750L, orderboard.getSummary().getSells().get(0).getCumulativeQuantityUnits());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	/**
+	 * Tests that a quantity with more decimal places than the board supports is rejected.
+	 */
+	public void testRegisterOrder_QuantityExceedsScale(){
+		new OrderBoardImpl(storeFactory.apply(16), 1).registerOrder("Nat", OrderType.BUY, 306, new BigDecimal("1.25"));
+	}
+
+	/**
+	 * Tests that a stale orderId is rejected, however many orders are registered and cancelled after it: more than the quarantine of the released slots.
+	 */
+	@Test
+	public void testCancelOrder_StaleAfterReuse(){
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE);
+		long stale = board.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		Assert.assertTrue(board.cancelOrder(stale));
+		int reuses = 0;
+		for(int i=0; i<FreeSlots.QUARANTINE + 2; i++){
+			long orderId = board.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+			Assert.assertNotEquals(stale, orderId);
+			if(OrderStore.slot(orderId) == OrderStore.slot(stale)){
+				reuses++;
+			}
+			Assert.assertTrue(board.cancelOrder(orderId));
+		}
+		//the slot of the stale order is reused once the quarantine is full, under the next generation.
+		Assert.assertEquals(1, reuses);
+		long bob = board.registerOrder("Bob", OrderType.BUY, 306, 1000L);
+		Assert.assertFalse("Stale orderId cancelled another order", board.cancelOrder(stale));
+		Assert.assertArrayEquals(new long[]{bob}, board.getOrdersForUser("Bob"));
+	}
+
+	/**
+	 * Tests that a quantity which is not positive is rejected by every register path, as by the batch path, and that nothing rests on the orderbook.
+	 */
+	@Test
+	public void testRegisterOrder_InvalidQuantity(){
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), true);
+		int userId = board.registerUser("Nat");
+		List<Runnable> registers = Arrays.asList(
+			() -> board.registerOrder("Nat", OrderType.BUY, 306, -1000L),
+			() -> board.registerOrder("Nat", OrderType.SELL, 306, 0L),
+			() -> board.registerOrder(userId, OrderType.BUY, 306, -1L),
+			() -> board.registerOrder(userId, null, 306, 1000L),
+			() -> board.registerOrder("Nat", OrderType.SELL, 306, BigDecimal.valueOf(-1.5)));
+		for(Runnable register : registers){
+			try{
+				register.run();
+				Assert.fail("Invalid order has been registered");
+			}catch(IllegalArgumentException ex){
+				//expected.
+			}
+		}
+		Assert.assertEquals(0, board.getMetrics().getLiveOrders());
+		Assert.assertTrue(board.getSummary().getBuys().isEmpty());
+		Assert.assertTrue(board.getSummary().getSells().isEmpty());
+		Assert.assertEquals(ResultCode.INVALID_REQUEST, board.registerOrders(Arrays.asList(new OrderRequest("Nat", OrderType.BUY, 306, -1L))).getCode(0));
+	}
+
+	/**
+	 * Tests that the slot of a cancelled order is reused, and the old orderId is rejected afterwards.
+	 */
+	@Test
+	public void testCancelOrder_StaleOrderId(){
+		long orderId1 = orderboard.registerOrder("Nat", OrderType.BUY, 306, BigDecimal.valueOf(3.5));
+		Assert.assertTrue(orderboard.cancelOrder(orderId1));
+		long orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 310, BigDecimal.valueOf(1.2));
+		Assert.assertNotEquals("OrderId of a cancelled order has been reused", orderId1, orderId2);
+		Assert.assertFalse("Orderboard did not detect stale orderId", orderboard.cancelOrder(orderId1));
+		OrderBookSummary expected = new OrderBookSummary(Arrays.asList(new PriceLevelSummary(310, 1, BigDecimal.valueOf(1.2))), Collections.emptyList());
+		validate(expected, orderboard.getSummary());
+		Assert.assertTrue(orderboard.cancelOrder(orderId2));
+	}
+
+	/**
+	 * Tests that the orderboard grows beyond its initial size.
+	 */
+	@Test
+	public void testRegisterOrder_BeyondInitialSize(){
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE);
+		long[] orderIds = new long[5000];
+		for(int i=0; i<orderIds.length; i++){
+			orderIds[i] = board.registerOrder("Nat", OrderType.SELL, 300 + i % 10, 1000L);
+		}
+		Assert.assertEquals(500, board.getSummary().getSells().get(0).getNumberOfOrders());
+		for(long orderId : orderIds){
+			Assert.assertTrue("Failed to cancel order "+orderId, board.cancelOrder(orderId));
+		}
+		Assert.assertTrue(board.getSummary().getSells().isEmpty());
+	}
+
+	/**
+	 * Tests that orders added to and cancelled from the same price level by many threads, each order by two threads at once, are cancelled exactly once,
+	 * and that the slots of the cancelled orders are all released in the end.
+	 */
+	@Test
+	public void testCancelOrder_Concurrent() throws InterruptedException{
+		OrderStore store = storeFactory.apply(1024);
+		OrderBoardImpl board = new OrderBoardImpl(store, FixedPointQuantity.DEFAULT_SCALE);
+		int threads = 4;
+		int ordersPerThread = 5000;
+		AtomicLongArray orderIds = new AtomicLongArray(threads * ordersPerThread);
+		AtomicInteger cancelled = new AtomicInteger();
+		List<Thread> workers = new ArrayList<>();
+		for(int t=0; t<threads; t++){
+			int own = t * ordersPerThread;
+			int other = (t + 1) % threads * ordersPerThread;
+			workers.add(new Thread(() -> {
+				for(int i=0; i<ordersPerThread; i++){
+					orderIds.set(own + i, board.registerOrder("Nat", OrderType.BUY, 300, 1000L) + 1);
+					//race the neighbour for its order, leave some orders live.
+					long orderId = orderIds.get(other + i) - 1;
+					if(orderId >= 0 && board.cancelOrder(orderId)){
+						cancelled.incrementAndGet();
+					}
+					if(i % 3 != 0 && board.cancelOrder(orderIds.get(own + i) - 1)){
+						cancelled.incrementAndGet();
+					}
+				}
+			}));
+		}
+		workers.forEach(Thread::start);
+		for(Thread worker : workers){
+			worker.join();
+		}
+		int live = board.getSummary().getBuys().isEmpty() ? 0 : board.getSummary().getBuys().get(0).getNumberOfOrders();
+		Assert.assertEquals(threads * ordersPerThread, cancelled.get() + live);
+		for(int i=0; i<orderIds.length(); i++){
+			if(board.cancelOrder(orderIds.get(i) - 1)){
+				cancelled.incrementAndGet();
+			}
+		}
+		Assert.assertEquals("Orders cancelled more than once, or not at all", threads * ordersPerThread, cancelled.get());
+		Assert.assertTrue(board.getSummary().getBuys().isEmpty());
+		//an uncontended cancel sweeps the orders the contended ones have left on the level.
+		Assert.assertTrue(board.cancelOrder(board.registerOrder("Nat", OrderType.BUY, 300, 1000L)));
+		Assert.assertEquals("Slots of cancelled orders have not been released", 0, store.size());
+	}
+
+	/**
+	 * Tests that price levels far apart (outside of the dense window of the price ladder) are kept in price order.
+	 */
+	@Test
+	public void testRegisterOrder_WidePriceRange(){
+		orderboard.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		orderboard.registerOrder("Nat", OrderType.SELL, 306, 1000L);
+		for(int i=1; i<=400; i++){
+			orderboard.registerOrder("Nat", OrderType.BUY, 306 + (i % 2 == 0 ? i : -i) * 10000, 1000L);
+			orderboard.registerOrder("Nat", OrderType.SELL, 306 + (i % 2 == 0 ? i : -i) * 10000, 1000L);
+		}
+		OrderBookSummary summary = orderboard.getSummary();
+		Assert.assertEquals(401, summary.getBuys().size());
+		Assert.assertEquals(401, summary.getSells().size());
+		for(int i=1; i<summary.getBuys().size(); i++){
+			Assert.assertTrue("BUY levels out of order", summary.getBuys().get(i-1).getPrice() > summary.getBuys().get(i).getPrice());
+			Assert.assertTrue("SELL levels out of order", summary.getSells().get(i-1).getPrice() < summary.getSells().get(i).getPrice());
+		}
+		Assert.assertEquals(306 + 400 * 10000, summary.getBuys().get(0).getPrice());
+		Assert.assertEquals(306 - 399 * 10000, summary.getSells().get(0).getPrice());
+	}
+
+	/**
+	 * Tests that a burst of orders is published as few snapshots, and that a slow listener does not hold the others back.
+	 */
+	@Test
+	public void testCoalescedNotifications() throws InterruptedException{
+		CoalescingUpdateNotifier notifier = new CoalescingUpdateNotifier(20, TimeUnit.MILLISECONDS, 0);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(1024), FixedPointQuantity.DEFAULT_SCALE, notifier);
+		CountDownLatch slowListenerStarted = new CountDownLatch(1);
+		CountDownLatch releaseSlowListener = new CountDownLatch(1);
+		OrderUpdateListener slowListener = summary -> {
+			slowListenerStarted.countDown();
+			try{
+				releaseSlowListener.await();
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}
+		};
+		board.addUpdateListener(slowListener);
+		board.addUpdateListener(updateListener);
+		board.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		Assert.assertTrue(slowListenerStarted.await(5, TimeUnit.SECONDS));
+		for(int i=0; i<1000; i++){
+			board.registerOrder("Nat", OrderType.SELL, 310 + i % 5, 1000L);
+		}
+		notifier.close();
+		//the fast listener gets the last snapshot, while the slow one is still busy with the first.
+		long deadline = System.currentTimeMillis() + 5000;
+		while(notifier.getMetrics(updateListener).getLag() > 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(0, notifier.getMetrics(updateListener).getLag());
+		Assert.assertTrue("Snapshots have not been coalesced", notifier.getMetrics(updateListener).getDelivered() < 1001);
+		synchronized(updateListener){
+			validate(board.getSummary(), updateListener.getUpdates().get(updateListener.getUpdates().size() - 1));
+		}
+		Assert.assertTrue(notifier.getMetrics(slowListener).getLag() > 0);
+		releaseSlowListener.countDown();
+	}
+
+	/**
+	 * Tests that orders entered while the notifier is being closed are not rejected.
+	 */
+	@Test
+	public void testCoalescedNotifications_Close() throws InterruptedException{
+		CoalescingUpdateNotifier notifier = new CoalescingUpdateNotifier(20, TimeUnit.MILLISECONDS, 1);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(1024), FixedPointQuantity.DEFAULT_SCALE, notifier);
+		board.addUpdateListener(updateListener);
+		AtomicInteger registered = new AtomicInteger();
+		List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+		Thread writer = new Thread(() -> {
+			try{
+				for(int i=0; i<20000; i++){
+					board.cancelOrder(board.registerOrder("Nat", OrderType.BUY, 306, 1000L));
+					registered.incrementAndGet();
+				}
+			}catch(RuntimeException ex){
+				failures.add(ex);
+			}
+		});
+		writer.start();
+		while(registered.get() < 100){
+			Thread.yield();
+		}
+		notifier.close();
+		notifier.close();
+		writer.join();
+		Assert.assertEquals(Collections.emptyList(), failures);
+		Assert.assertEquals(20000, registered.get());
+	}
+
+	/**
+	 * Tests that a copy of the orderbook, built from a snapshot and the delta events after it, matches the orderbook.
+	 */
+	@Test
+	public void testDeltaListener(){
+		orderboard.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		long orderId = orderboard.registerOrder("Nat", OrderType.SELL, 310, 1000L);
+		List<String> events = new ArrayList<>();
+		Map<String, Long> book = new TreeMap<>();
+		long[] lastSequence = new long[1];
+		orderboard.addDeltaListener(new OrderBookDeltaListener() {
+			@Override
+			public void onLevelAdded(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+				onLevelChanged(sequence, side, price, numberOfOrders, quantity);
+				events.set(events.size() - 1, "added " + side + " " + price);
+			}
+			@Override
+			public void onLevelChanged(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+				Assert.assertEquals("Gap in the sequence", lastSequence[0] + 1, sequence);
+				lastSequence[0] = sequence;
+				book.put(side + " " + price, quantity);
+				events.add("changed " + side + " " + price);
+			}
+			@Override
+			public void onLevelRemoved(long sequence, OrderType side, int price) {
+				Assert.assertEquals("Gap in the sequence", lastSequence[0] + 1, sequence);
+				lastSequence[0] = sequence;
+				book.remove(side + " " + price);
+				events.add("removed " + side + " " + price);
+			}
+		});
+		//start from a snapshot, as the listener joined late.
+		OrderBookSummary snapshot = orderboard.getSummary();
+		lastSequence[0] = snapshot.getSequence();
+		snapshot.getBuys().forEach(level -> book.put("BUY " + level.getPrice(), level.getCumulativeQuantityUnits()));
+		snapshot.getSells().forEach(level -> book.put("SELL " + level.getPrice(), level.getCumulativeQuantityUnits()));
+
+		orderboard.registerOrder("Nat", OrderType.BUY, 306, 500L);
+		orderboard.registerOrder("Nat", OrderType.BUY, 305, 500L);
+		Assert.assertTrue(orderboard.cancelOrder(orderId));
+		Assert.assertEquals(Arrays.asList("changed BUY 306", "added BUY 305", "removed SELL 310"), events);
+
+		Map<String, Long> expected = new TreeMap<>();
+		OrderBookSummary summary = orderboard.getSummary();
+		summary.getBuys().forEach(level -> expected.put("BUY " + level.getPrice(), level.getCumulativeQuantityUnits()));
+		summary.getSells().forEach(level -> expected.put("SELL " + level.getPrice(), level.getCumulativeQuantityUnits()));
+		Assert.assertEquals(expected, book);
+		Assert.assertEquals(lastSequence[0], summary.getSequence());
+	}
+
+	/**
+	 * Tests that a level left without orders is taken off its ladder, and that a new level takes its place at the same price.
+	 */
+	@Test
+	public void testEmptyLevelEviction(){
+		List<String> events = new ArrayList<>();
+		orderboard.addDeltaListener(new OrderBookDeltaListener() {
+			@Override
+			public void onLevelAdded(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+				events.add("added " + price + " " + numberOfOrders);
+			}
+			@Override
+			public void onLevelChanged(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+				events.add("changed " + price + " " + numberOfOrders);
+			}
+			@Override
+			public void onLevelRemoved(long sequence, OrderType side, int price) {
+				events.add("removed " + price);
+			}
+		});
+		long orderId1 = orderboard.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		long orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		Assert.assertTrue(orderboard.cancelOrder(orderId1));
+		Assert.assertTrue(orderboard.cancelOrder(orderId2));
+		Assert.assertEquals(0, orderboard.getMetrics().getLiveOrders());
+		orderboard.registerOrder("Nat", OrderType.BUY, 306, 500L);
+		Assert.assertEquals(Arrays.asList("added 306 1", "changed 306 2", "changed 306 1", "removed 306", "added 306 1"), events);
+		validate(new OrderBookSummary(Arrays.asList(new PriceLevelSummary(306, 1, 500L, FixedPointQuantity.DEFAULT_SCALE)), Collections.emptyList()), orderboard.getSummary());
+
+		//the ladder itself, with an outlier beyond its dense window.
+		OrderStore store = storeFactory.apply(16);
+		PriceLadder ladder = new PriceLadder(OrderType.SELL, 16, price -> new PriceLevel(price, FixedPointQuantity.DEFAULT_SCALE, store));
+		int[] prices = {310, 312, 1000};
+		long[] orderIds = new long[prices.length];
+		for(int i=0; i<prices.length; i++){
+			orderIds[i] = store.allocate(UserRegistry.NO_USER, OrderType.SELL, prices[i], 1000L);
+			Assert.assertTrue(ladder.getOrCreate(prices[i]).addOrder(OrderStore.slot(orderIds[i])));
+		}
+		PriceLevel best = ladder.getBest();
+		Assert.assertEquals(310, best.getPrice());
+		Assert.assertFalse("Evicted a level holding orders", ladder.remove(best));
+		for(int i=0; i<prices.length; i++){
+			PriceLevel level = ladder.get(prices[i]);
+			Assert.assertTrue(level.removeOrder(OrderStore.slot(orderIds[i]), orderIds[i], OrderState.CANCELLED));
+			Assert.assertTrue(ladder.remove(level));
+			Assert.assertTrue(level.isRetired());
+			Assert.assertNull(ladder.get(prices[i]));
+			Assert.assertEquals(prices.length - i - 1, ladder.size());
+			Assert.assertEquals(i + 1 < prices.length, ladder.hasBestPrice());
+			if(i + 1 < prices.length){
+				Assert.assertEquals(prices[i + 1], ladder.getBestPrice());
+			}
+		}
+		Assert.assertNull(ladder.getBest());
+		Assert.assertEquals("Slots of the cancelled orders not released", 0, store.size());
+		//a retired level refuses new orders, the new level at its price takes them.
+		long orderId = store.allocate(UserRegistry.NO_USER, OrderType.SELL, 310, 1000L);
+		Assert.assertFalse(best.addOrder(OrderStore.slot(orderId)));
+		PriceLevel level = ladder.getOrCreate(310);
+		Assert.assertNotSame(best, level);
+		Assert.assertTrue(level.addOrder(OrderStore.slot(orderId)));
+		Assert.assertEquals(310, ladder.getBestPrice());
+		Assert.assertEquals(1, level.getSummary().getNumberOfOrders());
+	}
+
+	/**
+	 * Tests orders at the limits of the int range, which the dense window of the ladders must not overflow around.
+	 */
+	@Test
+	public void testRegisterOrder_PriceLimits(){
+		int[] sells = {Integer.MAX_VALUE, Integer.MAX_VALUE - 1000, Integer.MIN_VALUE};
+		int[] buys = {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MAX_VALUE};
+		long[] orderIds = new long[sells.length + buys.length];
+		for(int i=0; i<sells.length; i++){
+			orderIds[i] = orderboard.registerOrder("Nat", OrderType.SELL, sells[i], 1000L);
+			orderIds[sells.length + i] = orderboard.registerOrder("Bob", OrderType.BUY, buys[i], 1000L);
+		}
+		validate(new OrderBookSummary(
+				Arrays.asList(
+				new PriceLevelSummary(Integer.MAX_VALUE, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE),
+				new PriceLevelSummary(Integer.MIN_VALUE + 1, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE),
+				new PriceLevelSummary(Integer.MIN_VALUE, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE)),
+				Arrays.asList(
+				new PriceLevelSummary(Integer.MIN_VALUE, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE),
+				new PriceLevelSummary(Integer.MAX_VALUE - 1000, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE),
+				new PriceLevelSummary(Integer.MAX_VALUE, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE))),
+				orderboard.getSummary());
+		for(long orderId : orderIds){
+			Assert.assertTrue(orderboard.cancelOrder(orderId));
+		}
+		Assert.assertEquals(0, orderboard.getMetrics().getLiveOrders());
+		Assert.assertTrue(orderboard.getSummary().getBuys().isEmpty());
+		Assert.assertTrue(orderboard.getSummary().getSells().isEmpty());
+
+		//the bands beyond the int range are clamped to it.
+		orderboard.registerOrder("Nat", OrderType.BUY, Integer.MIN_VALUE, 1000L);
+		orderboard.registerOrder("Nat", OrderType.BUY, Integer.MIN_VALUE + 9, 1000L);
+		orderboard.registerOrder("Nat", OrderType.SELL, Integer.MAX_VALUE, 1000L);
+		validate(new OrderBookSummary(
+				Arrays.asList(
+				new PriceLevelSummary(Integer.MIN_VALUE + 8, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE),
+				new PriceLevelSummary(Integer.MIN_VALUE, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE)),
+				Arrays.asList(
+				new PriceLevelSummary(Integer.MAX_VALUE, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE))),
+				orderboard.getSummary(10, 10));
+
+		//Integer.MIN_VALUE is a price like any other, not the empty ladder.
+		OrderStore store = storeFactory.apply(16);
+		PriceLadder ladder = new PriceLadder(OrderType.BUY, 16, price -> new PriceLevel(price, FixedPointQuantity.DEFAULT_SCALE, store));
+		Assert.assertFalse(ladder.hasBestPrice());
+		ladder.getOrCreate(Integer.MIN_VALUE);
+		Assert.assertTrue(ladder.hasBestPrice());
+		Assert.assertEquals(Integer.MIN_VALUE, ladder.getBestPrice());
+		Assert.assertEquals(Integer.MIN_VALUE, ladder.getBest().getPrice());
+	}
+
+	/**
+	 * Tests listing and mass cancelling the orders of a user, in one batch.
+	 */
+	@Test
+	public void testOrdersForUser(){
+		long bob = orderboard.registerOrder("Bob", OrderType.SELL, 310, 1000L);
+		List<Long> expected = new ArrayList<>();
+		for(int i=0; i<50; i++){
+			long orderId = orderboard.registerOrder("Nat", i % 2 == 0 ? OrderType.BUY : OrderType.SELL, i % 2 == 0 ? 300 + i % 3 : 310 + i % 3, 1000L);
+			//cancelled orders are dropped from the index lazily, as it grows.
+			if(i % 3 == 0){
+				Assert.assertTrue(orderboard.cancelOrder(orderId));
+			}else{
+				expected.add(orderId);
+			}
+		}
+		BatchResult batch = orderboard.registerOrders(Arrays.asList(new OrderRequest("Nat", OrderType.BUY, 305, 1000L), new OrderRequest(null, OrderType.BUY, 305, 1000L)));
+		expected.add(batch.getOrderId(0));
+		Assert.assertEquals(expected, toList(orderboard.getOrdersForUser("Nat")));
+		Assert.assertEquals(Arrays.asList(bob), toList(orderboard.getOrdersForUser("Bob")));
+		Assert.assertEquals(0, orderboard.getOrdersForUser("Unknown").length);
+		Assert.assertEquals(0, orderboard.getOrdersForUser(null).length);
+
+		updateListener.clear();
+		BatchResult cancelled = orderboard.cancelAllForUser("Nat");
+		Assert.assertEquals(expected.size(), cancelled.size());
+		for(int i=0; i<cancelled.size(); i++){
+			Assert.assertEquals(ResultCode.OK, cancelled.getCode(i));
+		}
+		Assert.assertEquals("Listeners are notified once per mass cancel", 1, updateListener.getUpdates().size());
+		Assert.assertEquals(0, orderboard.getOrdersForUser("Nat").length);
+		Assert.assertEquals(0, orderboard.cancelAllForUser("Nat").size());
+		validate(new OrderBookSummary(Arrays.asList(new PriceLevelSummary(305, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE)),
+				Arrays.asList(new PriceLevelSummary(310, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE))), orderboard.getSummary());
+	}
+
+	/**
+	 * Tests that an orderId left in the index of a user is dropped once its slot holds an order of another user with the same orderId, ie: once the generation of the slot has wrapped around.
+	 */
+	@Test
+	public void testOrdersForUser_GenerationWrapped(){
+		OrderStore store = storeFactory.apply(16);
+		UserOrderIndex index = new UserOrderIndex(store);
+		int alice = 0;
+		int bob = 1;
+		long orderId = store.allocate(alice, OrderType.BUY, 300, 1000L);
+		index.add(alice, orderId);
+		int slot = store.find(orderId);
+		Assert.assertTrue(store.compareAndSetState(slot, orderId, OrderState.LIVE, OrderState.CANCELLED));
+		store.release(slot);
+		//the slot reused by Bob, as many times as it takes its generation to wrap back to the orderId of Alice.
+		Assert.assertTrue(store.restore(orderId, bob, OrderType.BUY, 300, 1000L));
+		index.add(bob, orderId);
+
+		Assert.assertEquals(0, index.liveOrders(alice).length);
+		Assert.assertArrayEquals(new long[]{orderId}, index.liveOrders(bob));
+	}
+
+	/**
+	 * Tests registering orders by user ID.
+	 */
+	@Test
+	public void testRegisterOrder_UserId(){
+		int nat = orderboard.registerUser("Nat");
+		int bob = orderboard.registerUser("Bob");
+		Assert.assertNotEquals(nat, bob);
+		Assert.assertEquals(nat, orderboard.registerUser("Nat"));
+		Assert.assertEquals(UserRegistry.NO_USER, orderboard.registerUser(null));
+		Assert.assertEquals("Bob", orderboard.getUserRegistry().name(bob));
+
+		long orderId1 = orderboard.registerOrder(nat, OrderType.BUY, 306, 1000L);
+		long orderId2 = orderboard.registerOrder("Nat", OrderType.BUY, 306, 500L);
+		long orderId3 = orderboard.registerOrder(UserRegistry.NO_USER, OrderType.SELL, 310, 500L);
+		Assert.assertEquals(Arrays.asList(orderId1, orderId2), toList(orderboard.getOrdersForUser("Nat")));
+		Assert.assertEquals(0, orderboard.getOrdersForUser("Bob").length);
+		validate(new OrderBookSummary(Arrays.asList(new PriceLevelSummary(306, 2, 1500L, FixedPointQuantity.DEFAULT_SCALE)),
+				Arrays.asList(new PriceLevelSummary(310, 1, 500L, FixedPointQuantity.DEFAULT_SCALE))), orderboard.getSummary());
+		try{
+			orderboard.registerOrder(bob + 1, OrderType.BUY, 306, 1000L);
+			Assert.fail("Registered an order for an unknown user");
+		}catch(IllegalArgumentException ex){
+			//expected.
+		}
+		Assert.assertTrue(orderboard.cancelOrder(orderId3));
+		Assert.assertEquals(2, orderboard.getOrdersForUser("Nat").length);
+	}
+
+	private static List<Long> toList(long[] values){
+		List<Long> list = new ArrayList<>();
+		for(long value : values){
+			list.add(value);
+		}
+		return list;
+	}
+
+	/**
+	 * Tests the summary of the best levels, and of the best price bands.
+	 */
+	@Test
+	public void testGetSummary_DepthAndBuckets(){
+		for(int price = 300; price < 320; price++){
+			orderboard.registerOrder("Nat", OrderType.BUY, price, 1000L);
+			orderboard.registerOrder("Nat", OrderType.SELL, price + 100, 2000L);
+		}
+		OrderBookSummary top = orderboard.getSummary(3);
+		Assert.assertEquals(Arrays.asList(new PriceLevelSummary(319, 1, BigDecimal.ONE), new PriceLevelSummary(318, 1, BigDecimal.ONE), new PriceLevelSummary(317, 1, BigDecimal.ONE)), top.getBuys());
+		Assert.assertEquals(Arrays.asList(new PriceLevelSummary(400, 1, BigDecimal.valueOf(2)), new PriceLevelSummary(401, 1, BigDecimal.valueOf(2)), new PriceLevelSummary(402, 1, BigDecimal.valueOf(2))), top.getSells());
+		Assert.assertEquals(orderboard.getSummary(), orderboard.getSummary(1000));
+
+		//BUY bands are rounded down, SELL bands up.
+		OrderBookSummary bands = orderboard.getSummary(2, 5);
+		Assert.assertEquals(Arrays.asList(new PriceLevelSummary(315, 5, BigDecimal.valueOf(5)), new PriceLevelSummary(310, 5, BigDecimal.valueOf(5))), bands.getBuys());
+		Assert.assertEquals(Arrays.asList(new PriceLevelSummary(400, 1, BigDecimal.valueOf(2)), new PriceLevelSummary(405, 5, BigDecimal.valueOf(10))), bands.getSells());
+		OrderBookSummary all = orderboard.getSummary(10, 5);
+		Assert.assertEquals(4, all.getBuys().size());
+		Assert.assertEquals(5, all.getSells().size());
+		Assert.assertEquals(new PriceLevelSummary(420, 4, BigDecimal.valueOf(8)), all.getSells().get(4));
+	}
+
+	/**
+	 * Tests that the snapshot is reused until the orderbook changes, and only the side which changed is rebuilt.
+	 */
+	@Test
+	public void testGetSummary_Cached(){
+		orderboard.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		long orderId = orderboard.registerOrder("Nat", OrderType.SELL, 310, 1000L);
+		OrderBookSummary summary = orderboard.getSummary();
+		Assert.assertSame(summary, orderboard.getSummary());
+		orderboard.registerOrder("Nat", OrderType.BUY, 307, 1000L);
+		OrderBookSummary changed = orderboard.getSummary();
+		Assert.assertNotSame(summary, changed);
+		Assert.assertSame("Unchanged side has been rebuilt", summary.getSells(), changed.getSells());
+		Assert.assertSame("Unchanged level has been rebuilt", summary.getBuys().get(0), changed.getBuys().get(1));
+		Assert.assertEquals(2, changed.getBuys().size());
+		Assert.assertTrue(orderboard.cancelOrder(orderId));
+		Assert.assertTrue(orderboard.getSummary().getSells().isEmpty());
+		Assert.assertSame(changed.getBuys(), orderboard.getSummary().getBuys());
+	}
+
+	/**
+	 * Tests matching in price-time priority, with partial fills.
+	 */
+	@Test
+	public void testMatching(){
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), true);
+		List<String> trades = new ArrayList<>();
+		board.addTradeListener((incomingOrderId, restingOrderId, incomingSide, price, quantity, restingFilled) ->
+			trades.add(incomingSide + " " + restingOrderId + " " + quantity + " @ " + price + (restingFilled ? " filled" : "")));
+		long sell1 = board.registerOrder("Nat", OrderType.SELL, 310, 1000L);
+		long sell2 = board.registerOrder("Nat", OrderType.SELL, 311, 1000L);
+		long sell3 = board.registerOrder("Nat", OrderType.SELL, 310, 2000L);
+		Assert.assertTrue(trades.isEmpty());
+
+		//takes the whole of 310, in time priority, then part of 311.
+		long buy1 = board.registerOrder("Nat", OrderType.BUY, 311, 3500L);
+		Assert.assertEquals(Arrays.asList("BUY " + sell1 + " 1000 @ 310 filled", "BUY " + sell3 + " 2000 @ 310 filled", "BUY " + sell2 + " 500 @ 311"), trades);
+		OrderBookSummary expected = new OrderBookSummary(Collections.emptyList(), Arrays.asList(new PriceLevelSummary(311, 1, BigDecimal.valueOf(0.5))));
+		validate(expected, board.getSummary());
+		Assert.assertFalse("Filled order has been cancelled", board.cancelOrder(sell1));
+		Assert.assertFalse("Filled order has been cancelled", board.cancelOrder(buy1));
+
+		//does not cross, rests on the book.
+		trades.clear();
+		long buy2 = board.registerOrder("Nat", OrderType.BUY, 309, 1000L);
+		Assert.assertTrue(trades.isEmpty());
+		//crosses, the remaining quantity rests.
+		board.registerOrder("Nat", OrderType.SELL, 305, 2000L);
+		Assert.assertEquals(Arrays.asList("SELL " + buy2 + " 1000 @ 309 filled"), trades);
+		expected = new OrderBookSummary(Collections.emptyList(), Arrays.asList(new PriceLevelSummary(305, 1, BigDecimal.valueOf(1)), new PriceLevelSummary(311, 1, BigDecimal.valueOf(0.5))));
+		validate(expected, board.getSummary());
+		Assert.assertTrue(board.cancelOrder(sell2));
+	}
+
+	/**
+	 * Tests the batch register/cancel, against the same orders registered/cancelled one by one.
+	 */
+	@Test
+	public void testBatchOrders(){
+		OrderBoardImpl single = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE);
+		List<OrderRequest> requests = new ArrayList<>();
+		for(int i=0; i<100; i++){
+			OrderType orderType = i % 2 == 0 ? OrderType.BUY : OrderType.SELL;
+			requests.add(new OrderRequest("Nat", orderType, 300 + i % 5, 1000L + i));
+			single.registerOrder("Nat", orderType, 300 + i % 5, 1000L + i);
+		}
+		requests.add(3, new OrderRequest("Nat", OrderType.BUY, 300, 0L));
+		requests.add(7, new OrderRequest("Nat", null, 300, 1000L));
+		updateListener.clear();
+		BatchResult registered = orderboard.registerOrders(requests);
+		Assert.assertEquals(requests.size(), registered.size());
+		Assert.assertEquals(ResultCode.INVALID_REQUEST, registered.getCode(3));
+		Assert.assertEquals(ResultCode.INVALID_REQUEST, registered.getCode(7));
+		Assert.assertEquals(-1, registered.getOrderId(3));
+		validate(single.getSummary(), orderboard.getSummary());
+		Assert.assertEquals("Listeners are notified once per batch", 1, updateListener.getUpdates().size());
+
+		long[] orderIds = new long[]{registered.getOrderId(0), registered.getOrderId(1), -1, registered.getOrderId(10), 999999, registered.getOrderId(2)};
+		Assert.assertTrue(orderboard.cancelOrder(registered.getOrderId(10)));
+		updateListener.clear();
+		BatchResult cancelled = orderboard.cancelOrders(orderIds);
+		Assert.assertEquals(Arrays.asList(ResultCode.OK, ResultCode.OK, ResultCode.UNKNOWN_ORDER, ResultCode.UNKNOWN_ORDER, ResultCode.UNKNOWN_ORDER, ResultCode.OK),
+				Arrays.asList(cancelled.getCode(0), cancelled.getCode(1), cancelled.getCode(2), cancelled.getCode(3), cancelled.getCode(4), cancelled.getCode(5)));
+		Assert.assertEquals(1, updateListener.getUpdates().size());
+		//the order of the batch maps to the order of the single registrations, orderIds aside.
+		Assert.assertTrue(single.cancelOrder(0));
+		Assert.assertTrue(single.cancelOrder(1));
+		Assert.assertTrue(single.cancelOrder(2));
+		Assert.assertTrue(single.cancelOrder(8));
+		validate(single.getSummary(), orderboard.getSummary());
+	}
+
+	/**
+	 * Tests that an orderboard is rebuilt from its journal, with the same orderIds, across chunks of the journal file.
+	 */
+	@Test
+	public void testJournalReplay() throws IOException{
+		File file = File.createTempFile("orders-", ".journal");
+		file.deleteOnExit();
+		int chunkSize = 4096;
+		OrderJournal journal = new OrderJournal(file, OrderJournal.FsyncPolicy.GROUP, chunkSize, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), true, journal);
+		List<Long> orderIds = new ArrayList<>();
+		for(int i=0; i<500; i++){
+			orderIds.add(board.registerOrder("Nat", i % 2 == 0 ? OrderType.BUY : OrderType.SELL, 300 + i % 7 + (i % 2 == 0 ? 0 : 10), 1000L + i));
+			if(i % 3 == 0){
+				Assert.assertTrue(board.cancelOrder(orderIds.remove(orderIds.size() / 2)));
+			}
+		}
+		//crossing order, the fills are replayed too.
+		board.registerOrder("Nat", OrderType.BUY, 312, 5000L);
+		long cancelled = board.registerOrder("Nat", OrderType.BUY, 250, 1000L);
+		Assert.assertTrue(board.cancelOrder(cancelled));
+		OrderBookSummary expected = board.getSummary();
+		journal.close();
+		Assert.assertTrue("Journal did not span several chunks", file.length() > chunkSize);
+
+		OrderJournal reopened = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, chunkSize, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl replayed = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), true, reopened);
+		validate(expected, replayed.getSummary());
+		//the storage carries on where the journal stopped, ie: the orderId of the last cancelled order is stale.
+		Assert.assertFalse(replayed.cancelOrder(cancelled));
+		long next = replayed.registerOrder("Nat", OrderType.BUY, 250, 1000L);
+		Assert.assertNotEquals(cancelled, next);
+		Assert.assertTrue(replayed.cancelOrder(next));
+		//the orderIds are the same, cancelling all of them empties the orderbook.
+		for(long orderId : orderIds){
+			replayed.cancelOrder(orderId);
+		}
+		Assert.assertTrue(replayed.getSummary().getBuys().isEmpty());
+		Assert.assertTrue(replayed.getSummary().getSells().isEmpty());
+		reopened.close();
+	}
+
+	/**
+	 * Tests that an order which fails to execute, after it has been journaled, is undone on the orderboard and in the journal, so that the journal stays recoverable.
+	 */
+	@Test
+	public void testJournal_FailedRegister() throws IOException{
+		File file = File.createTempFile("orders-", ".journal");
+		file.deleteOnExit();
+		OrderJournal journal = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+		//fails the indexing of the order by user, once the order is on its level.
+		OrderStore delegate = storeFactory.apply(16);
+		AtomicBoolean failing = new AtomicBoolean();
+		OrderStore store = (OrderStore) Proxy.newProxyInstance(OrderStore.class.getClassLoader(), new Class<?>[]{OrderStore.class}, (proxy, method, args) -> {
+			if("userId".equals(method.getName()) && failing.getAndSet(false)){
+				throw new IllegalStateException("Rejected slot "+args[0]);
+			}
+			try{
+				return method.invoke(delegate, args);
+			}catch(InvocationTargetException ex){
+				throw ex.getCause();
+			}
+		});
+		OrderBoardImpl board = new OrderBoardImpl(store, FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, journal);
+		long orderId = board.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		try{
+			failing.set(true);
+			board.registerOrder("Nat", OrderType.BUY, 999, 1000L);
+			Assert.fail("Failed register did not throw");
+		}catch(IllegalStateException ex){
+			//expected.
+		}
+		Assert.assertEquals("Slot of the failed order not released", 1, board.getMetrics().getLiveOrders());
+		OrderBookSummary expected = new OrderBookSummary(Arrays.asList(new PriceLevelSummary(306, 1, 1000L, FixedPointQuantity.DEFAULT_SCALE)), Collections.emptyList());
+		validate(expected, board.getSummary());
+		journal.close();
+
+		OrderJournal reopened = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl replayed = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, reopened);
+		validate(expected, replayed.getSummary());
+		Assert.assertEquals(1, replayed.getMetrics().getLiveOrders());
+		Assert.assertTrue(replayed.cancelOrder(orderId));
+		reopened.close();
+	}
+
+	/**
+	 * Tests that the listeners are notified once the command is committed and out of the journal lock: a listener waiting for an order registered
+	 * by another thread does not hold it up.
+	 */
+	@Test
+	public void testJournal_ListenersOutOfLock() throws Exception{
+		File file = File.createTempFile("orders-", ".journal");
+		file.deleteOnExit();
+		OrderJournal journal = new OrderJournal(file, OrderJournal.FsyncPolicy.GROUP, 4096, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, journal);
+		List<Integer> added = Collections.synchronizedList(new ArrayList<>());
+		board.addDeltaListener(new OrderBookDeltaListener() {
+			@Override
+			public void onLevelAdded(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+				added.add(price);
+			}
+			@Override
+			public void onLevelChanged(long sequence, OrderType side, int price, int numberOfOrders, long quantity) {
+			}
+			@Override
+			public void onLevelRemoved(long sequence, OrderType side, int price) {
+			}
+		});
+		AtomicBoolean first = new AtomicBoolean(true);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		board.addUpdateListener(summary -> {
+			if(!first.getAndSet(false)){
+				return;
+			}
+			Thread other = new Thread(() -> board.registerOrder("Bob", OrderType.SELL, 310, 1000L));
+			other.setUncaughtExceptionHandler((thread, ex) -> failure.set(ex));
+			other.start();
+			try{
+				other.join(TimeUnit.SECONDS.toMillis(30));
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}
+			if(other.isAlive()){
+				failure.set(new AssertionError("Listener holds up the other writers"));
+			}
+		});
+		board.registerOrder("Nat", OrderType.BUY, 306, 1000L);
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(Arrays.asList(306, 310), added);
+		Assert.assertEquals(2, board.getMetrics().getLiveOrders());
+		journal.close();
+	}
+
+	/**
+	 * Tests that the users of a journal written over several lives of the orderboard, whose user IDs differ from one life to the next, are replayed as they were.
+	 */
+	@Test
+	public void testJournal_Users() throws IOException{
+		File file = File.createTempFile("orders-", ".journal");
+		file.deleteOnExit();
+		OrderJournal journal = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, journal);
+		//takes ID 0, without an order, hence is not journaled.
+		board.registerUser("Zed");
+		long bob = board.registerOrder("Bob", OrderType.BUY, 306, 1000L);
+		long nat = board.registerOrder(board.registerUser("Nat"), OrderType.BUY, 307, 1000L);
+		journal.close();
+
+		//Bob and Nat take IDs 0 and 1 in the next life, Carl 2.
+		journal = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+		board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, journal);
+		long nat2 = board.registerOrder(board.registerUser("Nat"), OrderType.SELL, 310, 1000L);
+		long carl = board.registerOrder("Carl", OrderType.SELL, 311, 1000L);
+		journal.close();
+
+		journal = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl replayed = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, journal);
+		Assert.assertArrayEquals(new long[]{bob}, replayed.getOrdersForUser("Bob"));
+		long[] natOrders = replayed.getOrdersForUser("Nat");
+		Arrays.sort(natOrders);
+		long[] expected = {nat, nat2};
+		Arrays.sort(expected);
+		Assert.assertArrayEquals(expected, natOrders);
+		Assert.assertArrayEquals(new long[]{carl}, replayed.getOrdersForUser("Carl"));
+		Assert.assertEquals(0, replayed.getOrdersForUser("Zed").length);
+		journal.close();
+	}
+
+	/**
+	 * Tests a snapshot taken while an order is cancelled and its slot reused by a new order, between the copies of their levels: the slot is written twice,
+	 * only the newer order is restored and the tail of the journal settles the older one.
+	 */
+	@Test
+	public void testSnapshotRecovery_SlotReused() throws Exception{
+		File file = File.createTempFile("orders-", ".journal");
+		file.deleteOnExit();
+		File snapshot = File.createTempFile("orders-", ".snapshot");
+		snapshot.deleteOnExit();
+		Assert.assertTrue(snapshot.delete());
+		//runs the hook, if any, when the store is read for the copy of the order of the given slot, ie: under the lock of its level only.
+		OrderStore delegate = storeFactory.apply(16);
+		AtomicInteger hookSlot = new AtomicInteger(-1);
+		AtomicReference<Runnable> hook = new AtomicReference<>();
+		OrderStore store = (OrderStore) Proxy.newProxyInstance(OrderStore.class.getClassLoader(), new Class<?>[]{OrderStore.class}, (proxy, method, args) -> {
+			if("quantity".equals(method.getName()) && (Integer) args[0] == hookSlot.get()){
+				Runnable action = hook.getAndSet(null);
+				if(action != null){
+					Thread thread = new Thread(action);
+					thread.start();
+					thread.join(TimeUnit.SECONDS.toMillis(30));
+					Assert.assertFalse("Hook is blocked", thread.isAlive());
+				}
+			}
+			try{
+				return method.invoke(delegate, args);
+			}catch(InvocationTargetException ex){
+				throw ex.getCause();
+			}
+		});
+		OrderJournal journal = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 1 << 20, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl board = new OrderBoardImpl(store, FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, journal, snapshot);
+		//BUY levels are copied from the best price: A at 300, the hook at 298, then B at 297, a level which exists before the snapshot is taken.
+		long a = board.registerOrder("Nat", OrderType.BUY, 300, 1000L);
+		long marker = board.registerOrder("Nat", OrderType.BUY, 298, 1000L);
+		long resting = board.registerOrder("Nat", OrderType.BUY, 297, 1000L);
+		//enough orders to release after A, so that the slot of A is due for reuse.
+		List<OrderRequest> requests = new ArrayList<>();
+		for(int i=0; i<FreeSlots.QUARANTINE; i++){
+			requests.add(new OrderRequest("Bob", OrderType.SELL, 400, 1000L));
+		}
+		BatchResult others = board.registerOrders(requests);
+		long[] otherIds = new long[others.size()];
+		for(int i=0; i<otherIds.length; i++){
+			otherIds[i] = others.getOrderId(i);
+		}
+		long[] b = new long[1];
+		hookSlot.set(OrderStore.slot(marker));
+		hook.set(() -> {
+			Assert.assertTrue(board.cancelOrder(a));
+			board.cancelOrders(otherIds);
+			b[0] = board.registerOrder("Bob", OrderType.BUY, 297, 2000L);
+		});
+		board.writeSnapshot(snapshot);
+		Assert.assertNull("Hook not run", hook.get());
+		Assert.assertEquals("Slot of A not reused", OrderStore.slot(a), OrderStore.slot(b[0]));
+		OrderBookSummary expected = board.getSummary();
+		journal.close();
+
+		OrderJournal reopened = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 1 << 20, 1, TimeUnit.MILLISECONDS);
+		OrderBoardImpl recovered = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, reopened, snapshot);
+		validate(expected, recovered.getSummary());
+		Assert.assertEquals(3, recovered.getMetrics().getLiveOrders());
+		Assert.assertFalse(recovered.cancelOrder(a));
+		Assert.assertTrue(recovered.cancelOrder(b[0]));
+		Assert.assertTrue(recovered.cancelOrder(marker));
+		Assert.assertTrue(recovered.cancelOrder(resting));
+		reopened.close();
+	}
+
+	/**
+	 * Tests that an orderboard is recovered from a snapshot and the tail of its journal, as it would be from the whole journal.
+	 */
+	@Test
+	public void testSnapshotRecovery() throws IOException{
+		for(boolean matching : new boolean[]{false, true}){
+			File file = File.createTempFile("orders-", ".journal");
+			file.deleteOnExit();
+			File snapshot = File.createTempFile("orders-", ".snapshot");
+			snapshot.deleteOnExit();
+			Assert.assertTrue(snapshot.delete());
+			OrderJournal journal = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+			OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), matching, journal, snapshot);
+			List<Long> orderIds = new ArrayList<>();
+			for(int i=0; i<300; i++){
+				orderIds.add(board.registerOrder("User"+(i % 5), i % 2 == 0 ? OrderType.BUY : OrderType.SELL, 300 + i % 4 + (i % 2 == 0 ? 0 : 10), 1000L + i));
+			}
+			long cancelled = orderIds.remove(10);
+			Assert.assertTrue(board.cancelOrder(cancelled));
+			Assert.assertEquals(orderIds.size(), board.writeSnapshot(snapshot));
+			//the tail of the journal, after the snapshot.
+			Assert.assertTrue(board.cancelOrder(orderIds.remove(20)));
+			//a new user, and a user journaled before the snapshot, whose name the tail of the journal must carry again.
+			for(int i=0; i<10; i++){
+				orderIds.add(board.registerOrder(i % 2 == 0 ? "Nat" : "User1", OrderType.SELL, 320, 500L));
+			}
+			Assert.assertTrue(board.cancelOrder(orderIds.remove(orderIds.size() - 1)));
+			OrderBookSummary expected = board.getSummary();
+			journal.close();
+			File copy = File.createTempFile("orders-", ".journal");
+			copy.deleteOnExit();
+			Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			OrderJournal reopened = new OrderJournal(file, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+			OrderBoardImpl recovered = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), matching, reopened, snapshot);
+			validate(expected, recovered.getSummary());
+			Assert.assertFalse("Stale orderId has been reused", recovered.cancelOrder(cancelled));
+			//replayed from the start of the journal.
+			OrderJournal whole = new OrderJournal(copy, OrderJournal.FsyncPolicy.NONE, 4096, 1, TimeUnit.MILLISECONDS);
+			OrderBoardImpl replayed = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), matching, whole);
+			validate(expected, replayed.getSummary());
+			//the users are registered again from the names in the snapshot and the journal.
+			for(String userName : new String[]{"User0", "User1", "User3", "Nat"}){
+				long[] live = board.getOrdersForUser(userName);
+				Arrays.sort(live);
+				long[] restored = recovered.getOrdersForUser(userName);
+				Arrays.sort(restored);
+				Assert.assertArrayEquals(live, restored);
+				restored = replayed.getOrdersForUser(userName);
+				Arrays.sort(restored);
+				Assert.assertArrayEquals(live, restored);
+			}
+			if(matching){
+				//time priority is kept, the same orders are filled in the same order.
+				List<Long> recoveredTrades = new ArrayList<>();
+				List<Long> replayedTrades = new ArrayList<>();
+				recovered.addTradeListener((incomingOrderId, restingOrderId, incomingSide, price, quantity, restingFilled) -> recoveredTrades.add(restingOrderId));
+				replayed.addTradeListener((incomingOrderId, restingOrderId, incomingSide, price, quantity, restingFilled) -> replayedTrades.add(restingOrderId));
+				recovered.registerOrder("Nat", OrderType.SELL, 300, 100000L);
+				replayed.registerOrder("Nat", OrderType.SELL, 300, 100000L);
+				Assert.assertFalse(recoveredTrades.isEmpty());
+				Assert.assertEquals(replayedTrades, recoveredTrades);
+			}
+			for(long orderId : orderIds){
+				Assert.assertEquals("Order "+orderId+" has not been recovered", replayed.cancelOrder(orderId), recovered.cancelOrder(orderId));
+			}
+			validate(replayed.getSummary(), recovered.getSummary());
+			reopened.close();
+			whole.close();
+		}
+	}
+
+	/**
+	 * Tests that the registered/cancelled orders are recorded in the audit log, across several files.
+	 */
+	@Test
+	public void testAuditLog() throws IOException{
+		File directory = Files.createTempDirectory("audit-").toFile();
+		directory.deleteOnExit();
+		//10 records per file.
+		AuditLog audit = new AuditLog(directory, "board", 16, 8 + 40 * 10);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), false, null, null, audit);
+		List<String> expected = new ArrayList<>();
+		for(int i=0; i<25; i++){
+			long orderId = board.registerOrder("Nat", OrderType.BUY, 300 + i, 1500L);
+			expected.add("REGISTERED " + orderId + " BUY 1500 @ " + (300 + i));
+			if(i % 5 == 0){
+				Assert.assertTrue(board.cancelOrder(orderId));
+				expected.add("CANCELLED " + orderId + " BUY 1500 @ " + (300 + i));
+			}
+		}
+		audit.close();
+		//once the log is closed, the orders are still registered/cancelled, their records are dropped.
+		long unaudited = board.registerOrder("Nat", OrderType.BUY, 400, 1500L);
+		Assert.assertTrue(board.cancelOrder(unaudited));
+		Assert.assertEquals(2, audit.getDropped());
+		List<String> records = new ArrayList<>();
+		for(int index=0; index<4; index++){
+			File file = new File(directory, "board-" + index + AuditLog.EXTENSION);
+			file.deleteOnExit();
+			Assert.assertTrue(file + " does not exist", file.exists());
+			AuditLog.read(file, (timeMillis, event, orderId, side, price, quantity, rested, quantityScale) -> {
+				Assert.assertEquals(FixedPointQuantity.DEFAULT_SCALE, quantityScale);
+				Assert.assertEquals(AuditLog.Event.REGISTERED == event ? quantity : 0, rested);
+				records.add(event + " " + orderId + " " + side + " " + quantity + " @ " + price);
+			});
+		}
+		Assert.assertEquals(expected, records);
+	}
+
+	/**
+	 * Tests that the audit log records the quantity requested and the quantity which rested on the orderbook, when matching,
+	 * and an order filled on arrival as FILLED.
+	 */
+	@Test
+	public void testAuditLog_Matching() throws IOException{
+		File directory = Files.createTempDirectory("audit-").toFile();
+		directory.deleteOnExit();
+		AuditLog audit = new AuditLog(directory, "board", 16, AuditLog.DEFAULT_FILE_LIMIT);
+		OrderBoardImpl board = new OrderBoardImpl(storeFactory.apply(16), FixedPointQuantity.DEFAULT_SCALE, new SynchronousUpdateNotifier(), true, null, null, audit);
+		long sell = board.registerOrder("Nat", OrderType.SELL, 310, 1000L);
+		//filled on arrival, its orderId is already stale.
+		long filled = board.registerOrder("Bob", OrderType.BUY, 310, 400L);
+		Assert.assertFalse(board.cancelOrder(filled));
+		long partial = board.registerOrders(Arrays.asList(new OrderRequest("Bob", OrderType.BUY, 311, 1000L))).getOrderId(0);
+		audit.close();
+		File file = new File(directory, "board-0" + AuditLog.EXTENSION);
+		file.deleteOnExit();
+		List<String> records = new ArrayList<>();
+		AuditLog.read(file, (timeMillis, event, orderId, side, price, quantity, rested, quantityScale) ->
+			records.add(event + " " + orderId + " " + side + " " + quantity + "/" + rested + " @ " + price));
+		Assert.assertEquals(Arrays.asList("REGISTERED " + sell + " SELL 1000/1000 @ 310", "FILLED " + filled + " BUY 400/0 @ 310", "REGISTERED " + partial + " BUY 1000/400 @ 311"), records);
+	}
+
+	/**
+	 * Tests the counters, gauges and latencies of the metrics, as read through JMX.
+	 */
+	@Test
+	public void testMetrics() throws Exception{
+		OrderBoardMetrics metrics = orderboard.getMetrics();
+		long orderId = orderboard.registerOrder("Nat", OrderType.BUY, 306, 1500L);
+		orderboard.registerOrder("Nat", OrderType.BUY, 307, 1500L);
+		orderboard.registerOrder("Nat", OrderType.SELL, 310, 1500L);
+		orderboard.registerOrders(Arrays.asList(new OrderRequest("Nat", OrderType.SELL, 311, 1500L), new OrderRequest("Nat", OrderType.SELL, 311, 0L)));
+		Assert.assertTrue(orderboard.cancelOrder(orderId));
+		Assert.assertFalse(orderboard.cancelOrder(orderId));
+		Assert.assertEquals(4, metrics.getRegisters());
+		Assert.assertEquals(1, metrics.getCancels());
+		Assert.assertEquals(1, metrics.getRejectedCancels());
+		Assert.assertEquals(3, metrics.getLiveOrders());
+		Assert.assertEquals(1, metrics.getBuyLevels());
+		Assert.assertEquals(2, metrics.getSellLevels());
+		//batches are counted, but not timed.
+		Assert.assertEquals(3, metrics.getRegisterLatency().getCount());
+		Assert.assertEquals(2, metrics.getCancelLatency().getCount());
+		Assert.assertEquals(5, metrics.getListenerLatencies().values().iterator().next().getCount());
+		Assert.assertEquals(5, metrics.getListenerLatency(updateListener).getCount());
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		metrics.registerMBean("test-" + storeName);
+		try{
+			ObjectName name = new ObjectName("com.cs.sbm:type=OrderBoard,name=" + ObjectName.quote("test-" + storeName));
+			Assert.assertEquals(4L, server.getAttribute(name, "Registers"));
+			Assert.assertEquals(3L, ((CompositeData) server.getAttribute(name, "RegisterLatency")).get("count"));
+			server.invoke(name, "resetLatencies", null, null);
+			Assert.assertEquals(0, metrics.getRegisterLatency().getCount());
+			Assert.assertEquals(4, metrics.getRegisters());
+		}finally{
+			metrics.unregisterMBean();
+		}
+		Assert.assertTrue(server.queryNames(new ObjectName("com.cs.sbm:type=OrderBoard,*"), null).isEmpty());
+	}
+
+	/**
+	 * Tests the values reported by the latency histogram, within the precision of its buckets.
+	 */
+	@Test
+	public void testLatencyHistogram(){
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(long i=1; i<=1000; i++){
+			histogram.record(i * 1000);
+		}
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(1000000, histogram.getMax());
+		Assert.assertEquals(500500, histogram.getMean(), 0.001);
+		Assert.assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 16);
+		Assert.assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 16);
+		Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+		for(long value : new long[]{0, 1, 15, 16, 17, 1000, 123456789, LatencyHistogram.MAX_VALUE}){
+			int bucket = LatencyHistogram.bucket(value);
+			Assert.assertTrue(value + " above its bucket", value <= LatencyHistogram.highestValue(bucket));
+			Assert.assertTrue(value + " below its bucket", bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+		}
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
 	private void validate(OrderBookSummary expected, OrderBookSummary actual){
 		Assert.assertEquals("OrderBookSummary doesnt match", expected, actual);
 	}
@@ -185,7 +1288,7 @@ public class OrderBoardImplTest {
 		}
 		
 		@Override
-		public void onUpdate(OrderBookSummary summary) {
+		public synchronized void onUpdate(OrderBookSummary summary) {
 			updates.add(summary);
 			System.out.println("Received summary update:"+ summary);
 		}
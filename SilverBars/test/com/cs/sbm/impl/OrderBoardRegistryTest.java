@@ -0,0 +1,91 @@
+package com.cs.sbm.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cs.sbm.api.OrderBoard;
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderType;
+
+/**
+ * Testcase for {@link OrderBoardRegistry}
+ *
+ * @author Nat
+ *
+ */
+public class OrderBoardRegistryTest {
+
+	private static final List<String> INSTRUMENTS = Arrays.asList("SILVER-1KG", "SILVER-100OZ", "GOLD-1KG", "GOLD-400OZ", "PLATINUM-1KG", "PALLADIUM-1KG");
+
+	OrderBoardRegistry registry;
+	@Before
+	public void setup(){
+		this.registry = new OrderBoardRegistry("test", 3);
+	}
+
+	@After
+	public void teardown(){
+		registry.close();
+	}
+
+	/**
+	 * Tests that every instrument has its own book, executed on the engine thread of its shard.
+	 */
+	@Test
+	public void testInstrumentsAreIsolated(){
+		Map<String, String> threads = new ConcurrentHashMap<>();
+		List<Long> orderIds = new ArrayList<>();
+		for(int i=0; i<INSTRUMENTS.size(); i++){
+			String instrument = INSTRUMENTS.get(i);
+			OrderBoard board = registry.getOrderBoard(instrument);
+			Assert.assertSame(board, registry.getOrderBoard(instrument));
+			board.addUpdateListener(summary -> threads.put(instrument, Thread.currentThread().getName()));
+			orderIds.add(board.registerOrder("Nat", OrderType.BUY, 300 + i, 1000L));
+		}
+		for(int i=0; i<INSTRUMENTS.size(); i++){
+			String instrument = INSTRUMENTS.get(i);
+			OrderBookSummary summary = registry.getOrderBoard(instrument).getSummary();
+			Assert.assertEquals(1, summary.getBuys().size());
+			Assert.assertEquals(300 + i, summary.getBuys().get(0).getPrice());
+			Assert.assertEquals("test-shard-" + registry.getShard(instrument), threads.get(instrument));
+		}
+		//every book has its own orderIds.
+		Assert.assertTrue(registry.getOrderBoard("GOLD-1KG").cancelOrder(orderIds.get(2)));
+		Assert.assertTrue(registry.getOrderBoard("GOLD-1KG").getSummary().getBuys().isEmpty());
+		Assert.assertEquals(1, registry.getOrderBoard("SILVER-1KG").getSummary().getBuys().size());
+		Assert.assertEquals(INSTRUMENTS.size(), registry.getInstruments().size());
+	}
+
+	/**
+	 * Tests that the instruments are spread across the shards, always onto the same shard.
+	 */
+	@Test
+	public void testSharding(){
+		int[] counts = new int[registry.getShardCount()];
+		for(int i=0; i<300; i++){
+			int shard = registry.getShard("SILVER-" + i);
+			Assert.assertEquals(shard, registry.getShard("SILVER-" + i));
+			counts[shard]++;
+		}
+		for(int count : counts){
+			Assert.assertTrue("Instruments are not spread across shards " + Arrays.toString(counts), count > 50);
+		}
+	}
+
+	/**
+	 * Tests that no instrument can be created once the registry is closed.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testGetOrderBoard_AfterClose(){
+		registry.close();
+		registry.getOrderBoard("SILVER-1KG");
+	}
+}
@@ -0,0 +1,108 @@
+package com.cs.sbm.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cs.sbm.api.OrderBookSummary;
+import com.cs.sbm.api.OrderType;
+
+/**
+ * Testcase for {@link SequencedOrderBoard}
+ *
+ * @author Nat
+ *
+ */
+public class SequencedOrderBoardTest {
+
+	OrderBoardSequencer sequencer;
+	SequencedOrderBoard orderboard;
+	@Before
+	public void setup(){
+		//a small ring, so producers wrap around it.
+		this.sequencer = new OrderBoardSequencer("test-engine", 64);
+		this.orderboard = new SequencedOrderBoard(new OrderBoardImpl(), sequencer);
+	}
+
+	@After
+	public void teardown(){
+		sequencer.close();
+	}
+
+	/**
+	 * Tests register/cancel through the engine thread, blocking and asynchronous.
+	 */
+	@Test
+	public void testRegisterAndCancel(){
+		long orderId = orderboard.registerOrder("Nat", OrderType.BUY, 306, BigDecimal.valueOf(3.5));
+		CompletableFuture<Long> future = orderboard.registerOrderAsync("Nat", OrderType.BUY, 306, 1200L);
+		Assert.assertTrue(orderboard.cancelOrder(orderId));
+		Assert.assertFalse("Cancelled order has been cancelled again", orderboard.cancelOrderAsync(orderId).join());
+		OrderBookSummary summary = orderboard.getSummary();
+		Assert.assertEquals(new PriceLevelSummary(306, 1, BigDecimal.valueOf(1.2)), summary.getBuys().get(0));
+		Assert.assertTrue(orderboard.cancelOrder(future.join()));
+		Assert.assertTrue(orderboard.getSummary().getBuys().isEmpty());
+	}
+
+	/**
+	 * Tests that an invalid quantity is rejected on the calling thread.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testRegisterOrder_QuantityExceedsScale(){
+		orderboard.registerOrder("Nat", OrderType.BUY, 306, new BigDecimal("1.2345"));
+	}
+
+	/**
+	 * Tests that orders registered concurrently by many producers are all executed, with the callback.
+	 */
+	@Test
+	public void testRegisterOrder_ManyProducers() throws InterruptedException{
+		int producers = 4;
+		int ordersPerProducer = 2000;
+		CountDownLatch done = new CountDownLatch(producers * ordersPerProducer);
+		long[] orderIds = new long[producers * ordersPerProducer];
+		AtomicInteger executed = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for(int p=0; p<producers; p++){
+			OrderType type = p % 2 == 0 ? OrderType.BUY : OrderType.SELL;
+			threads.add(new Thread(() -> {
+				for(int i=0; i<ordersPerProducer; i++){
+					orderboard.registerOrder("Nat", type, 300 + i % 10, 1000L, orderId -> {
+						//callbacks run on the engine thread, one at a time.
+						orderIds[executed.getAndIncrement()] = orderId;
+						done.countDown();
+					});
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		Assert.assertTrue("Not all commands have been executed", done.await(30, TimeUnit.SECONDS));
+		OrderBookSummary summary = orderboard.getSummary();
+		Assert.assertEquals(10, summary.getBuys().size());
+		Assert.assertEquals(10, summary.getSells().size());
+		Assert.assertEquals(producers * ordersPerProducer / 20, summary.getBuys().get(0).getNumberOfOrders());
+		for(long orderId : orderIds){
+			Assert.assertTrue("Failed to cancel order "+orderId, orderboard.cancelOrder(orderId));
+		}
+		Assert.assertTrue(orderboard.getSummary().getSells().isEmpty());
+	}
+
+	/**
+	 * Tests that commands are rejected, once the sequencer is closed.
+	 */
+	@Test(expected = RejectedExecutionException.class)
+	public void testRegisterOrder_AfterClose(){
+		sequencer.close();
+		orderboard.registerOrderAsync("Nat", OrderType.BUY, 306, 1000L);
+	}
+}